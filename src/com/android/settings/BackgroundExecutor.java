@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings;
+
+import android.os.Process;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Small pool of background priority threads shared by the screens that split their loading
+ * into many short tasks, such as the search indexing or the per-uid network history requests.
+ *
+ * Unlike AsyncTask.THREAD_POOL_EXECUTOR the queue is unbounded, so callers can submit one task
+ * per item. Tasks run on this executor must not wait for other tasks of this executor.
+ */
+public final class BackgroundExecutor {
+
+    // Max number of threads, the actual number also depends on the number of CPUs
+    private static final int MAX_THREADS = 4;
+    private static final int MIN_THREADS = 2;
+    private static final long KEEP_ALIVE_SECONDS = 5;
+
+    private static ThreadPoolExecutor sExecutor;
+
+    private BackgroundExecutor() {
+    }
+
+    public static synchronized ExecutorService get() {
+        if (sExecutor == null) {
+            final int threadCount = Math.max(MIN_THREADS,
+                    Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors()));
+            sExecutor = new ThreadPoolExecutor(threadCount, threadCount,
+                    KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        private final AtomicInteger mCount = new AtomicInteger(1);
+
+                        @Override
+                        public Thread newThread(final Runnable r) {
+                            return new Thread(new Runnable() {
+                                @Override
+                                public void run() {
+                                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                    r.run();
+                                }
+                            }, "SettingsBackground #" + mCount.getAndIncrement());
+                        }
+                    });
+            sExecutor.allowCoreThreadTimeOut(true);
+        }
+        return sExecutor;
+    }
+
+    /**
+     * Number of tasks that can run at the same time.
+     */
+    public static int getParallelism() {
+        return ((ThreadPoolExecutor) get()).getMaximumPoolSize();
+    }
+}
@@ -38,8 +38,6 @@ import static android.net.NetworkTemplate.buildTemplateMobileAll;
 import static android.net.NetworkTemplate.buildTemplateWifiWildcard;
 import static android.net.TrafficStats.GB_IN_BYTES;
 import static android.net.TrafficStats.MB_IN_BYTES;
-import static android.net.TrafficStats.UID_REMOVED;
-import static android.net.TrafficStats.UID_TETHERING;
 import static android.telephony.TelephonyManager.SIM_STATE_READY;
 import static android.text.format.DateUtils.FORMAT_ABBREV_MONTH;
 import static android.text.format.DateUtils.FORMAT_SHOW_DATE;
@@ -63,7 +61,6 @@ import android.content.Loader;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
-import android.content.pm.UserInfo;
 import android.content.res.Resources;
 import android.graphics.Color;
 import android.graphics.drawable.ColorDrawable;
@@ -74,7 +71,6 @@ import android.net.INetworkStatsService;
 import android.net.INetworkStatsSession;
 import android.net.NetworkPolicy;
 import android.net.NetworkPolicyManager;
-import android.net.NetworkStats;
 import android.net.NetworkStatsHistory;
 import android.net.NetworkTemplate;
 import android.net.TrafficStats;
@@ -87,7 +83,6 @@ import android.os.RemoteException;
 import android.os.ServiceManager;
 import android.os.SystemProperties;
 import android.os.UserHandle;
-import android.os.UserManager;
 import android.preference.Preference;
 import android.telephony.SubscriptionInfo;
 import android.telephony.SubscriptionManager;
@@ -97,7 +92,6 @@ import android.text.format.DateUtils;
 import android.text.format.Formatter;
 import android.text.format.Time;
 import android.util.Log;
-import android.util.SparseArray;
 import android.util.SparseBooleanArray;
 import android.view.LayoutInflater;
 import android.view.Menu;
@@ -135,6 +129,8 @@ import com.android.settings.net.ChartData;
 import com.android.settings.net.ChartDataLoader;
 import com.android.settings.net.DataUsageMeteredSettings;
 import com.android.settings.net.NetworkPolicyEditor;
+import com.android.settings.net.StatsRefreshScheduler;
+import com.android.settings.net.SummaryCache;
 import com.android.settings.net.SummaryForAllUidLoader;
 import com.android.settings.net.UidDetail;
 import com.android.settings.net.UidDetailProvider;
@@ -148,8 +144,8 @@ import com.google.android.collect.Lists;
 
 import libcore.util.Objects;
 
+import java.text.DateFormat;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
@@ -240,6 +236,7 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
 
     private ChartDataUsageView mChart;
     private View mDisclaimer;
+    private TextView mLastUpdated;
     private TextView mEmpty;
     private View mStupidPadding;
 
@@ -284,6 +281,9 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
 
     private UidDetailProvider mUidDetailProvider;
 
+    /** Usage already loaded for each network and cycle, kept while this fragment exists. */
+    private final SummaryCache mSummaryCache = new SummaryCache();
+
     // Indicates request to show app immediately rather than list.
     private String mShowAppImmediatePkg;
 
@@ -457,11 +457,11 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
         }
 
         mDisclaimer = mHeader.findViewById(R.id.disclaimer);
+        mLastUpdated = (TextView) mHeader.findViewById(R.id.last_updated);
         mEmpty = (TextView) mHeader.findViewById(android.R.id.empty);
         mStupidPadding = mHeader.findViewById(R.id.stupid_padding);
 
-        final UserManager um = (UserManager) context.getSystemService(Context.USER_SERVICE);
-        mAdapter = new DataUsageAdapter(um, mUidDetailProvider, mInsetSide);
+        mAdapter = new DataUsageAdapter(mUidDetailProvider, mInsetSide);
         mListView.setOnItemClickListener(mListListener);
         mListView.setAdapter(mAdapter);
 
@@ -518,29 +518,51 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
             }
         });
 
+        // show when the stats shown were last refreshed
+        updateLastUpdated();
+
+        // skip forcing an update if stats were refreshed recently
+        if (!StatsRefreshScheduler.shouldForceUpdate()) {
+            return;
+        }
+
         // kick off background task to update stats
-        new AsyncTask<Void, Void, Void>() {
+        new AsyncTask<Void, Void, Boolean>() {
             @Override
-            protected Void doInBackground(Void... params) {
+            protected Boolean doInBackground(Void... params) {
                 try {
                     // wait a few seconds before kicking off
                     Thread.sleep(2 * DateUtils.SECOND_IN_MILLIS);
-                    mStatsService.forceUpdate();
                 } catch (InterruptedException e) {
-                } catch (RemoteException e) {
+                    StatsRefreshScheduler.cancelForceUpdate();
+                    return false;
                 }
-                return null;
+                return StatsRefreshScheduler.forceUpdate(mStatsService);
             }
 
             @Override
-            protected void onPostExecute(Void result) {
-                if (isAdded()) {
+            protected void onPostExecute(Boolean updated) {
+                if (isAdded() && updated) {
                     updateBody();
+                    updateLastUpdated();
                 }
             }
         }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
     }
 
+    private void updateLastUpdated() {
+        final long lastRefreshTime = StatsRefreshScheduler.getLastRefreshTime();
+        if (lastRefreshTime < 0) {
+            mLastUpdated.setVisibility(View.GONE);
+            return;
+        }
+        final CharSequence time = DateUtils.formatSameDayTime(lastRefreshTime,
+                System.currentTimeMillis(), DateFormat.MEDIUM,
+                DateFormat.SHORT);
+        mLastUpdated.setText(getString(R.string.data_usage_last_updated, time));
+        mLastUpdated.setVisibility(View.VISIBLE);
+    }
+
     @Override
     public void onCreateOptionsMenu(Menu menu, MenuInflater inflater) {
         inflater.inflate(R.menu.data_usage, menu);
@@ -672,6 +694,8 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
         mUidDetailProvider.clearCache();
         mUidDetailProvider = null;
 
+        mSummaryCache.clear();
+
         TrafficStats.closeQuietly(mStatsSession);
 
         super.onDestroy();
@@ -891,6 +915,15 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
             }
         }
 
+        // show the last known network history right away, the loader below
+        // refreshes it with the usage of the current cycle.
+        if (mCurrentApp == null) {
+            final ChartData cachedData = mSummaryCache.getHistory(mTemplate);
+            if (cachedData != null) {
+                bindChartData(cachedData);
+            }
+        }
+
         // kick off loader for network history
         // TODO: consider chaining two loaders together instead of reloading
         // network history when showing app detail.
@@ -1110,6 +1143,9 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
         mPolicyManager.setUidPolicy(
                 uid, restrictBackground ? POLICY_REJECT_METERED_BACKGROUND : POLICY_NONE);
         mAppRestrict.setChecked(restrictBackground);
+
+        // cached summaries carry the restrict state of each app
+        mSummaryCache.clearSummaries();
     }
 
     /**
@@ -1457,9 +1493,22 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
 
             mCycleSummary.setVisibility(View.VISIBLE);
 
-            // kick off loader for detailed stats
-            getLoaderManager().restartLoader(LOADER_SUMMARY,
-                    SummaryForAllUidLoader.buildArgs(mTemplate, start, end), mSummaryCallbacks);
+            final AppItem[] cachedItems = mSummaryCache.getSummary(mTemplate, start, end);
+            if (cachedItems != null && SummaryCache.isClosedCycle(end, now)) {
+                // usage of a closed cycle is final, stop any pending load
+                // and show it without going back to the stats service.
+                getLoaderManager().destroyLoader(LOADER_SUMMARY);
+                bindSummary(cachedItems);
+            } else {
+                if (cachedItems != null) {
+                    bindSummary(cachedItems);
+                }
+
+                // kick off loader for detailed stats
+                getLoaderManager().restartLoader(LOADER_SUMMARY,
+                        SummaryForAllUidLoader.buildArgs(mTemplate, start, end),
+                        mSummaryCallbacks);
+            }
         }
 
         final long totalBytes = entry != null ? entry.rxBytes + entry.txBytes : 0;
@@ -1490,18 +1539,10 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
 
         @Override
         public void onLoadFinished(Loader<ChartData> loader, ChartData data) {
-            mChartData = data;
-            mChart.bindNetworkStats(mChartData.network);
-            mChart.bindDetailNetworkStats(mChartData.detail);
-
-            // calcuate policy cycles based on available data
-            updatePolicy(true);
-            updateAppDetail();
-
-            // force scroll to top of body when showing detail
-            if (mChartData.detail != null) {
-                mListView.smoothScrollToPosition(0);
+            if (mCurrentApp == null) {
+                mSummaryCache.putHistory(mTemplate, data);
             }
+            bindChartData(data);
         }
 
         @Override
@@ -1512,33 +1553,49 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
         }
     };
 
-    private final LoaderCallbacks<NetworkStats> mSummaryCallbacks = new LoaderCallbacks<
-            NetworkStats>() {
+    private final LoaderCallbacks<AppItem[]> mSummaryCallbacks = new LoaderCallbacks<
+            AppItem[]>() {
         @Override
-        public Loader<NetworkStats> onCreateLoader(int id, Bundle args) {
+        public Loader<AppItem[]> onCreateLoader(int id, Bundle args) {
             return new SummaryForAllUidLoader(getActivity(), mStatsSession, args);
         }
 
         @Override
-        public void onLoadFinished(Loader<NetworkStats> loader, NetworkStats data) {
-            final int[] restrictedUids = mPolicyManager.getUidsWithPolicy(
-                    POLICY_REJECT_METERED_BACKGROUND);
-            mAdapter.bindStats(data, restrictedUids);
-            updateEmptyVisible();
+        public void onLoadFinished(Loader<AppItem[]> loader, AppItem[] data) {
+            final SummaryForAllUidLoader summaryLoader = (SummaryForAllUidLoader) loader;
+            mSummaryCache.putSummary(summaryLoader.getTemplate(), summaryLoader.getStart(),
+                    summaryLoader.getEnd(), data);
+            bindSummary(data);
         }
 
         @Override
-        public void onLoaderReset(Loader<NetworkStats> loader) {
-            mAdapter.bindStats(null, new int[0]);
-            updateEmptyVisible();
+        public void onLoaderReset(Loader<AppItem[]> loader) {
+            bindSummary(null);
         }
+    };
 
-        private void updateEmptyVisible() {
-            final boolean isEmpty = mAdapter.isEmpty() && !isAppDetailMode();
-            mEmpty.setVisibility(isEmpty ? View.VISIBLE : View.GONE);
-            mStupidPadding.setVisibility(isEmpty ? View.VISIBLE : View.GONE);
+    private void bindChartData(ChartData data) {
+        mChartData = data;
+        mChart.bindNetworkStats(mChartData.network);
+        mChart.bindDetailNetworkStats(mChartData.detail);
+
+        // calcuate policy cycles based on available data
+        updatePolicy(true);
+        updateAppDetail();
+
+        // force scroll to top of body when showing detail
+        if (mChartData.detail != null) {
+            mListView.smoothScrollToPosition(0);
         }
-    };
+    }
+
+    private void bindSummary(AppItem[] items) {
+        mAdapter.bindItems(items);
+
+        final boolean isEmpty = mAdapter.isEmpty() && !isAppDetailMode();
+        mEmpty.setVisibility(isEmpty ? View.VISIBLE : View.GONE);
+        mStupidPadding.setVisibility(isEmpty ? View.VISIBLE : View.GONE);
+    }
 
     private static String getActiveSubscriberId(Context context) {
         final TelephonyManager tele = TelephonyManager.from(context);
@@ -1759,127 +1816,34 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
     public static class DataUsageAdapter extends BaseAdapter {
         private final UidDetailProvider mProvider;
         private final int mInsetSide;
-        private final UserManager mUm;
 
         private ArrayList<AppItem> mItems = Lists.newArrayList();
         private long mLargest;
 
-        public DataUsageAdapter(final UserManager userManager, UidDetailProvider provider, int insetSide) {
+        public DataUsageAdapter(UidDetailProvider provider, int insetSide) {
             mProvider = checkNotNull(provider);
             mInsetSide = insetSide;
-            mUm = userManager;
         }
 
         /**
-         * Bind the given {@link NetworkStats}, or {@code null} to clear list.
+         * Bind the given items, as sorted by {@link SummaryForAllUidLoader}, or {@code null} to
+         * clear list.
          */
-        public void bindStats(NetworkStats stats, int[] restrictedUids) {
+        public void bindItems(AppItem[] items) {
             mItems.clear();
             mLargest = 0;
 
-            final int currentUserId = ActivityManager.getCurrentUser();
-            final List<UserHandle> profiles = mUm.getUserProfiles();
-            final SparseArray<AppItem> knownItems = new SparseArray<AppItem>();
-
-            NetworkStats.Entry entry = null;
-            final int size = stats != null ? stats.size() : 0;
-            for (int i = 0; i < size; i++) {
-                entry = stats.getValues(i, entry);
-
-                // Decide how to collapse items together
-                final int uid = entry.uid;
-
-                final int collapseKey;
-                final int category;
-                final int userId = UserHandle.getUserId(uid);
-                if (UserHandle.isApp(uid)) {
-                    if (profiles.contains(new UserHandle(userId))) {
-                        if (userId != currentUserId) {
-                            // Add to a managed user item.
-                            final int managedKey = UidDetailProvider.buildKeyForUser(userId);
-                            accumulate(managedKey, knownItems, entry,
-                                    AppItem.CATEGORY_USER);
-                        }
-                        // Add to app item.
-                        collapseKey = uid;
-                        category = AppItem.CATEGORY_APP;
-                    } else {
-                        // If it is a removed user add it to the removed users' key
-                        final UserInfo info = mUm.getUserInfo(userId);
-                        if (info == null) {
-                            collapseKey = UID_REMOVED;
-                            category = AppItem.CATEGORY_APP;
-                        } else {
-                            // Add to other user item.
-                            collapseKey = UidDetailProvider.buildKeyForUser(userId);
-                            category = AppItem.CATEGORY_USER;
-                        }
-                    }
-                } else if (uid == UID_REMOVED || uid == UID_TETHERING) {
-                    collapseKey = uid;
-                    category = AppItem.CATEGORY_APP;
-                } else {
-                    collapseKey = android.os.Process.SYSTEM_UID;
-                    category = AppItem.CATEGORY_APP;
-                }
-                accumulate(collapseKey, knownItems, entry, category);
-            }
-
-            final int restrictedUidsMax = restrictedUids.length;
-            for (int i = 0; i < restrictedUidsMax; ++i) {
-                final int uid = restrictedUids[i];
-                // Only splice in restricted state for current user or managed users
-                if (!profiles.contains(new UserHandle(UserHandle.getUserId(uid)))) {
-                    continue;
-                }
-
-                AppItem item = knownItems.get(uid);
-                if (item == null) {
-                    item = new AppItem(uid);
-                    item.total = -1;
-                    mItems.add(item);
-                    knownItems.put(item.key, item);
+            final int count = items != null ? items.length : 0;
+            for (int i = 0; i < count; i++) {
+                final AppItem item = items[i];
+                mItems.add(item);
+                if (mLargest < item.total) {
+                    mLargest = item.total;
                 }
-                item.restricted = true;
-            }
-
-            if (!mItems.isEmpty()) {
-                final AppItem title = new AppItem();
-                title.category = AppItem.CATEGORY_APP_TITLE;
-                mItems.add(title);
             }
-
-            Collections.sort(mItems);
             notifyDataSetChanged();
         }
 
-        /**
-         * Accumulate data usage of a network stats entry for the item mapped by the collapse key.
-         * Creates the item if needed.
-         *
-         * @param collapseKey the collapse key used to map the item.
-         * @param knownItems collection of known (already existing) items.
-         * @param entry the network stats entry to extract data usage from.
-         * @param itemCategory the item is categorized on the list view by this category. Must be
-         *            either AppItem.APP_ITEM_CATEGORY or AppItem.MANAGED_USER_ITEM_CATEGORY
-         */
-        private void accumulate(int collapseKey, final SparseArray<AppItem> knownItems,
-                NetworkStats.Entry entry, int itemCategory) {
-            final int uid = entry.uid;
-            AppItem item = knownItems.get(collapseKey);
-            if (item == null) {
-                item = new AppItem(collapseKey);
-                item.category = itemCategory;
-                mItems.add(item);
-                knownItems.put(item.key, item);
-            }
-            item.addUid(uid);
-            item.total += entry.rxBytes + entry.txBytes;
-            if (mLargest < item.total) {
-                mLargest = item.total;
-            }
-        }
-
         @Override
         public int getCount() {
             return mItems.size();
@@ -0,0 +1,268 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.app.ActivityManager;
+import android.content.BroadcastReceiver;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.net.Uri;
+import android.os.UserHandle;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.PrintWriter;
+import java.util.Map;
+
+/**
+ * Process wide cache of application labels and icons, keyed by package and user.
+ *
+ * The cache is bounded by the number of bytes used by the labels and icon bitmaps, and entries
+ * are dropped when their package changes, when the locale changes and when memory is trimmed.
+ * It is shared by the data usage, battery, running services and notification screens, so that
+ * going from one screen to another does not load the same labels and icons again. Icons are
+ * cached unbadged, and badged for the user of the application when they are returned.
+ */
+public class AppLabelIconCache {
+    private static final String TAG = "AppLabelIconCache";
+
+    // Upper bound of the cache, the actual bound also depends on the memory class
+    private static final int MAX_CACHE_BYTES = 4 * 1024 * 1024;
+
+    // Approximate size of an entry, not counting its label and icon
+    private static final int ENTRY_OVERHEAD_BYTES = 64;
+
+    private static AppLabelIconCache sInstance;
+
+    private final PackageManager mPm;
+    private final LruCache<String, Entry> mCache;
+
+    private int mHitCount;
+    private int mMissCount;
+
+    private static class Entry {
+        final CharSequence label;
+        final Drawable icon;
+        final int size;
+
+        Entry(CharSequence label, Drawable icon) {
+            this.label = label;
+            this.icon = icon;
+            this.size = ENTRY_OVERHEAD_BYTES + (label != null ? label.length() * 2 : 0)
+                    + getIconSize(icon);
+        }
+    }
+
+    private final BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final String action = intent.getAction();
+            if (Intent.ACTION_LOCALE_CHANGED.equals(action)) {
+                clear();
+            } else if (Intent.ACTION_EXTERNAL_APPLICATIONS_AVAILABLE.equals(action)
+                    || Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE.equals(action)) {
+                final String[] packageNames =
+                        intent.getStringArrayExtra(Intent.EXTRA_CHANGED_PACKAGE_LIST);
+                if (packageNames != null) {
+                    for (String packageName : packageNames) {
+                        invalidatePackage(packageName);
+                    }
+                }
+            } else {
+                final Uri data = intent.getData();
+                if (data != null) {
+                    invalidatePackage(data.getSchemeSpecificPart());
+                }
+            }
+        }
+    };
+
+    private final ComponentCallbacks2 mComponentCallbacks = new ComponentCallbacks2() {
+        @Override
+        public void onTrimMemory(int level) {
+            if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+                clear();
+            } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+                mCache.trimToSize(mCache.maxSize() / 2);
+            }
+        }
+
+        @Override
+        public void onConfigurationChanged(Configuration newConfig) {
+        }
+
+        @Override
+        public void onLowMemory() {
+            clear();
+        }
+    };
+
+    public static AppLabelIconCache getInstance(Context context) {
+        synchronized (AppLabelIconCache.class) {
+            if (sInstance == null) {
+                sInstance = new AppLabelIconCache(context.getApplicationContext());
+            }
+            return sInstance;
+        }
+    }
+
+    private AppLabelIconCache(Context context) {
+        mPm = context.getPackageManager();
+
+        final ActivityManager am =
+                (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        final int maxBytes = Math.min(MAX_CACHE_BYTES, am.getMemoryClass() * 1024 * 1024 / 16);
+        mCache = new LruCache<String, Entry>(maxBytes) {
+            @Override
+            protected int sizeOf(String key, Entry entry) {
+                return entry.size;
+            }
+        };
+
+        final IntentFilter packageFilter = new IntentFilter();
+        packageFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        packageFilter.addDataScheme("package");
+        context.registerReceiverAsUser(mPackageReceiver, UserHandle.ALL, packageFilter,
+                null, null);
+
+        final IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_LOCALE_CHANGED);
+        filter.addAction(Intent.ACTION_EXTERNAL_APPLICATIONS_AVAILABLE);
+        filter.addAction(Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE);
+        context.registerReceiverAsUser(mPackageReceiver, UserHandle.ALL, filter, null, null);
+
+        context.registerComponentCallbacks(mComponentCallbacks);
+    }
+
+    /**
+     * Return the label of the given application, loading it if it is not cached.
+     */
+    public CharSequence getLabel(ApplicationInfo info) {
+        return getEntry(info).label;
+    }
+
+    /**
+     * Return the icon of the given application, badged for the user of the application and
+     * loading it if it is not cached. The returned Drawable is not shared with other callers.
+     */
+    public Drawable getIcon(ApplicationInfo info) {
+        return mPm.getUserBadgedIcon(getUnbadgedIcon(info),
+                new UserHandle(UserHandle.getUserId(info.uid)));
+    }
+
+    /**
+     * Same as {@link #getIcon(ApplicationInfo)}, but the icon is not badged.
+     */
+    public Drawable getUnbadgedIcon(ApplicationInfo info) {
+        return newDrawable(getEntry(info).icon);
+    }
+
+    /**
+     * Return the cached unbadged icon of the given package and user, or null if it is not
+     * cached.
+     */
+    public Drawable peekUnbadgedIcon(String packageName, int userId) {
+        final Entry entry = mCache.get(buildKey(packageName, userId));
+        return entry != null ? newDrawable(entry.icon) : null;
+    }
+
+    /**
+     * Drop the labels and icons of the given package, for every user.
+     */
+    public void invalidatePackage(String packageName) {
+        final String prefix = packageName + ":";
+        for (Map.Entry<String, Entry> entry : mCache.snapshot().entrySet()) {
+            final String key = entry.getKey();
+            if (key.startsWith(prefix) && key.indexOf(':', prefix.length()) < 0) {
+                mCache.remove(key);
+            }
+        }
+    }
+
+    public void clear() {
+        mCache.evictAll();
+    }
+
+    public void dump(String prefix, PrintWriter pw) {
+        synchronized (this) {
+            pw.println(prefix + "AppLabelIconCache: entries=" + mCache.snapshot().size()
+                    + " size=" + mCache.size() + "/" + mCache.maxSize() + " bytes"
+                    + " hits=" + mHitCount + " misses=" + mMissCount
+                    + " evictions=" + mCache.evictionCount());
+        }
+    }
+
+    private Entry getEntry(ApplicationInfo info) {
+        final String key = buildKey(info.packageName, UserHandle.getUserId(info.uid));
+        Entry entry = mCache.get(key);
+        if (entry != null) {
+            synchronized (this) {
+                mHitCount++;
+            }
+            return entry;
+        }
+        synchronized (this) {
+            mMissCount++;
+        }
+
+        CharSequence label;
+        try {
+            label = info.loadLabel(mPm);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Error loading label for " + info.packageName, e);
+            label = info.packageName;
+        }
+        entry = new Entry(label, info.loadUnbadgedIcon(mPm));
+        mCache.put(key, entry);
+        return entry;
+    }
+
+    private static String buildKey(String packageName, int userId) {
+        return packageName + ":" + userId;
+    }
+
+    private static Drawable newDrawable(Drawable icon) {
+        if (icon == null) {
+            return null;
+        }
+        final Drawable.ConstantState state = icon.getConstantState();
+        return state != null ? state.newDrawable() : icon;
+    }
+
+    private static int getIconSize(Drawable icon) {
+        if (icon instanceof BitmapDrawable) {
+            final Bitmap bitmap = ((BitmapDrawable) icon).getBitmap();
+            if (bitmap != null) {
+                return bitmap.getAllocationByteCount();
+            }
+        }
+        if (icon != null && icon.getIntrinsicWidth() > 0 && icon.getIntrinsicHeight() > 0) {
+            return icon.getIntrinsicWidth() * icon.getIntrinsicHeight() * 4;
+        }
+        return 0;
+    }
+}
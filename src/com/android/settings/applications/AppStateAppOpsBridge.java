@@ -27,6 +27,7 @@ import android.os.RemoteException;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.Log;
 import android.util.SparseArray;
 
@@ -80,6 +81,27 @@ public abstract class AppStateAppOpsBridge extends AppStateBaseBridge {
 
     protected abstract void updateExtraInfo(AppEntry app, String pkg, int uid);
 
+    @Override
+    protected boolean canLoadInParallel() {
+        // getPermissionInfo() is only waiting on the PackageManager and the AppOpsService
+        return true;
+    }
+
+    @Override
+    protected void loadExtraInfo(List<AppEntry> apps) {
+        super.loadExtraInfo(apps);
+        // As in loadAllExtraInfo(), the packages that do not request the permission have no
+        // permission state.
+        final int N = apps.size();
+        for (int i = 0; i < N; i++) {
+            AppEntry app = apps.get(i);
+            if (app.extraInfo instanceof PermissionState
+                    && !((PermissionState) app.extraInfo).permissionDeclared) {
+                app.extraInfo = null;
+            }
+        }
+    }
+
     private boolean doesAnyPermissionMatch(String permissionToMatch, String[] permissions) {
         for (String permission : permissions) {
             if (permissionToMatch.equals(permission)) {
@@ -122,15 +144,29 @@ public abstract class AppStateAppOpsBridge extends AppStateBaseBridge {
 
     @Override
     protected void loadAllExtraInfo() {
-        SparseArray<ArrayMap<String, PermissionState>> entries = getEntries();
+        // The apps of the session are the available packages of every profile, so there is no
+        // need to ask the PackageManager about each package.
+        List<AppEntry> apps = mAppSession.getAllApps();
+        final int N = apps.size();
+        SparseArray<ArraySet<String>> availablePackages = new SparseArray<>();
+        for (int i = 0; i < N; i++) {
+            AppEntry app = apps.get(i);
+            int userId = UserHandle.getUserId(app.info.uid);
+            ArraySet<String> userPackages = availablePackages.get(userId);
+            if (userPackages == null) {
+                userPackages = new ArraySet<>();
+                availablePackages.put(userId, userPackages);
+            }
+            userPackages.add(app.info.packageName);
+        }
+
+        SparseArray<ArrayMap<String, PermissionState>> entries = getEntries(availablePackages);
 
         // Load state info.
         loadPermissionsStates(entries);
         loadAppOpsStates(entries);
 
         // Map states to application info.
-        List<AppEntry> apps = mAppSession.getAllApps();
-        final int N = apps.size();
         for (int i = 0; i < N; i++) {
             AppEntry app = apps.get(i);
             int userId = UserHandle.getUserId(app.info.uid);
@@ -139,11 +175,17 @@ public abstract class AppStateAppOpsBridge extends AppStateBaseBridge {
         }
     }
 
+    private SparseArray<ArrayMap<String, PermissionState>> getEntries() {
+        return getEntries(null);
+    }
+
     /*
      * Gets a sparse array that describes every user on the device and all the associated packages
-     * of each user, together with the packages available for that user.
+     * of each user, together with the packages available for that user. If availablePackages is
+     * null, the PackageManager is asked whether each package is available.
      */
-    private SparseArray<ArrayMap<String, PermissionState>> getEntries() {
+    private SparseArray<ArrayMap<String, PermissionState>> getEntries(
+            SparseArray<ArraySet<String>> availablePackages) {
         try {
             Set<String> packagesSet = new HashSet<>();
             for (String permission : mPermissions) {
@@ -165,9 +207,16 @@ public abstract class AppStateAppOpsBridge extends AppStateBaseBridge {
                 final ArrayMap<String, PermissionState> entriesForProfile = new ArrayMap<>();
                 final int profileId = profile.getIdentifier();
                 entries.put(profileId, entriesForProfile);
+                final ArraySet<String> availableForProfile = availablePackages != null
+                        ? availablePackages.get(profileId) : null;
                 for (final String packageName : packagesSet) {
-                    final boolean isAvailable = mIPackageManager.isPackageAvailable(packageName,
-                            profileId);
+                    final boolean isAvailable;
+                    if (availablePackages != null) {
+                        isAvailable = availableForProfile != null
+                                && availableForProfile.contains(packageName);
+                    } else {
+                        isAvailable = mIPackageManager.isPackageAvailable(packageName, profileId);
+                    }
                     if (!shouldIgnorePackage(packageName) && isAvailable) {
                         final PermissionState newEntry = new PermissionState(packageName, profile);
                         entriesForProfile.put(packageName, newEntry);
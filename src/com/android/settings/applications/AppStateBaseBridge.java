@@ -18,24 +18,38 @@ package com.android.settings.applications;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
+import android.util.ArraySet;
+import android.util.Log;
 
+import com.android.settings.BackgroundExecutor;
 import com.android.settingslib.applications.ApplicationsState;
 import com.android.settingslib.applications.ApplicationsState.AppEntry;
 import com.android.settingslib.applications.ApplicationsState.Session;
 
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Common base class for bridging information to ApplicationsState.
  */
 public abstract class AppStateBaseBridge implements ApplicationsState.Callbacks {
 
+    private static final String TAG = "AppStateBaseBridge";
+    private static final boolean DEBUG = false;
+
     protected final ApplicationsState mAppState;
     protected final Session mAppSession;
     protected final Callback mCallback;
     protected final BackgroundHandler mHandler;
     protected final MainHandler mMainHandler;
 
+    // Entries whose extra info is loaded, only used on the background looper
+    private final ArraySet<AppEntry> mLoadedEntries = new ArraySet<>();
+
     public AppStateBaseBridge(ApplicationsState appState, Callback callback) {
         mAppState = appState;
         mAppSession = mAppState != null ? mAppState.newSession(this) : null;
@@ -66,7 +80,9 @@ public abstract class AppStateBaseBridge implements ApplicationsState.Callbacks
 
     @Override
     public void onPackageListChanged() {
-        mHandler.sendEmptyMessage(BackgroundHandler.MSG_LOAD_ALL);
+        // Only the added and changed packages need to be loaded
+        mHandler.removeMessages(BackgroundHandler.MSG_LOAD_CHANGED);
+        mHandler.sendEmptyMessage(BackgroundHandler.MSG_LOAD_CHANGED);
     }
 
     @Override
@@ -107,6 +123,90 @@ public abstract class AppStateBaseBridge implements ApplicationsState.Callbacks
     protected abstract void loadAllExtraInfo();
     protected abstract void updateExtraInfo(AppEntry app, String pkg, int uid);
 
+    /**
+     * Whether {@link #updateExtraInfo} can be called for several apps at the same time. Bridges
+     * whose per-app work is mostly waiting on other processes should return true.
+     */
+    protected boolean canLoadInParallel() {
+        return false;
+    }
+
+    /**
+     * Call {@link #updateExtraInfo} for each of the given apps, on the shared background threads
+     * if {@link #canLoadInParallel()}. Must be called on the background looper, which is blocked
+     * until all apps are loaded so that the ApplicationsState does not update its entries at the
+     * same time.
+     */
+    protected void loadExtraInfo(final List<AppEntry> apps) {
+        final int N = apps.size();
+        if (!canLoadInParallel() || N < 2) {
+            for (int i = 0; i < N; i++) {
+                AppEntry app = apps.get(i);
+                updateExtraInfo(app, app.info.packageName, app.info.uid);
+            }
+            return;
+        }
+
+        final ExecutorService executor = BackgroundExecutor.get();
+        final int workerCount = Math.min(BackgroundExecutor.getParallelism(), N);
+        final AtomicInteger nextIndex = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(workerCount);
+        for (int w = 0; w < workerCount; w++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        int i;
+                        while ((i = nextIndex.getAndIncrement()) < N) {
+                            AppEntry app = apps.get(i);
+                            updateExtraInfo(app, app.info.packageName, app.info.uid);
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+
+        // The workers write the entries, so wait for them even if interrupted.
+        boolean interrupted = false;
+        while (true) {
+            try {
+                done.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void loadChangedExtraInfo() {
+        ArrayList<AppEntry> apps = mAppSession.getAllApps();
+        final int N = apps.size();
+        // New and changed packages get new entries from the ApplicationsState
+        ArrayList<AppEntry> changedApps = new ArrayList<>();
+        for (int i = 0; i < N; i++) {
+            AppEntry app = apps.get(i);
+            if (!mLoadedEntries.contains(app)) {
+                changedApps.add(app);
+            }
+        }
+        loadExtraInfo(changedApps);
+        setLoadedEntries(apps);
+        if (DEBUG) {
+            Log.d(TAG, getClass().getSimpleName() + " loaded extra info of "
+                    + changedApps.size() + " changed apps");
+        }
+    }
+
+    private void setLoadedEntries(List<AppEntry> apps) {
+        mLoadedEntries.clear();
+        mLoadedEntries.addAll(apps);
+    }
+
     private class MainHandler extends Handler {
         private static final int MSG_INFO_UPDATED = 1;
 
@@ -123,6 +223,7 @@ public abstract class AppStateBaseBridge implements ApplicationsState.Callbacks
     private class BackgroundHandler extends Handler {
         private static final int MSG_LOAD_ALL = 1;
         private static final int MSG_FORCE_LOAD_PKG = 2;
+        private static final int MSG_LOAD_CHANGED = 3;
 
         public BackgroundHandler(Looper looper) {
             super(looper);
@@ -132,7 +233,23 @@ public abstract class AppStateBaseBridge implements ApplicationsState.Callbacks
         public void handleMessage(Message msg) {
             switch (msg.what) {
                 case MSG_LOAD_ALL:
+                    final long start = SystemClock.elapsedRealtime();
                     loadAllExtraInfo();
+                    setLoadedEntries(mAppSession.getAllApps());
+                    if (DEBUG) {
+                        Log.d(TAG, AppStateBaseBridge.this.getClass().getSimpleName()
+                                + " loaded extra info in "
+                                + (SystemClock.elapsedRealtime() - start) + " millis");
+                    }
+                    mMainHandler.sendEmptyMessage(MainHandler.MSG_INFO_UPDATED);
+                    break;
+                case MSG_LOAD_CHANGED:
+                    if (mLoadedEntries.isEmpty()) {
+                        // Nothing has been loaded yet
+                        sendEmptyMessage(MSG_LOAD_ALL);
+                        break;
+                    }
+                    loadChangedExtraInfo();
                     mMainHandler.sendEmptyMessage(MainHandler.MSG_INFO_UPDATED);
                     break;
                 case MSG_FORCE_LOAD_PKG:
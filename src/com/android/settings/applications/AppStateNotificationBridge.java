@@ -15,8 +15,6 @@
  */
 package com.android.settings.applications;
 
-import android.content.pm.PackageManager;
-
 import com.android.settings.notification.NotificationBackend;
 import com.android.settings.notification.NotificationBackend.AppRow;
 import com.android.settingslib.applications.ApplicationsState;
@@ -32,28 +30,28 @@ import java.util.ArrayList;
 public class AppStateNotificationBridge extends AppStateBaseBridge {
 
     private final NotificationBackend mNotifBackend;
-    private final PackageManager mPm;
 
-    public AppStateNotificationBridge(PackageManager pm, ApplicationsState appState,
-            Callback callback, NotificationBackend notifBackend) {
+    public AppStateNotificationBridge(ApplicationsState appState, Callback callback,
+            NotificationBackend notifBackend) {
         super(appState, callback);
-        mPm = pm;
         mNotifBackend = notifBackend;
     }
 
     @Override
     protected void loadAllExtraInfo() {
         ArrayList<AppEntry> apps = mAppSession.getAllApps();
-        final int N = apps.size();
-        for (int i = 0; i < N; i++) {
-            AppEntry app = apps.get(i);
-            app.extraInfo = mNotifBackend.loadAppRow(mPm, app.info);
-        }
+        loadExtraInfo(apps);
+    }
+
+    @Override
+    protected boolean canLoadInParallel() {
+        // Loading the state of an app is only waiting on the NotificationManager
+        return true;
     }
 
     @Override
     protected void updateExtraInfo(AppEntry app, String pkg, int uid) {
-        app.extraInfo = mNotifBackend.loadAppRow(mPm, app.info);
+        app.extraInfo = mNotifBackend.loadAppRowState(app.info);
     }
 
     public static final AppFilter FILTER_APP_NOTIFICATION_BLOCKED = new AppFilter() {
@@ -804,7 +804,7 @@ public class InstalledAppDetails extends AppInfoBase
 
     public static CharSequence getNotificationSummary(AppEntry appEntry, Context context,
             NotificationBackend backend) {
-        AppRow appRow = backend.loadAppRow(context.getPackageManager(), appEntry.info);
+        AppRow appRow = backend.loadAppRow(context, appEntry.info);
         return getNotificationSummary(appRow, context);
     }
 
@@ -23,6 +23,7 @@ import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
 import android.os.Bundle;
 import android.os.Environment;
+import android.os.Handler;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.preference.PreferenceFrameLayout;
@@ -35,7 +36,6 @@ import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
-import android.view.animation.AnimationUtils;
 import android.widget.AbsListView;
 import android.widget.AdapterView;
 import android.widget.AdapterView.OnItemClickListener;
@@ -712,8 +712,8 @@ public class ManageApplications extends InstrumentedFragment
         private final ArrayList<View> mActive = new ArrayList<View>();
         private final AppStateBaseBridge mExtraInfoBridge;
         private int mFilterMode;
-        private ArrayList<ApplicationsState.AppEntry> mBaseEntries;
-        private ArrayList<ApplicationsState.AppEntry> mEntries;
+        // Snapshot of the list, never modified once built
+        private volatile ArrayList<ApplicationsState.AppEntry> mEntries;
         private boolean mResumed;
         private int mLastSortMode=-1;
         private int mWhichSize = SIZE_TOTAL;
@@ -723,23 +723,26 @@ public class ManageApplications extends InstrumentedFragment
         private boolean mHasReceivedLoadEntries;
         private boolean mHasReceivedBridgeCallback;
 
+        // The list is filtered and sorted on the ApplicationsState background looper, like the
+        // ApplicationsState does it, so that the filters and comparators don't race with it.
+        private final Handler mBackgroundHandler;
+        private final Handler mMainHandler = new Handler();
+        // Incremented for each rebuild, only the latest one is built and published
+        private volatile int mRebuildGeneration;
+
         private Filter mFilter = new Filter() {
             @Override
             protected FilterResults performFiltering(CharSequence constraint) {
-                ArrayList<ApplicationsState.AppEntry> entries
-                        = applyPrefixFilter(constraint, mBaseEntries);
+                // The prefix is applied when the list is rebuilt
                 FilterResults fr = new FilterResults();
-                fr.values = entries;
-                fr.count = entries.size();
+                fr.values = constraint;
                 return fr;
             }
 
             @Override
-            @SuppressWarnings("unchecked")
             protected void publishResults(CharSequence constraint, FilterResults results) {
                 mCurFilterPrefix = constraint;
-                mEntries = (ArrayList<ApplicationsState.AppEntry>) results.values;
-                notifyDataSetChanged();
+                rebuild(false);
             }
         };
 
@@ -751,9 +754,10 @@ public class ManageApplications extends InstrumentedFragment
             mContext = manageApplications.getActivity();
             mPm = mContext.getPackageManager();
             mFilterMode = filterMode;
+            mBackgroundHandler = new Handler(mState.getBackgroundLooper());
             if (mManageApplications.mListType == LIST_TYPE_NOTIFICATION) {
-                mExtraInfoBridge = new AppStateNotificationBridge(mContext.getPackageManager(),
-                        mState, this, manageApplications.mNotifBackend);
+                mExtraInfoBridge = new AppStateNotificationBridge(mState, this,
+                        manageApplications.mNotifBackend);
             } else if (mManageApplications.mListType == LIST_TYPE_USAGE_ACCESS) {
                 mExtraInfoBridge = new AppStateUsageBridge(mContext, mState, this);
             } else if (mManageApplications.mListType == LIST_TYPE_HIGH_POWER) {
@@ -803,6 +807,9 @@ public class ManageApplications extends InstrumentedFragment
         }
 
         public void release() {
+            mRebuildGeneration++;
+            mBackgroundHandler.removeCallbacksAndMessages(null);
+            mMainHandler.removeCallbacksAndMessages(null);
             mSession.release();
             if (mExtraInfoBridge != null) {
                 mExtraInfoBridge.release();
@@ -858,21 +865,89 @@ public class ManageApplications extends InstrumentedFragment
                     comparatorObj = ApplicationsState.ALPHA_COMPARATOR;
                     break;
             }
-            ArrayList<ApplicationsState.AppEntry> entries
-                    = mSession.rebuild(filterObj, comparatorObj);
-            if (entries == null && !eraseold) {
-                // Don't have new list yet, but can continue using the old one.
+            final AppFilter filter = filterObj;
+            final Comparator<AppEntry> comparator = comparatorObj;
+            final CharSequence prefix = mCurFilterPrefix;
+            final boolean fullUpdate = eraseold;
+            final int generation = ++mRebuildGeneration;
+            mBackgroundHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (generation != mRebuildGeneration) {
+                        // A newer rebuild is pending.
+                        return;
+                    }
+                    final ArrayList<AppEntry> allApps = mSession.getAllApps();
+                    final ArrayList<AppEntry> entries = applyPrefixFilter(prefix,
+                            buildEntries(allApps, filter, comparator));
+                    final ArrayList<AppEntry> oldEntries = mEntries;
+                    final boolean sameItems = !fullUpdate && hasSameItems(oldEntries, entries);
+                    final int allAppsCount = allApps.size();
+                    mMainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            onRebuildFinished(generation, entries,
+                                    sameItems && oldEntries == mEntries, allAppsCount);
+                        }
+                    });
+                }
+            });
+        }
+
+        /**
+         * Filter and sort the entries, on the background looper.
+         */
+        private ArrayList<AppEntry> buildEntries(ArrayList<AppEntry> allApps, AppFilter filter,
+                Comparator<AppEntry> comparator) {
+            filter.init();
+            final ArrayList<AppEntry> entries = new ArrayList<AppEntry>();
+            final int N = allApps.size();
+            for (int i = 0; i < N; i++) {
+                final AppEntry entry = allApps.get(i);
+                synchronized (entry) {
+                    entry.ensureLabel(mContext);
+                }
+                if (filter.filterApp(entry)) {
+                    entries.add(entry);
+                }
+            }
+            Collections.sort(entries, comparator);
+            return entries;
+        }
+
+        /**
+         * Whether the two lists have the same entries in the same order, in which case the
+         * list views don't need to be rebound, only refreshed.
+         */
+        private static boolean hasSameItems(ArrayList<AppEntry> oldEntries,
+                ArrayList<AppEntry> newEntries) {
+            if (oldEntries == null || oldEntries.size() != newEntries.size()) {
+                return false;
+            }
+            final int N = newEntries.size();
+            for (int i = 0; i < N; i++) {
+                if (oldEntries.get(i) != newEntries.get(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void onRebuildFinished(int generation, ArrayList<AppEntry> entries,
+                boolean sameItems, int allAppsCount) {
+            if (generation != mRebuildGeneration) {
                 return;
             }
-            mBaseEntries = entries;
-            if (mBaseEntries != null) {
-                mEntries = applyPrefixFilter(mCurFilterPrefix, mBaseEntries);
+            mEntries = entries;
+            if (sameItems) {
+                // Only the state of the entries may have changed, e.g. their size or their
+                // extra info, so update the views that are shown.
+                refreshActiveViews();
             } else {
-                mEntries = null;
+                notifyDataSetChanged();
             }
-            notifyDataSetChanged();
 
-            if (mSession.getAllApps().size() != 0
+            if (allAppsCount != 0
                     && mManageApplications.mListContainer.getVisibility() != View.VISIBLE) {
                 Utils.handleLoadingContainer(mManageApplications.mLoadingContainer,
                         mManageApplications.mListContainer, true, true);
@@ -885,6 +960,16 @@ public class ManageApplications extends InstrumentedFragment
             mManageApplications.setHasDisabled(mState.haveDisabledApps());
         }
 
+        private void refreshActiveViews() {
+            for (int i = 0; i < mActive.size(); i++) {
+                final View view = mActive.get(i);
+                final AppViewHolder holder = (AppViewHolder) view.getTag();
+                synchronized (holder.entry) {
+                    updateSummary(holder);
+                }
+            }
+        }
+
         private void updateLoading() {
             Utils.handleLoadingContainer(mManageApplications.mLoadingContainer,
                     mManageApplications.mListContainer,
@@ -924,17 +1009,7 @@ public class ManageApplications extends InstrumentedFragment
 
         @Override
         public void onRebuildComplete(ArrayList<AppEntry> apps) {
-            if (mManageApplications.mLoadingContainer.getVisibility() == View.VISIBLE) {
-                mManageApplications.mLoadingContainer.startAnimation(AnimationUtils.loadAnimation(
-                        mContext, android.R.anim.fade_out));
-                mManageApplications.mListContainer.startAnimation(AnimationUtils.loadAnimation(
-                        mContext, android.R.anim.fade_in));
-            }
-            mManageApplications.mListContainer.setVisibility(View.VISIBLE);
-            mManageApplications.mLoadingContainer.setVisibility(View.GONE);
-            mBaseEntries = apps;
-            mEntries = applyPrefixFilter(mCurFilterPrefix, mBaseEntries);
-            notifyDataSetChanged();
+            // The list is rebuilt by the adapter, see rebuild(boolean).
         }
 
         @Override
@@ -38,9 +38,11 @@ import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.text.format.Formatter;
+import android.util.ArrayMap;
 import android.util.Log;
 import android.util.SparseArray;
 
@@ -48,11 +50,10 @@ import com.android.settings.R;
 import com.android.settings.Utils;
 import com.android.settingslib.applications.InterestingConfigChanges;
 
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 
 /**
@@ -62,6 +63,7 @@ import java.util.List;
 public class RunningState {
     static final String TAG = "RunningState";
     static final boolean DEBUG_COMPARE = false;
+    static final boolean DEBUG_TIMING = false;
 
     static Object sGlobalLock = new Object();
     static RunningState sInstance;
@@ -74,6 +76,14 @@ public class RunningState {
     static final long TIME_UPDATE_DELAY = 1000;
     static final long CONTENTS_UPDATE_DELAY = 2000;
 
+    // Longest delay between content updates, reached by backing off while
+    // the running processes and services do not change.
+    static final long MAX_CONTENTS_UPDATE_DELAY = 16000;
+
+    // Interval at which the memory of processes that did not change is
+    // queried again.
+    static final long FULL_PSS_UPDATE_INTERVAL = 20000;
+
     static final int MAX_SERVICES = 100;
 
     final Context mApplicationContext;
@@ -91,8 +101,8 @@ public class RunningState {
     // by uid and name.  Note that this mapping does not change even across
     // service restarts, and during a restart there will still be a process
     // entry.
-    final SparseArray<HashMap<String, ProcessItem>> mServiceProcessesByName
-            = new SparseArray<HashMap<String, ProcessItem>>();
+    final SparseArray<ArrayMap<String, ProcessItem>> mServiceProcessesByName
+            = new SparseArray<ArrayMap<String, ProcessItem>>();
     
     // Processes that are hosting a service we are interested in, organized
     // by their pid.  These disappear and re-appear as services are restarted.
@@ -126,20 +136,34 @@ public class RunningState {
     final SparseArray<MergedItem> mOtherUserBackgroundItems = new SparseArray<MergedItem>();
 
     static class AppProcessInfo {
-        final ActivityManager.RunningAppProcessInfo info;
+        ActivityManager.RunningAppProcessInfo info;
         boolean hasServices;
         boolean hasForegroundServices;
 
-        AppProcessInfo(ActivityManager.RunningAppProcessInfo _info) {
+        void set(ActivityManager.RunningAppProcessInfo _info) {
             info = _info;
+            hasServices = false;
+            hasForegroundServices = false;
         }
     }
 
-    // Temporary structure used when updating above information.
+    // Temporary structures used when updating above information, kept
+    // across updates so that they are not allocated again each time.
     final SparseArray<AppProcessInfo> mTmpAppProcesses = new SparseArray<AppProcessInfo>();
+    final ArrayList<AppProcessInfo> mAppProcessInfoPool = new ArrayList<AppProcessInfo>();
+    final ArrayList<ProcessItem> mTmpSortedProcesses = new ArrayList<ProcessItem>();
+    int[] mTmpPids = new int[0];
 
     int mSequence = 0;
 
+    // Fingerprint of the running processes and services seen by the last
+    // update, used to skip updates when nothing changed.
+    boolean mHaveFingerprint;
+    int mFingerprint;
+
+    // Uptime at which the memory of all processes was last queried.
+    long mLastFullPssTime;
+
     final Comparator<RunningState.MergedItem> mBackgroundComparator
         = new Comparator<RunningState.MergedItem>() {
             @Override
@@ -219,6 +243,18 @@ public class RunningState {
     int mNumServiceProcesses;
     long mServiceProcessMemory;
 
+    // Delay until the next content update, grows while nothing changes.
+    long mContentsUpdateDelay = CONTENTS_UPDATE_DELAY;
+
+    // Timings of the last update, for profiling.
+    int mNumUpdates;
+    int mNumSkippedUpdates;
+    long mLastFetchTime;
+    long mLastReconcileTime;
+    long mLastPssTime;
+    int mLastPssQueried;
+    int mLastPssReused;
+
     // ----- BACKGROUND MONITORING THREAD -----
 
     final HandlerThread mBackgroundThread;
@@ -244,7 +280,11 @@ public class RunningState {
                     mHandler.sendMessage(cmd);
                     removeMessages(MSG_UPDATE_CONTENTS);
                     msg = obtainMessage(MSG_UPDATE_CONTENTS);
-                    sendMessageDelayed(msg, CONTENTS_UPDATE_DELAY);
+                    final long delay;
+                    synchronized (mLock) {
+                        delay = mContentsUpdateDelay;
+                    }
+                    sendMessageDelayed(msg, delay);
                     break;
             }
         }
@@ -350,6 +390,8 @@ public class RunningState {
         long mActiveSince;
         long mSize;
         String mSizeStr;
+        // Size that mSizeStr was formatted from.
+        long mSizeStrSize = -1;
         String mCurSizeStr;
         boolean mNeedDivider;
         boolean mBackground;
@@ -359,7 +401,22 @@ public class RunningState {
             mUserId = userId;
         }
 
+        /**
+         * Format mSize into mSizeStr, unless it was already formatted.
+         */
+        void updateSizeStr(Context context) {
+            if (mSizeStrSize != mSize || mSizeStr == null) {
+                mSizeStr = Formatter.formatShortFileSize(context, mSize);
+                mSizeStrSize = mSize;
+            }
+        }
+
         public Drawable loadIcon(Context context, RunningState state) {
+            if (mPackageInfo instanceof ApplicationInfo
+                    && UserHandle.getUserId(((ApplicationInfo) mPackageInfo).uid) == mUserId) {
+                return AppLabelIconCache.getInstance(context).getIcon(
+                        (ApplicationInfo) mPackageInfo);
+            }
             if (mPackageInfo != null) {
                 Drawable unbadgedIcon = mPackageInfo.loadUnbadgedIcon(state.mPm);
                 Drawable icon = state.mPm.getUserBadgedIcon(unbadgedIcon, new UserHandle(mUserId));
@@ -382,8 +439,8 @@ public class RunningState {
     }
 
     static class ProcessItem extends BaseItem {
-        final HashMap<ComponentName, ServiceItem> mServices
-                = new HashMap<ComponentName, ServiceItem>();
+        final ArrayMap<ComponentName, ServiceItem> mServices
+                = new ArrayMap<ComponentName, ServiceItem>();
         final SparseArray<ProcessItem> mDependentProcesses
                 = new SparseArray<ProcessItem>();
         
@@ -396,9 +453,16 @@ public class RunningState {
         
         int mRunningSeq;
         ActivityManager.RunningAppProcessInfo mRunningProcessInfo;
+
+        // Last memory queried for this process in kB, or -1 if it needs to
+        // be queried, and the state of the process at that time.
+        long mPss = -1;
+        int mPssState;
         
         MergedItem mMergedItem;
 
+        final AppLabelIconCache mLabelIconCache;
+
         boolean mInteresting;
 
         // Purely for sorting.
@@ -412,6 +476,7 @@ public class RunningState {
                     R.string.service_process_name, processName);
             mUid = uid;
             mProcessName = processName;
+            mLabelIconCache = AppLabelIconCache.getInstance(context);
         }
         
         void ensureLabel(PackageManager pm) {
@@ -423,7 +488,7 @@ public class RunningState {
                 ApplicationInfo ai = pm.getApplicationInfo(mProcessName,
                         PackageManager.GET_UNINSTALLED_PACKAGES);
                 if (ai.uid == mUid) {
-                    mDisplayLabel = ai.loadLabel(pm);
+                    mDisplayLabel = mLabelIconCache.getLabel(ai);
                     mLabel = mDisplayLabel.toString();
                     mPackageInfo = ai;
                     return;
@@ -440,7 +505,7 @@ public class RunningState {
                 try {
                     ApplicationInfo ai = pm.getApplicationInfo(pkgs[0],
                             PackageManager.GET_UNINSTALLED_PACKAGES);
-                    mDisplayLabel = ai.loadLabel(pm);
+                    mDisplayLabel = mLabelIconCache.getLabel(ai);
                     mLabel = mDisplayLabel.toString();
                     mPackageInfo = ai;
                     return;
@@ -470,10 +535,9 @@ public class RunningState {
             // If still don't have anything to display, just use the
             // service info.
             if (mServices.size() > 0) {
-                ApplicationInfo ai = mServices.values().iterator().next()
-                        .mServiceInfo.applicationInfo;
+                ApplicationInfo ai = mServices.valueAt(0).mServiceInfo.applicationInfo;
                 mPackageInfo = ai;
-                mDisplayLabel = mPackageInfo.loadLabel(pm);
+                mDisplayLabel = mLabelIconCache.getLabel(ai);
                 mLabel = mDisplayLabel.toString();
                 return;
             }
@@ -482,7 +546,7 @@ public class RunningState {
             try {
                 ApplicationInfo ai = pm.getApplicationInfo(pkgs[0],
                         PackageManager.GET_UNINSTALLED_PACKAGES);
-                mDisplayLabel = ai.loadLabel(pm);
+                mDisplayLabel = mLabelIconCache.getLabel(ai);
                 mLabel = mDisplayLabel.toString();
                 mPackageInfo = ai;
                 return;
@@ -549,18 +613,37 @@ public class RunningState {
             return changed;
         }
         
+        /**
+         * Return the item showing this process on its own, creating it the
+         * first time.
+         */
+        MergedItem ensureMergedItem() {
+            if (mMergedItem == null) {
+                mMergedItem = new MergedItem(mUserId);
+                mMergedItem.mProcess = this;
+            }
+            return mMergedItem;
+        }
+
+        /**
+         * State of this process that affects its memory; its memory is
+         * queried again when this changes.
+         */
+        int getPssState() {
+            int state = mPid;
+            if (mRunningProcessInfo != null) {
+                state = 31 * state + mRunningProcessInfo.importance;
+            }
+            return state;
+        }
+
         boolean updateSize(Context context, long pss, int curSeq) {
             mSize = pss * 1024;
             if (mCurSeq == curSeq) {
-                String sizeStr = Formatter.formatShortFileSize(
-                        context, mSize);
-                if (!sizeStr.equals(mSizeStr)){
-                    mSizeStr = sizeStr;
-                    // We update this on the second tick where we update just
-                    // the text in the current items, so no need to say we
-                    // changed here.
-                    return false;
-                }
+                // We update this on the second tick where we update just
+                // the text in the current items, so no need to say we
+                // changed here.
+                updateSizeStr(context);
             }
             return false;
         }
@@ -695,15 +778,10 @@ public class RunningState {
                 }
             }
             
-            String sizeStr = Formatter.formatShortFileSize(
-                    context, mSize);
-            if (!sizeStr.equals(mSizeStr)){
-                mSizeStr = sizeStr;
-                // We update this on the second tick where we update just
-                // the text in the current items, so no need to say we
-                // changed here.
-                return false;
-            }
+            // We update this on the second tick where we update just
+            // the text in the current items, so no need to say we
+            // changed here.
+            updateSizeStr(context);
             return false;
         }
 
@@ -802,6 +880,7 @@ public class RunningState {
                 mBackgroundHandler.removeMessages(MSG_UPDATE_CONTENTS);
                 mBackgroundHandler.sendEmptyMessage(MSG_RESET_CONTENTS);
             }
+            mContentsUpdateDelay = CONTENTS_UPDATE_DELAY;
             if (!mBackgroundHandler.hasMessages(MSG_UPDATE_CONTENTS)) {
                 mBackgroundHandler.sendEmptyMessage(MSG_UPDATE_CONTENTS);
             }
@@ -811,6 +890,7 @@ public class RunningState {
 
     void updateNow() {
         synchronized (mLock) {
+            mContentsUpdateDelay = CONTENTS_UPDATE_DELAY;
             mBackgroundHandler.removeMessages(MSG_UPDATE_CONTENTS);
             mBackgroundHandler.sendEmptyMessage(MSG_UPDATE_CONTENTS);
         }
@@ -862,6 +942,42 @@ public class RunningState {
         mRunningProcesses.clear();
         mProcessItems.clear();
         mAllProcessItems.clear();
+        mHaveFingerprint = false;
+        mLastFullPssTime = 0;
+    }
+
+    /**
+     * Compute a cheap fingerprint of the running services and processes, that
+     * changes when anything shown on screen may have changed.
+     */
+    private static int computeFingerprint(List<ActivityManager.RunningServiceInfo> services,
+            int numServices, List<ActivityManager.RunningAppProcessInfo> processes,
+            int numProcesses) {
+        int hash = 17;
+        for (int i = 0; i < numServices; i++) {
+            final ActivityManager.RunningServiceInfo si = services.get(i);
+            hash = 31 * hash + si.pid;
+            hash = 31 * hash + si.uid;
+            hash = 31 * hash + si.service.hashCode();
+            hash = 31 * hash + (int) (si.restarting ^ (si.restarting >>> 32));
+            hash = 31 * hash + (si.started ? 1 : 0);
+            hash = 31 * hash + (si.foreground ? 1 : 0);
+            hash = 31 * hash + si.clientCount;
+            hash = 31 * hash + si.clientLabel;
+            hash = 31 * hash + si.crashCount;
+            hash = 31 * hash + (int) (si.activeSince ^ (si.activeSince >>> 32));
+        }
+        for (int i = 0; i < numProcesses; i++) {
+            final ActivityManager.RunningAppProcessInfo pi = processes.get(i);
+            hash = 31 * hash + pi.pid;
+            hash = 31 * hash + pi.uid;
+            hash = 31 * hash + pi.importance;
+            hash = 31 * hash + pi.importanceReasonPid;
+            hash = 31 * hash + pi.importanceReasonCode;
+            hash = 31 * hash + pi.lru;
+            hash = 31 * hash + pi.flags;
+        }
+        return hash;
     }
 
     private void addOtherUserItem(Context context, ArrayList<MergedItem> newMergedItems,
@@ -895,9 +1011,8 @@ public class RunningState {
 
     private boolean update(Context context, ActivityManager am) {
         final PackageManager pm = context.getPackageManager();
+        final long fetchStart = SystemClock.uptimeMillis();
 
-        mSequence++;
-        
         boolean changed = false;
 
         // Retrieve list of services, filtering out anything that definitely
@@ -932,10 +1047,42 @@ public class RunningState {
         List<ActivityManager.RunningAppProcessInfo> processes
                 = am.getRunningAppProcesses();
         final int NP = processes != null ? processes.size() : 0;
+
+        // Skip the rest of the update if nothing changed since the last one,
+        // unless it is time to query the memory of all processes again.
+        final long reconcileStart = SystemClock.uptimeMillis();
+        final int fingerprint = computeFingerprint(services, NS, processes, NP);
+        final boolean fullPssUpdate =
+                reconcileStart - mLastFullPssTime >= FULL_PSS_UPDATE_INTERVAL;
+        final boolean stateChanged = !mHaveFingerprint || fingerprint != mFingerprint;
+        if (!stateChanged && !fullPssUpdate) {
+            synchronized (mLock) {
+                mNumUpdates++;
+                mNumSkippedUpdates++;
+                mLastFetchTime = reconcileStart - fetchStart;
+                mContentsUpdateDelay = Math.min(mContentsUpdateDelay * 2,
+                        MAX_CONTENTS_UPDATE_DELAY);
+            }
+            if (DEBUG_TIMING) {
+                Log.d(TAG, "Nothing changed, skipped update; fetch took "
+                        + (reconcileStart - fetchStart) + " ms");
+            }
+            return false;
+        }
+        mHaveFingerprint = true;
+        mFingerprint = fingerprint;
+
+        mSequence++;
+
         mTmpAppProcesses.clear();
         for (int i=0; i<NP; i++) {
             ActivityManager.RunningAppProcessInfo pi = processes.get(i);
-            mTmpAppProcesses.put(pi.pid, new AppProcessInfo(pi));
+            if (i == mAppProcessInfoPool.size()) {
+                mAppProcessInfoPool.add(new AppProcessInfo());
+            }
+            AppProcessInfo ainfo = mAppProcessInfoPool.get(i);
+            ainfo.set(pi);
+            mTmpAppProcesses.put(pi.pid, ainfo);
         }
 
         // Initial iteration through running services to collect per-process
@@ -990,9 +1137,9 @@ public class RunningState {
                 }
             }
 
-            HashMap<String, ProcessItem> procs = mServiceProcessesByName.get(si.uid);
+            ArrayMap<String, ProcessItem> procs = mServiceProcessesByName.get(si.uid);
             if (procs == null) {
-                procs = new HashMap<String, ProcessItem>();
+                procs = new ArrayMap<String, ProcessItem>();
                 mServiceProcessesByName.put(si.uid, procs);
             }
             ProcessItem proc = procs.get(si.process);
@@ -1110,12 +1257,11 @@ public class RunningState {
         }
         
         // Look for services and their primary processes that no longer exist...
-        ArrayList<Integer> uidToDelete = null;
-        for (int i=0; i<mServiceProcessesByName.size(); i++) {
-            HashMap<String, ProcessItem> procs = mServiceProcessesByName.valueAt(i);
-            Iterator<ProcessItem> pit = procs.values().iterator();
-            while (pit.hasNext()) {
-                ProcessItem pi = pit.next();
+        // Walk backwards so that entries can be removed in place.
+        for (int i=mServiceProcessesByName.size()-1; i>=0; i--) {
+            ArrayMap<String, ProcessItem> procs = mServiceProcessesByName.valueAt(i);
+            for (int j=procs.size()-1; j>=0; j--) {
+                ProcessItem pi = procs.valueAt(j);
                 if (pi.mCurSeq == mSequence) {
                     pi.ensureLabel(pm);
                     if (pi.mPid == 0) {
@@ -1125,45 +1271,37 @@ public class RunningState {
                     }
                 } else {
                     changed = true;
-                    pit.remove();
-                    if (procs.size() == 0) {
-                        if (uidToDelete == null) {
-                            uidToDelete = new ArrayList<Integer>();
-                        }
-                        uidToDelete.add(mServiceProcessesByName.keyAt(i));
-                    }
+                    procs.removeAt(j);
                     if (pi.mPid != 0) {
                         mServiceProcessesByPid.remove(pi.mPid);
                     }
                     continue;
                 }
-                Iterator<ServiceItem> sit = pi.mServices.values().iterator();
-                while (sit.hasNext()) {
-                    ServiceItem si = sit.next();
-                    if (si.mCurSeq != mSequence) {
+                for (int k=pi.mServices.size()-1; k>=0; k--) {
+                    if (pi.mServices.valueAt(k).mCurSeq != mSequence) {
                         changed = true;
-                        sit.remove();
+                        pi.mServices.removeAt(k);
                     }
                 }
             }
-        }
-        
-        if (uidToDelete != null) {
-            for (int i = 0; i < uidToDelete.size(); i++) {
-                int uid = uidToDelete.get(i);
-                mServiceProcessesByName.remove(uid);
+            if (procs.size() == 0) {
+                mServiceProcessesByName.removeAt(i);
             }
         }
 
         if (changed) {
             // First determine an order for the services.
-            ArrayList<ProcessItem> sortedProcesses = new ArrayList<ProcessItem>();
+            final ArrayList<ProcessItem> sortedProcesses = mTmpSortedProcesses;
+            sortedProcesses.clear();
             for (int i=0; i<mServiceProcessesByName.size(); i++) {
-                for (ProcessItem pi : mServiceProcessesByName.valueAt(i).values()) {
+                ArrayMap<String, ProcessItem> procs = mServiceProcessesByName.valueAt(i);
+                for (int j=0; j<procs.size(); j++) {
+                    ProcessItem pi = procs.valueAt(j);
                     pi.mIsSystem = false;
                     pi.mIsStarted = true;
                     pi.mActiveSince = Long.MAX_VALUE;
-                    for (ServiceItem si : pi.mServices.values()) {
+                    for (int k=0; k<pi.mServices.size(); k++) {
+                        ServiceItem si = pi.mServices.valueAt(k);
                         if (si.mServiceInfo != null
                                 && (si.mServiceInfo.applicationInfo.flags
                                         & ApplicationInfo.FLAG_SYSTEM) != 0) {
@@ -1203,7 +1341,8 @@ public class RunningState {
                 MergedItem mergedItem = null;
                 boolean haveAllMerged = false;
                 boolean needDivider = false;
-                for (ServiceItem si : pi.mServices.values()) {
+                for (int k=0; k<pi.mServices.size(); k++) {
+                    ServiceItem si = pi.mServices.valueAt(k);
                     si.mNeedDivider = needDivider;
                     needDivider = true;
                     newItems.add(si);
@@ -1221,7 +1360,8 @@ public class RunningState {
                         || mergedItem.mServices.size() != pi.mServices.size()) {
                     // Whoops, we need to build a new MergedItem!
                     mergedItem = new MergedItem(pi.mUserId);
-                    for (ServiceItem si : pi.mServices.values()) {
+                    for (int k=0; k<pi.mServices.size(); k++) {
+                        ServiceItem si = pi.mServices.valueAt(k);
                         mergedItem.mServices.add(si);
                         si.mMergedItem = mergedItem;
                     }
@@ -1246,10 +1386,7 @@ public class RunningState {
             for (int i=0; i<NHP; i++) {
                 ProcessItem proc = mInterestingProcesses.get(i);
                 if (proc.mClient == null && proc.mServices.size() <= 0) {
-                    if (proc.mMergedItem == null) {
-                        proc.mMergedItem = new MergedItem(proc.mUserId);
-                        proc.mMergedItem.mProcess = proc;
-                    }
+                    proc.ensureMergedItem();
                     proc.mMergedItem.update(context, false);
                     if (proc.mMergedItem.mUserId != mMyUserId) {
                         addOtherUserItem(context, newMergedItems, mOtherUserMergedItems,
@@ -1307,24 +1444,57 @@ public class RunningState {
             }
         }
         
+        final long pssStart = SystemClock.uptimeMillis();
         long backgroundProcessMemory = 0;
         long foregroundProcessMemory = 0;
         long serviceProcessMemory = 0;
         ArrayList<MergedItem> newBackgroundItems = null;
         ArrayList<MergedItem> newUserBackgroundItems = null;
         boolean diffUsers = false;
+        final int numProc = mAllProcessItems.size();
+        int numPssQueried = 0;
         try {
-            final int numProc = mAllProcessItems.size();
-            int[] pids = new int[numProc];
+            // Only query the memory of processes whose state changed since
+            // their memory was last queried, and of all of them from time to
+            // time.
             for (int i=0; i<numProc; i++) {
-                pids[i] = mAllProcessItems.get(i).mPid;
+                ProcessItem proc = mAllProcessItems.get(i);
+                final int pssState = proc.getPssState();
+                if (fullPssUpdate || proc.mPss < 0 || proc.mPssState != pssState) {
+                    proc.mPss = -1;
+                    proc.mPssState = pssState;
+                    numPssQueried++;
+                }
+            }
+            if (numPssQueried > 0) {
+                if (mTmpPids.length != numPssQueried) {
+                    mTmpPids = new int[numPssQueried];
+                }
+                final int[] pids = mTmpPids;
+                int pidIndex = 0;
+                for (int i=0; i<numProc; i++) {
+                    ProcessItem proc = mAllProcessItems.get(i);
+                    if (proc.mPss < 0) {
+                        pids[pidIndex++] = proc.mPid;
+                    }
+                }
+                long[] pss = ActivityManagerNative.getDefault()
+                        .getProcessPss(pids);
+                pidIndex = 0;
+                for (int i=0; i<numProc; i++) {
+                    ProcessItem proc = mAllProcessItems.get(i);
+                    if (proc.mPss < 0) {
+                        proc.mPss = pss[pidIndex++];
+                    }
+                }
+            }
+            if (fullPssUpdate) {
+                mLastFullPssTime = reconcileStart;
             }
-            long[] pss = ActivityManagerNative.getDefault()
-                    .getProcessPss(pids);
             int bgIndex = 0;
-            for (int i=0; i<pids.length; i++) {
+            for (int i=0; i<numProc; i++) {
                 ProcessItem proc = mAllProcessItems.get(i);
-                changed |= proc.updateSize(context, pss[i], mSequence);
+                changed |= proc.updateSize(context, proc.mPss, mSequence);
                 if (proc.mCurSeq == mSequence) {
                     serviceProcessMemory += proc.mSize;
                 } else if (proc.mRunningProcessInfo.importance >=
@@ -1332,6 +1502,8 @@ public class RunningState {
                     backgroundProcessMemory += proc.mSize;
                     MergedItem mergedItem;
                     if (newBackgroundItems != null) {
+                        // A new item, as the one shown in the interesting list may still be
+                        // held by the UI
                         mergedItem = proc.mMergedItem = new MergedItem(proc.mUserId);
                         proc.mMergedItem.mProcess = proc;
                         diffUsers |= mergedItem.mUserId != mMyUserId;
@@ -1413,7 +1585,24 @@ public class RunningState {
             mMergedItems.get(i).updateSize(context);
         }
         
+        final long pssEnd = SystemClock.uptimeMillis();
+        if (DEBUG_TIMING) {
+            Log.d(TAG, "Updated " + numProc + " processes: fetch "
+                    + (reconcileStart - fetchStart) + " ms, reconcile "
+                    + (pssStart - reconcileStart) + " ms, pss of " + numPssQueried
+                    + " processes " + (pssEnd - pssStart) + " ms");
+        }
+
         synchronized (mLock) {
+            mNumUpdates++;
+            mLastFetchTime = reconcileStart - fetchStart;
+            mLastReconcileTime = pssStart - reconcileStart;
+            mLastPssTime = pssEnd - pssStart;
+            mLastPssQueried = numPssQueried;
+            mLastPssReused = numProc - numPssQueried;
+            mContentsUpdateDelay = stateChanged || changed
+                    ? CONTENTS_UPDATE_DELAY
+                    : Math.min(mContentsUpdateDelay * 2, MAX_CONTENTS_UPDATE_DELAY);
             mNumBackgroundProcesses = numBackgroundProcesses;
             mNumForegroundProcesses = numForegroundProcesses;
             mNumServiceProcesses = numServiceProcesses;
@@ -1453,4 +1642,28 @@ public class RunningState {
             return mUserBackgroundItems;
         }
     }
+
+    /**
+     * Dump the timings of the content updates, if the running state was
+     * created by this process.
+     */
+    public static void dump(String prefix, PrintWriter pw) {
+        final RunningState state;
+        synchronized (sGlobalLock) {
+            state = sInstance;
+        }
+        if (state == null) {
+            return;
+        }
+        synchronized (state.mLock) {
+            pw.println(prefix + "RunningState: updates=" + state.mNumUpdates
+                    + " skipped=" + state.mNumSkippedUpdates
+                    + " delay=" + state.mContentsUpdateDelay + "ms");
+            pw.println(prefix + "  last update: fetch=" + state.mLastFetchTime
+                    + "ms reconcile=" + state.mLastReconcileTime
+                    + "ms pss=" + state.mLastPssTime + "ms"
+                    + " pssQueried=" + state.mLastPssQueried
+                    + " pssReused=" + state.mLastPssReused);
+        }
+    }
 }
@@ -23,10 +23,11 @@ import android.content.pm.PackageManager;
 import android.content.res.Resources;
 import android.database.Cursor;
 import android.graphics.drawable.Drawable;
-import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.CancellationSignal;
 import android.text.TextUtils;
 import android.util.Log;
+import android.util.LruCache;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -43,6 +44,9 @@ import com.android.settings.SettingsActivity;
 import com.android.settings.Utils;
 import com.android.settings.search.Index;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.HashMap;
 
 public class SearchResultsSummary extends InstrumentedFragment {
@@ -54,15 +58,19 @@ public class SearchResultsSummary extends InstrumentedFragment {
 
     private static final String SAVE_KEY_SHOW_RESULTS = ":settings:show_results";
 
+    // Delay before issuing a query while the user is typing, so that only the last one of a
+    // burst of keystrokes reaches the database
+    private static final long TYPING_DEBOUNCE_MILLIS = 100;
+
     private SearchView mSearchView;
 
+    private SearchTaskExecutor mSearchTaskExecutor;
+
     private ListView mResultsListView;
     private SearchResultsAdapter mResultsAdapter;
-    private UpdateSearchResultsTask mUpdateSearchResultsTask;
 
     private ListView mSuggestionsListView;
     private SuggestionsAdapter mSuggestionsAdapter;
-    private UpdateSuggestionsTask mUpdateSuggestionsTask;
 
     private ViewGroup mLayoutSuggestions;
     private ViewGroup mLayoutResults;
@@ -72,42 +80,67 @@ public class SearchResultsSummary extends InstrumentedFragment {
     private boolean mShowResults;
 
     /**
-     * A basic AsyncTask for updating the query results cursor
+     * A basic task for updating the query results
      */
-    private class UpdateSearchResultsTask extends AsyncTask<String, Void, Cursor> {
+    private class UpdateSearchResultsTask extends SearchTaskExecutor.Task<SearchResult[]> {
+        private final Context mContext;
+        private final SearchResultsAdapter mAdapter;
+        private final String mQuery;
+
+        public UpdateSearchResultsTask(Context context, SearchResultsAdapter adapter,
+                String query) {
+            mContext = context;
+            mAdapter = adapter;
+            mQuery = query;
+        }
+
         @Override
-        protected Cursor doInBackground(String... params) {
-            return Index.getInstance(getActivity()).search(params[0]);
+        protected SearchResult[] doInBackground(CancellationSignal cancellationSignal) {
+            final String[][] rows = Index.getInstance(mContext).search(mQuery,
+                    cancellationSignal);
+            cancellationSignal.throwIfCanceled();
+            return mAdapter.loadResults(rows);
         }
 
         @Override
-        protected void onPostExecute(Cursor cursor) {
-            if (!isCancelled()) {
-                MetricsLogger.action(getContext(), MetricsLogger.ACTION_SEARCH_RESULTS,
-                        cursor.getCount());
-                setResultsCursor(cursor);
-                setResultsVisibility(cursor.getCount() > 0);
-            } else if (cursor != null) {
-                cursor.close();
-            }
+        protected void onPostExecute(SearchResult[] results) {
+            MetricsLogger.action(getContext(), MetricsLogger.ACTION_SEARCH_RESULTS,
+                    results.length);
+            setResults(results);
+            setResultsVisibility(results.length > 0);
         }
     }
 
     /**
-     * A basic AsyncTask for updating the suggestions cursor
+     * A basic task for updating the suggestions cursor
      */
-    private class UpdateSuggestionsTask extends AsyncTask<String, Void, Cursor> {
+    private class UpdateSuggestionsTask extends SearchTaskExecutor.Task<Cursor> {
+        private final Context mContext;
+        private final String mQuery;
+
+        public UpdateSuggestionsTask(Context context, String query) {
+            mContext = context;
+            mQuery = query;
+        }
+
         @Override
-        protected Cursor doInBackground(String... params) {
-            return Index.getInstance(getActivity()).getSuggestions(params[0]);
+        protected Cursor doInBackground(CancellationSignal cancellationSignal) {
+            final Cursor cursor =
+                    Index.getInstance(mContext).getSuggestions(mQuery, cancellationSignal);
+            // Run the query now so that it can be interrupted
+            cursor.getCount();
+            return cursor;
         }
 
         @Override
         protected void onPostExecute(Cursor cursor) {
-            if (!isCancelled()) {
-                setSuggestionsCursor(cursor);
-                setSuggestionsVisibility(cursor.getCount() > 0);
-            } else if (cursor != null) {
+            setSuggestionsCursor(cursor);
+            setSuggestionsVisibility(cursor.getCount() > 0);
+        }
+
+        @Override
+        protected void onCancelled(Cursor cursor) {
+            if (cursor != null) {
                 cursor.close();
             }
         }
@@ -117,6 +150,7 @@ public class SearchResultsSummary extends InstrumentedFragment {
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
+        mSearchTaskExecutor = new SearchTaskExecutor();
         mResultsAdapter = new SearchResultsAdapter(getActivity());
         mSuggestionsAdapter = new SuggestionsAdapter(getActivity());
 
@@ -142,13 +176,13 @@ public class SearchResultsSummary extends InstrumentedFragment {
 
     @Override
     public void onDestroy() {
+        mSearchTaskExecutor.quit();
+
         mResultsListView = null;
         mResultsAdapter = null;
-        mUpdateSearchResultsTask = null;
 
         mSuggestionsListView = null;
         mSuggestionsAdapter = null;
-        mUpdateSuggestionsTask = null;
 
         mSearchView = null;
 
@@ -178,13 +212,12 @@ public class SearchResultsSummary extends InstrumentedFragment {
                     return;
                 }
 
-                final Cursor cursor = mResultsAdapter.mCursor;
-                cursor.moveToPosition(position);
+                final SearchResult result = mResultsAdapter.mResults[position];
 
-                final String className = cursor.getString(Index.COLUMN_INDEX_CLASS_NAME);
-                final String screenTitle = cursor.getString(Index.COLUMN_INDEX_SCREEN_TITLE);
-                final String action = cursor.getString(Index.COLUMN_INDEX_INTENT_ACTION);
-                final String key = cursor.getString(Index.COLUMN_INDEX_KEY);
+                final String className = result.className;
+                final String screenTitle = result.screenTitle;
+                final String action = result.intentAction;
+                final String key = result.key;
 
                 final SettingsActivity sa = (SettingsActivity) getActivity();
                 sa.needToRevertToInitialFragment();
@@ -197,10 +230,8 @@ public class SearchResultsSummary extends InstrumentedFragment {
                 } else {
                     final Intent intent = new Intent(action);
 
-                    final String targetPackage = cursor.getString(
-                            Index.COLUMN_INDEX_INTENT_ACTION_TARGET_PACKAGE);
-                    final String targetClass = cursor.getString(
-                            Index.COLUMN_INDEX_INTENT_ACTION_TARGET_CLASS);
+                    final String targetPackage = result.intentTargetPackage;
+                    final String targetClass = result.intentTargetClass;
                     if (!TextUtils.isEmpty(targetPackage) && !TextUtils.isEmpty(targetClass)) {
                         final ComponentName component =
                                 new ComponentName(targetPackage, targetClass);
@@ -285,7 +316,7 @@ public class SearchResultsSummary extends InstrumentedFragment {
         mQuery = getFilteredQueryString(query);
         mShowResults = true;
         setSuggestionsVisibility(false);
-        updateSearchResults();
+        updateSearchResults(0);
         saveQueryToDatabase();
 
         return false;
@@ -303,7 +334,7 @@ public class SearchResultsSummary extends InstrumentedFragment {
         } else {
             mShowResults = true;
             setSuggestionsVisibility(false);
-            updateSearchResults();
+            updateSearchResults(TYPING_DEBOUNCE_MILLIS);
         }
 
         return true;
@@ -316,10 +347,7 @@ public class SearchResultsSummary extends InstrumentedFragment {
     }
 
     private void clearSuggestions() {
-        if (mUpdateSuggestionsTask != null) {
-            mUpdateSuggestionsTask.cancel(false);
-            mUpdateSuggestionsTask = null;
-        }
+        mSearchTaskExecutor.cancelAll();
         setSuggestionsCursor(null);
     }
 
@@ -334,21 +362,15 @@ public class SearchResultsSummary extends InstrumentedFragment {
     }
 
     private void clearResults() {
-        if (mUpdateSearchResultsTask != null) {
-            mUpdateSearchResultsTask.cancel(false);
-            mUpdateSearchResultsTask = null;
-        }
-        setResultsCursor(null);
+        mSearchTaskExecutor.cancelAll();
+        setResults(null);
     }
 
-    private void setResultsCursor(Cursor cursor) {
+    private void setResults(SearchResult[] results) {
         if (mResultsAdapter == null) {
             return;
         }
-        Cursor oldCursor = mResultsAdapter.swapCursor(cursor);
-        if (oldCursor != null) {
-            oldCursor.close();
-        }
+        mResultsAdapter.swapResults(results);
     }
 
     private String getFilteredQueryString(CharSequence query) {
@@ -366,38 +388,33 @@ public class SearchResultsSummary extends InstrumentedFragment {
         return filtered.toString();
     }
 
-    private void clearAllTasks() {
-        if (mUpdateSearchResultsTask != null) {
-            mUpdateSearchResultsTask.cancel(false);
-            mUpdateSearchResultsTask = null;
-        }
-        if (mUpdateSuggestionsTask != null) {
-            mUpdateSuggestionsTask.cancel(false);
-            mUpdateSuggestionsTask = null;
-        }
-    }
-
     private void updateSuggestions() {
-        clearAllTasks();
         if (mQuery == null) {
+            mSearchTaskExecutor.cancelAll();
             setSuggestionsCursor(null);
         } else {
-            mUpdateSuggestionsTask = new UpdateSuggestionsTask();
-            mUpdateSuggestionsTask.execute(mQuery);
+            mSearchTaskExecutor.execute(new UpdateSuggestionsTask(getActivity(), mQuery), 0);
         }
     }
 
-    private void updateSearchResults() {
-        clearAllTasks();
+    private void updateSearchResults(long delayMillis) {
         if (TextUtils.isEmpty(mQuery)) {
+            mSearchTaskExecutor.cancelAll();
             setResultsVisibility(false);
-            setResultsCursor(null);
+            setResults(null);
         } else {
-            mUpdateSearchResultsTask = new UpdateSearchResultsTask();
-            mUpdateSearchResultsTask.execute(mQuery);
+            mSearchTaskExecutor.execute(
+                    new UpdateSearchResultsTask(getActivity(), mResultsAdapter, mQuery),
+                    delayMillis);
         }
     }
 
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        mSearchTaskExecutor.dump(prefix, writer);
+    }
+
     private static class SuggestionItem {
         public String query;
 
@@ -486,34 +503,62 @@ public class SearchResultsSummary extends InstrumentedFragment {
         }
     }
 
+    /**
+     * An immutable search result, with everything needed for binding it already resolved.
+     */
     private static class SearchResult {
-        public Context context;
-        public String title;
-        public String summaryOn;
-        public String summaryOff;
-        public String entries;
-        public int iconResId;
-        public String key;
-
-        public SearchResult(Context context, String title, String summaryOn, String summaryOff,
-                            String entries, int iconResId, String key) {
-            this.context = context;
-            this.title = title;
-            this.summaryOn = summaryOn;
-            this.summaryOff = summaryOff;
-            this.entries = entries;
-            this.iconResId = iconResId;
-            this.key = key;
+        public final String title;
+        public final String summaryOn;
+        public final String summaryOff;
+        public final String entries;
+        public final String key;
+        public final String className;
+        public final String screenTitle;
+        public final String intentAction;
+        public final String intentTargetPackage;
+        public final String intentTargetClass;
+        // Null if there is no icon
+        public final Drawable icon;
+
+        public SearchResult(String[] row, Drawable icon) {
+            this.title = row[Index.COLUMN_INDEX_TITLE];
+            this.summaryOn = row[Index.COLUMN_INDEX_SUMMARY_ON];
+            this.summaryOff = row[Index.COLUMN_INDEX_SUMMARY_OFF];
+            this.entries = row[Index.COLUMN_INDEX_ENTRIES];
+            this.key = row[Index.COLUMN_INDEX_KEY];
+            this.className = row[Index.COLUMN_INDEX_CLASS_NAME];
+            this.screenTitle = row[Index.COLUMN_INDEX_SCREEN_TITLE];
+            this.intentAction = row[Index.COLUMN_INDEX_INTENT_ACTION];
+            this.intentTargetPackage = row[Index.COLUMN_INDEX_INTENT_ACTION_TARGET_PACKAGE];
+            this.intentTargetClass = row[Index.COLUMN_INDEX_INTENT_ACTION_TARGET_CLASS];
+            this.icon = icon;
+        }
+    }
+
+    private static class SearchResultViewHolder {
+        public final TextView title;
+        public final ImageView icon;
+
+        public SearchResultViewHolder(View view) {
+            title = (TextView) view.findViewById(R.id.title);
+            icon = (ImageView) view.findViewById(R.id.icon);
         }
     }
 
     private static class SearchResultsAdapter extends BaseAdapter {
 
+        // Max number of decoded icons kept around
+        private static final int MAX_CACHED_ICONS = 32;
+
         private Context mContext;
-        private Cursor mCursor;
+        private SearchResult[] mResults;
         private LayoutInflater mInflater;
         private boolean mDataValid;
-        private HashMap<String, Context> mContextMap = new HashMap<String, Context>();
+
+        // Only used from the search background thread
+        private final HashMap<String, Context> mContextMap = new HashMap<String, Context>();
+        private final LruCache<String, Drawable.ConstantState> mIconCache =
+                new LruCache<String, Drawable.ConstantState>(MAX_CACHED_ICONS);
 
         private static final String PERCENT_RECLACE = "%s";
         private static final String DOLLAR_REPLACE = "$s";
@@ -524,42 +569,15 @@ public class SearchResultsSummary extends InstrumentedFragment {
             mDataValid = false;
         }
 
-        public Cursor swapCursor(Cursor newCursor) {
-            if (newCursor == mCursor) {
-                return null;
-            }
-            Cursor oldCursor = mCursor;
-            mCursor = newCursor;
-            if (newCursor != null) {
-                mDataValid = true;
-                notifyDataSetChanged();
-            } else {
-                mDataValid = false;
-                notifyDataSetInvalidated();
-            }
-            return oldCursor;
-        }
-
-        @Override
-        public int getCount() {
-            if (!mDataValid || mCursor == null || mCursor.isClosed()) return 0;
-            return mCursor.getCount();
-        }
-
-        @Override
-        public Object getItem(int position) {
-            if (mDataValid && mCursor.moveToPosition(position)) {
-                final String title = mCursor.getString(Index.COLUMN_INDEX_TITLE);
-                final String summaryOn = mCursor.getString(Index.COLUMN_INDEX_SUMMARY_ON);
-                final String summaryOff = mCursor.getString(Index.COLUMN_INDEX_SUMMARY_OFF);
-                final String entries = mCursor.getString(Index.COLUMN_INDEX_ENTRIES);
-                final String iconResStr = mCursor.getString(Index.COLUMN_INDEX_ICON);
-                final String className = mCursor.getString(
-                        Index.COLUMN_INDEX_CLASS_NAME);
-                final String packageName = mCursor.getString(
-                        Index.COLUMN_INDEX_INTENT_ACTION_TARGET_PACKAGE);
-                final String key = mCursor.getString(
-                        Index.COLUMN_INDEX_KEY);
+        /**
+         * Build the results from the Index rows, resolving the package contexts and decoding
+         * the icons. Should be called from a background thread.
+         */
+        public SearchResult[] loadResults(String[][] rows) {
+            final ArrayList<SearchResult> results = new ArrayList<SearchResult>(rows.length);
+            for (String[] row : rows) {
+                final String className = row[Index.COLUMN_INDEX_CLASS_NAME];
+                final String packageName = row[Index.COLUMN_INDEX_INTENT_ACTION_TARGET_PACKAGE];
 
                 Context packageContext;
                 if (TextUtils.isEmpty(className) && !TextUtils.isEmpty(packageName)) {
@@ -569,7 +587,7 @@ public class SearchResultsSummary extends InstrumentedFragment {
                             packageContext = mContext.createPackageContext(packageName, 0);
                         } catch (PackageManager.NameNotFoundException e) {
                             Log.e(LOG_TAG, "Cannot create Context for package: " + packageName);
-                            return null;
+                            continue;
                         }
                         mContextMap.put(packageName, packageContext);
                     }
@@ -577,11 +595,66 @@ public class SearchResultsSummary extends InstrumentedFragment {
                     packageContext = mContext;
                 }
 
+                final String iconResStr = row[Index.COLUMN_INDEX_ICON];
                 final int iconResId = TextUtils.isEmpty(iconResStr) ?
                         R.drawable.empty_icon : Integer.parseInt(iconResStr);
 
-                return new SearchResult(packageContext, title, summaryOn, summaryOff,
-                        entries, iconResId, key);
+                results.add(new SearchResult(row,
+                        loadIcon(packageContext, iconResId,
+                                row[Index.COLUMN_INDEX_TITLE])));
+            }
+            return results.toArray(new SearchResult[results.size()]);
+        }
+
+        private Drawable loadIcon(Context packageContext, int iconResId, String title) {
+            if (iconResId == R.drawable.empty_icon) {
+                return null;
+            }
+            final String key = packageContext.getPackageName() + "/" + iconResId;
+            Drawable.ConstantState state = mIconCache.get(key);
+            if (state == null) {
+                final Drawable drawable;
+                try {
+                    drawable = packageContext.getDrawable(iconResId);
+                } catch (Resources.NotFoundException nfe) {
+                    // Not much we can do except logging
+                    Log.e(LOG_TAG, "Cannot load Drawable for " + title);
+                    return null;
+                }
+                state = drawable.getConstantState();
+                if (state == null) {
+                    return drawable;
+                }
+                mIconCache.put(key, state);
+                return drawable;
+            }
+            return state.newDrawable(packageContext.getResources());
+        }
+
+        public void swapResults(SearchResult[] newResults) {
+            if (newResults == mResults) {
+                return;
+            }
+            mResults = newResults;
+            if (newResults != null) {
+                mDataValid = true;
+                notifyDataSetChanged();
+            } else {
+                mDataValid = false;
+                notifyDataSetInvalidated();
+            }
+        }
+
+        @Override
+        public int getCount() {
+            if (!mDataValid || mResults == null) return 0;
+            return mResults.length;
+        }
+
+        @Override
+        public Object getItem(int position) {
+            if (mDataValid && position >= 0 && position < mResults.length) {
+                return mResults[position];
             }
             return null;
         }
@@ -595,41 +668,32 @@ public class SearchResultsSummary extends InstrumentedFragment {
         public View getView(int position, View convertView, ViewGroup parent) {
             if (!mDataValid && convertView == null) {
                 throw new IllegalStateException(
-                        "this should only be called when the cursor is valid");
+                        "this should only be called when the results are valid");
             }
-            if (!mCursor.moveToPosition(position)) {
-                throw new IllegalStateException("couldn't move cursor to position " + position);
+            if (position < 0 || position >= mResults.length) {
+                throw new IllegalStateException("couldn't find result at position " + position);
             }
 
-            View view;
-            TextView textTitle;
-            ImageView imageView;
+            final View view;
+            final SearchResultViewHolder holder;
 
             if (convertView == null) {
                 view = mInflater.inflate(R.layout.search_result_item, parent, false);
+                holder = new SearchResultViewHolder(view);
+                view.setTag(holder);
             } else {
                 view = convertView;
+                holder = (SearchResultViewHolder) view.getTag();
             }
 
-            textTitle = (TextView) view.findViewById(R.id.title);
-            imageView = (ImageView) view.findViewById(R.id.icon);
+            final SearchResult result = mResults[position];
+            holder.title.setText(result.title);
 
-            final SearchResult result = (SearchResult) getItem(position);
-            textTitle.setText(result.title);
-
-            if (result.iconResId != R.drawable.empty_icon) {
-                final Context packageContext = result.context;
-                final Drawable drawable;
-                try {
-                    drawable = packageContext.getDrawable(result.iconResId);
-                    imageView.setImageDrawable(drawable);
-                } catch (Resources.NotFoundException nfe) {
-                    // Not much we can do except logging
-                    Log.e(LOG_TAG, "Cannot load Drawable for " + result.title);
-                }
+            if (result.icon != null) {
+                holder.icon.setImageDrawable(result.icon);
             } else {
-                imageView.setImageDrawable(null);
-                imageView.setBackgroundResource(R.drawable.empty_icon);
+                holder.icon.setImageDrawable(null);
+                holder.icon.setBackgroundResource(R.drawable.empty_icon);
             }
 
             return view;
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.dashboard;
+
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.OperationCanceledException;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.PrintWriter;
+
+/**
+ * Runs the search and suggestions tasks on a dedicated background thread.
+ *
+ * Only the last submitted task matters: submitting a task drops the one still waiting to run
+ * and cancels the one currently running, interrupting its database read through a
+ * {@link CancellationSignal}. Tasks can be submitted with a delay so that a burst of keystrokes
+ * only issues the last query.
+ */
+class SearchTaskExecutor {
+
+    private static final String LOG_TAG = "SearchTaskExecutor";
+
+    /**
+     * A task whose result is delivered on the main thread unless it has been cancelled.
+     */
+    public static abstract class Task<T> {
+        private final CancellationSignal mCancellationSignal = new CancellationSignal();
+
+        /**
+         * Called on the background thread. Should throw an {@link OperationCanceledException}
+         * as soon as possible when the signal is canceled.
+         */
+        protected abstract T doInBackground(CancellationSignal cancellationSignal);
+
+        /**
+         * Called on the main thread with the result of a task that has not been cancelled.
+         */
+        protected abstract void onPostExecute(T result);
+
+        /**
+         * Called on the main thread with the result of a task that has been cancelled after
+         * its completion, for releasing the result.
+         */
+        protected void onCancelled(T result) {
+        }
+
+        public final boolean isCancelled() {
+            return mCancellationSignal.isCanceled();
+        }
+
+        final void cancel() {
+            mCancellationSignal.cancel();
+        }
+
+        final void run(final SearchTaskExecutor executor) {
+            final T result;
+            try {
+                result = doInBackground(mCancellationSignal);
+            } catch (OperationCanceledException e) {
+                executor.onTaskInterrupted();
+                return;
+            }
+            executor.mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (isCancelled()) {
+                        executor.onTaskDropped();
+                        onCancelled(result);
+                    } else {
+                        executor.onTaskCompleted();
+                        onPostExecute(result);
+                    }
+                }
+            });
+        }
+    }
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+
+    private final Runnable mRunPendingTask = new Runnable() {
+        @Override
+        public void run() {
+            final Task<?> task;
+            synchronized (SearchTaskExecutor.this) {
+                task = mPendingTask;
+                mPendingTask = null;
+                if (task == null) {
+                    return;
+                }
+                mRunningTask = task;
+                mIssuedCount++;
+            }
+            task.run(SearchTaskExecutor.this);
+            synchronized (SearchTaskExecutor.this) {
+                mRunningTask = null;
+            }
+        }
+    };
+
+    private Task<?> mPendingTask;
+    private Task<?> mRunningTask;
+
+    private int mIssuedCount;
+    private int mDroppedCount;
+    private int mInterruptedCount;
+    private int mCompletedCount;
+
+    public SearchTaskExecutor() {
+        mThread = new HandlerThread(LOG_TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    /**
+     * Run the task after the given delay, dropping or cancelling any previous task.
+     */
+    public void execute(Task<?> task, long delayMillis) {
+        synchronized (this) {
+            cancelAllLocked();
+            mPendingTask = task;
+        }
+        mHandler.removeCallbacks(mRunPendingTask);
+        mHandler.postDelayed(mRunPendingTask, delayMillis);
+    }
+
+    /**
+     * Drop the pending task and cancel the running one.
+     */
+    public synchronized void cancelAll() {
+        cancelAllLocked();
+    }
+
+    public void quit() {
+        cancelAll();
+        mThread.quit();
+        synchronized (this) {
+            Log.d(LOG_TAG, "Search tasks issued: " + mIssuedCount + ", dropped: " + mDroppedCount
+                    + ", interrupted: " + mInterruptedCount + ", completed: " + mCompletedCount);
+        }
+    }
+
+    public synchronized void dump(String prefix, PrintWriter pw) {
+        pw.print(prefix); pw.print("Search tasks: issued="); pw.print(mIssuedCount);
+        pw.print(" dropped="); pw.print(mDroppedCount);
+        pw.print(" interrupted="); pw.print(mInterruptedCount);
+        pw.print(" completed="); pw.println(mCompletedCount);
+    }
+
+    private void cancelAllLocked() {
+        if (mPendingTask != null) {
+            // Never reached the database
+            mPendingTask.cancel();
+            mPendingTask = null;
+            mDroppedCount++;
+        }
+        if (mRunningTask != null) {
+            mRunningTask.cancel();
+            mRunningTask = null;
+        }
+    }
+
+    private synchronized void onTaskInterrupted() {
+        mInterruptedCount++;
+    }
+
+    private synchronized void onTaskDropped() {
+        mDroppedCount++;
+    }
+
+    private synchronized void onTaskCompleted() {
+        mCompletedCount++;
+    }
+}
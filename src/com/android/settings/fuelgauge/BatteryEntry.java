@@ -31,11 +31,14 @@ import android.os.UserManager;
 import android.util.Log;
 
 import com.android.internal.os.BatterySipper;
+import com.android.settings.BackgroundExecutor;
 import com.android.settings.R;
 import com.android.settings.Utils;
+import com.android.settings.applications.AppLabelIconCache;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
 
 /**
  * Wraps the power usage data of a BatterySipper with information about package name
@@ -45,54 +48,72 @@ public class BatteryEntry {
     public static final int MSG_UPDATE_NAME_ICON = 1;
     public static final int MSG_REPORT_FULLY_DRAWN = 2;
 
+    // Loaded entries are reported to the UI at most once per frame
+    private static final long UPDATE_DELAY_MILLIS = 16;
+
     static final HashMap<String,UidToDetail> sUidCache = new HashMap<String,UidToDetail>();
 
+    // Entries waiting for startRequestQueue(), in the order they are shown
     static final ArrayList<BatteryEntry> mRequestQueue = new ArrayList<BatteryEntry>();
+    // Entries loaded since the last MSG_UPDATE_NAME_ICON
+    private static final ArrayList<BatteryEntry> sUpdatedEntries = new ArrayList<BatteryEntry>();
     static Handler sHandler;
 
-    static private class NameAndIconLoader extends Thread {
-        private boolean mAbort = false;
+    // Incremented each time the queue is started or stopped, to drop the stale requests
+    private static int sRequestGeneration;
+    private static int sPendingRequestCount;
 
-        public NameAndIconLoader() {
-            super("BatteryUsage Icon Loader");
-        }
+    /**
+     * Loads the name and icon of an entry. Requests are submitted in the order the entries are
+     * shown, so that the rows at the top of the list, which are the visible ones, are loaded
+     * first. Stale requests return without loading anything.
+     */
+    private static class NameAndIconRequest implements Runnable {
+        private final BatteryEntry mEntry;
+        private final int mGeneration;
 
-        public void abort() {
-            mAbort = true;
+        NameAndIconRequest(BatteryEntry entry, int generation) {
+            mEntry = entry;
+            mGeneration = generation;
         }
 
         @Override
         public void run() {
-            while (true) {
-                BatteryEntry be;
-                synchronized (mRequestQueue) {
-                    if (mRequestQueue.isEmpty() || mAbort) {
-                        if (sHandler != null) {
-                            sHandler.sendEmptyMessage(MSG_REPORT_FULLY_DRAWN);
-                        }
-                        mRequestQueue.clear();
-                        return;
-                    }
-                    be = mRequestQueue.remove(0);
+            synchronized (mRequestQueue) {
+                if (mGeneration != sRequestGeneration) {
+                    return;
+                }
+            }
+            mEntry.loadNameAndIcon();
+            synchronized (mRequestQueue) {
+                if (mGeneration != sRequestGeneration || sHandler == null) {
+                    return;
+                }
+                if (sUpdatedEntries.isEmpty()) {
+                    sHandler.sendEmptyMessageDelayed(MSG_UPDATE_NAME_ICON, UPDATE_DELAY_MILLIS);
+                }
+                sUpdatedEntries.add(mEntry);
+                if (--sPendingRequestCount == 0) {
+                    sHandler.sendEmptyMessageDelayed(MSG_REPORT_FULLY_DRAWN, UPDATE_DELAY_MILLIS);
                 }
-                be.loadNameAndIcon();
             }
         }
     }
 
-    private static NameAndIconLoader mRequestThread;
-
     public static void startRequestQueue() {
         if (sHandler != null) {
             synchronized (mRequestQueue) {
                 if (!mRequestQueue.isEmpty()) {
-                    if (mRequestThread != null) {
-                        mRequestThread.abort();
+                    final ExecutorService executor = BackgroundExecutor.get();
+                    sUpdatedEntries.clear();
+                    sRequestGeneration++;
+                    sPendingRequestCount = mRequestQueue.size();
+                    final int count = mRequestQueue.size();
+                    for (int i = 0; i < count; i++) {
+                        executor.execute(new NameAndIconRequest(mRequestQueue.get(i),
+                                sRequestGeneration));
                     }
-                    mRequestThread = new NameAndIconLoader();
-                    mRequestThread.setPriority(Thread.MIN_PRIORITY);
-                    mRequestThread.start();
-                    mRequestQueue.notify();
+                    mRequestQueue.clear();
                 }
             }
         }
@@ -100,16 +121,29 @@ public class BatteryEntry {
 
     public static void stopRequestQueue() {
         synchronized (mRequestQueue) {
-            if (mRequestThread != null) {
-                mRequestThread.abort();
-                mRequestThread = null;
-                sHandler = null;
-            }
+            mRequestQueue.clear();
+            sUpdatedEntries.clear();
+            sRequestGeneration++;
+            sHandler = null;
+        }
+    }
+
+    /**
+     * Return the entries whose name and icon have been loaded since the last call, to be
+     * called when handling {@link #MSG_UPDATE_NAME_ICON}.
+     */
+    public static ArrayList<BatteryEntry> takeUpdatedEntries() {
+        synchronized (mRequestQueue) {
+            final ArrayList<BatteryEntry> entries = new ArrayList<BatteryEntry>(sUpdatedEntries);
+            sUpdatedEntries.clear();
+            return entries;
         }
     }
 
     public static void clearUidCache() {
-        sUidCache.clear();
+        synchronized (sUidCache) {
+            sUidCache.clear();
+        }
     }
 
     public final Context context;
@@ -120,10 +154,14 @@ public class BatteryEntry {
     public int iconId; // For passing to the detail screen.
     public String defaultPackageName;
 
+    /**
+     * Name of a UID. The icon of the package is kept in the {@link AppLabelIconCache}, so
+     * that this cache only holds strings.
+     */
     static class UidToDetail {
         String name;
         String packageName;
-        Drawable icon;
+        int iconId;
     }
 
     public BatteryEntry(Context context, Handler handler, UserManager um, BatterySipper sipper) {
@@ -207,12 +245,18 @@ public class BatteryEntry {
 
     void getQuickNameIconForUid(final int uid) {
         final String uidString = Integer.toString(uid);
-        if (sUidCache.containsKey(uidString)) {
-            UidToDetail utd = sUidCache.get(uidString);
-            defaultPackageName = utd.packageName;
-            name = utd.name;
-            icon = utd.icon;
-            return;
+        final UidToDetail utd;
+        synchronized (sUidCache) {
+            utd = sUidCache.get(uidString);
+        }
+        if (utd != null) {
+            final Drawable cachedIcon = getCachedIcon(utd, UserHandle.getUserId(uid));
+            if (cachedIcon != null) {
+                defaultPackageName = utd.packageName;
+                name = utd.name;
+                icon = cachedIcon;
+                return;
+            }
         }
         PackageManager pm = context.getPackageManager();
         icon = pm.getDefaultActivityIcon();
@@ -235,6 +279,17 @@ public class BatteryEntry {
         }
     }
 
+    private Drawable getCachedIcon(UidToDetail utd, int userId) {
+        if (utd.packageName != null) {
+            // Null if the icon has been evicted from the shared cache
+            return AppLabelIconCache.getInstance(context).peekUnbadgedIcon(utd.packageName,
+                    userId);
+        } else if (utd.iconId != 0) {
+            return context.getDrawable(utd.iconId);
+        }
+        return context.getPackageManager().getDefaultActivityIcon();
+    }
+
     /**
      * Loads the app label and icon image and stores into the cache.
      */
@@ -245,6 +300,7 @@ public class BatteryEntry {
         }
 
         PackageManager pm = context.getPackageManager();
+        final AppLabelIconCache labelIconCache = AppLabelIconCache.getInstance(context);
         final int uid = sipper.uidObj.getUid();
         sipper.mPackages = pm.getPackagesForUid(uid);
         if (sipper.mPackages != null) {
@@ -263,13 +319,13 @@ public class BatteryEntry {
                                 + packageLabels[i] + ", user " + userId);
                         continue;
                     }
-                    CharSequence label = ai.loadLabel(pm);
+                    CharSequence label = labelIconCache.getLabel(ai);
                     if (label != null) {
                         packageLabels[i] = label.toString();
                     }
                     if (ai.icon != 0) {
                         defaultPackageName = sipper.mPackages[i];
-                        icon = ai.loadIcon(pm);
+                        icon = labelIconCache.getUnbadgedIcon(ai);
                         break;
                     }
                 } catch (RemoteException e) {
@@ -297,7 +353,8 @@ public class BatteryEntry {
                                 name = nm.toString();
                                 if (pi.applicationInfo.icon != 0) {
                                     defaultPackageName = pkgName;
-                                    icon = pi.applicationInfo.loadIcon(pm);
+                                    icon = labelIconCache.getUnbadgedIcon(
+                                            pi.applicationInfo);
                                 }
                                 break;
                             }
@@ -321,11 +378,10 @@ public class BatteryEntry {
 
         UidToDetail utd = new UidToDetail();
         utd.name = name;
-        utd.icon = icon;
         utd.packageName = defaultPackageName;
-        sUidCache.put(uidString, utd);
-        if (sHandler != null) {
-            sHandler.sendMessage(sHandler.obtainMessage(MSG_UPDATE_NAME_ICON, this));
+        utd.iconId = iconId;
+        synchronized (sUidCache) {
+            sUidCache.put(uidString, utd);
         }
     }
 }
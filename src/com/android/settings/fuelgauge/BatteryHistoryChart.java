@@ -19,6 +19,7 @@ package com.android.settings.fuelgauge;
 import android.content.Intent;
 import android.graphics.Bitmap;
 import android.graphics.DashPathEffect;
+import android.os.AsyncTask;
 import android.os.BatteryManager;
 import android.text.format.DateFormat;
 import android.text.format.Formatter;
@@ -45,6 +46,7 @@ import android.view.View;
 import libcore.icu.LocaleData;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Locale;
 
@@ -115,6 +117,124 @@ public class BatteryHistoryChart extends View {
         }
     }
 
+    /**
+     * Battery history records decoded into primitive arrays, so that the history is only
+     * iterated once and the chart can be laid out again at any size without going back to
+     * {@link BatteryStats}.
+     */
+    static class HistoryTimeline {
+        byte[] mCmd = new byte[256];
+        long[] mTime = new long[256];
+        long[] mCurrentTime = new long[256];
+        byte[] mLevel = new byte[256];
+        int[] mStates = new int[256];
+        int[] mStates2 = new int[256];
+        int mSize;
+
+        void add(HistoryItem rec) {
+            if (mSize == mCmd.length) {
+                final int size = mSize * 2;
+                mCmd = Arrays.copyOf(mCmd, size);
+                mTime = Arrays.copyOf(mTime, size);
+                mCurrentTime = Arrays.copyOf(mCurrentTime, size);
+                mLevel = Arrays.copyOf(mLevel, size);
+                mStates = Arrays.copyOf(mStates, size);
+                mStates2 = Arrays.copyOf(mStates2, size);
+            }
+            mCmd[mSize] = rec.cmd;
+            mTime[mSize] = rec.time;
+            mCurrentTime[mSize] = rec.currentTime;
+            mLevel[mSize] = rec.batteryLevel;
+            mStates[mSize] = rec.states;
+            mStates2[mSize] = rec.states2;
+            mSize++;
+        }
+    }
+
+    /**
+     * Paths of the chart built from a {@link HistoryTimeline} for a given size.
+     */
+    static class ChartPaths {
+        final Path mBatLevelPath = new Path();
+        final Path mBatWarnPath = new Path();
+        final Path mBatCriticalPath = new Path();
+        final Path mTimeRemainPath = new Path();
+        final Path mChargingPath = new Path();
+        final Path mScreenOnPath = new Path();
+        final Path mGpsOnPath = new Path();
+        final Path mFlashlightOnPath = new Path();
+        final Path mCameraOnPath = new Path();
+        final Path mWifiRunningPath = new Path();
+        final Path mCpuRunningPath = new Path();
+        final ChartData mPhoneSignalChart = new ChartData();
+
+        ChartPaths() {
+            mPhoneSignalChart.setColors(com.android.settings.Utils.BADNESS_COLORS);
+        }
+    }
+
+    /**
+     * Copy of the chart state read when building the paths, taken on the UI thread when the
+     * build starts so the view can keep changing while the paths are built.
+     */
+    static final class BuildParams {
+        final HistoryTimeline mTimeline;
+        final int mWidth;
+        final int mHeight;
+        final int mLevelHeight;
+        final int mLevelTop;
+        final int mLevelLeft;
+        final int mLevelRight;
+        final int mChargingOffset;
+        final int mScreenOnOffset;
+        final int mGpsOnOffset;
+        final int mFlashlightOnOffset;
+        final int mCameraOnOffset;
+        final int mWifiRunningOffset;
+        final int mCpuRunningOffset;
+        final boolean mLargeMode;
+        final boolean mHavePhoneSignal;
+        final boolean mDischarging;
+        final long mHistStart;
+        final long mStartWallTime;
+        final long mEndDataWallTime;
+        final long mEndWallTime;
+        final int mBatLow;
+        final int mBatHigh;
+        final int mBatteryLevel;
+        final int mBatteryWarnLevel;
+        final int mBatteryCriticalLevel;
+
+        BuildParams(BatteryHistoryChart chart, int w, int h, int levelh) {
+            mTimeline = chart.mTimeline;
+            mWidth = w;
+            mHeight = h;
+            mLevelHeight = levelh;
+            mLevelTop = chart.mLevelTop;
+            mLevelLeft = chart.mLevelLeft;
+            mLevelRight = chart.mLevelRight;
+            mChargingOffset = chart.mChargingOffset;
+            mScreenOnOffset = chart.mScreenOnOffset;
+            mGpsOnOffset = chart.mGpsOnOffset;
+            mFlashlightOnOffset = chart.mFlashlightOnOffset;
+            mCameraOnOffset = chart.mCameraOnOffset;
+            mWifiRunningOffset = chart.mWifiRunningOffset;
+            mCpuRunningOffset = chart.mCpuRunningOffset;
+            mLargeMode = chart.mLargeMode;
+            mHavePhoneSignal = chart.mHavePhoneSignal;
+            mDischarging = chart.mDischarging;
+            mHistStart = chart.mHistStart;
+            mStartWallTime = chart.mStartWallTime;
+            mEndDataWallTime = chart.mEndDataWallTime;
+            mEndWallTime = chart.mEndWallTime;
+            mBatLow = chart.mBatLow;
+            mBatHigh = chart.mBatHigh;
+            mBatteryLevel = chart.mBatteryLevel;
+            mBatteryWarnLevel = chart.mBatteryWarnLevel;
+            mBatteryCriticalLevel = chart.mBatteryCriticalLevel;
+        }
+    }
+
     static final int SANS = 1;
     static final int SERIF = 2;
     static final int MONOSPACE = 3;
@@ -136,24 +256,19 @@ public class BatteryHistoryChart extends View {
     final Paint mWifiRunningPaint = new Paint();
     final Paint mCpuRunningPaint = new Paint();
     final Paint mDateLinePaint = new Paint();
-    final ChartData mPhoneSignalChart = new ChartData();
     final TextPaint mTextPaint = new TextPaint(Paint.ANTI_ALIAS_FLAG);
     final TextPaint mHeaderTextPaint = new TextPaint(Paint.ANTI_ALIAS_FLAG);
     final Paint mDebugRectPaint = new Paint();
 
-    final Path mBatLevelPath = new Path();
     final Path mBatGoodPath = new Path();
-    final Path mBatWarnPath = new Path();
-    final Path mBatCriticalPath = new Path();
-    final Path mTimeRemainPath = new Path();
-    final Path mChargingPath = new Path();
-    final Path mScreenOnPath = new Path();
-    final Path mGpsOnPath = new Path();
-    final Path mFlashlightOnPath = new Path();
-    final Path mCameraOnPath = new Path();
-    final Path mWifiRunningPath = new Path();
-    final Path mCpuRunningPath = new Path();
     final Path mDateLinePath = new Path();
+
+    // Paths of the chart for its current size, swapped in once built.
+    ChartPaths mPaths = new ChartPaths();
+    AsyncTask<Void, Void, ChartPaths> mBuildPathsTask;
+
+    // History decoded by setStats(), used to build the paths for any size.
+    HistoryTimeline mTimeline;
     
     BatteryStats mStats;
     Intent mBatteryBroadcast;
@@ -381,7 +496,6 @@ public class BatteryHistoryChart extends View {
         mFlashlightOnPaint.setStyle(Paint.Style.STROKE);
         mWifiRunningPaint.setStyle(Paint.Style.STROKE);
         mCpuRunningPaint.setStyle(Paint.Style.STROKE);
-        mPhoneSignalChart.setColors(com.android.settings.Utils.BADNESS_COLORS);
         mDebugRectPaint.setARGB(255, 255, 0, 0);
         mDebugRectPaint.setStyle(Paint.Style.STROKE);
         mScreenOnPaint.setColor(0xFF009688);
@@ -488,6 +602,9 @@ public class BatteryHistoryChart extends View {
     }
 
     void setStats(BatteryStats stats, Intent broadcast) {
+        // Paths being built are for the previous stats.
+        cancelBuildingPaths();
+
         mStats = stats;
         mBatteryBroadcast = broadcast;
 
@@ -573,9 +690,11 @@ public class BatteryHistoryChart extends View {
         int aggrStates = 0;
         int aggrStates2 = 0;
         boolean first = true;
+        final HistoryTimeline timeline = new HistoryTimeline();
         if (stats.startIteratingHistoryLocked()) {
             final HistoryItem rec = new HistoryItem();
             while (stats.getNextHistoryLocked(rec)) {
+                timeline.add(rec);
                 pos++;
                 if (first) {
                     first = false;
@@ -611,7 +730,11 @@ public class BatteryHistoryChart extends View {
                     aggrStates2 |= rec.states2;
                 }
             }
+            stats.finishIteratingHistoryLocked();
         }
+        // Only the records up to the last interesting one are charted.
+        timeline.mSize = lastInteresting;
+        mTimeline = timeline;
         mHistEnd = mHistDataEnd + (remainingTimeUs/1000);
         mEndDataWallTime = lastWallTime + mHistDataEnd - lastRealtime;
         mEndWallTime = mEndDataWallTime + (remainingTimeUs/1000);
@@ -627,6 +750,16 @@ public class BatteryHistoryChart extends View {
             mHavePhoneSignal = true;
         }
         if (mHistEnd <= mHistStart) mHistEnd = mHistStart+1;
+
+        if (mLastWidth > 0 && mLastHeight > 0) {
+            // Already laid out: redo the layout of the chart for the new stats, which also
+            // starts building its paths.
+            final int w = mLastWidth;
+            final int h = mLastHeight;
+            mLastWidth = mLastHeight = -1;
+            onSizeChanged(w, h, w, h);
+            invalidate();
+        }
     }
 
     @Override
@@ -646,7 +779,8 @@ public class BatteryHistoryChart extends View {
                 getDefaultSize(mChartMinHeight+mHeaderHeight, heightMeasureSpec));
     }
 
-    void finishPaths(int w, int h, int levelh, int startX, int y, Path curLevelPath,
+    static void finishPaths(BuildParams p, ChartPaths paths, int w, int h, int levelh,
+            int startX, int y, Path curLevelPath,
             int lastX, boolean lastCharging, boolean lastScreenOn, boolean lastGpsOn,
             boolean lastFlashlightOn, boolean lastCameraOn, boolean lastWifiRunning,
             boolean lastCpuRunning, Path lastPath) {
@@ -657,34 +791,34 @@ public class BatteryHistoryChart extends View {
                 }
                 curLevelPath.lineTo(w, y);
             }
-            curLevelPath.lineTo(w, mLevelTop+levelh);
-            curLevelPath.lineTo(startX, mLevelTop+levelh);
+            curLevelPath.lineTo(w, p.mLevelTop+levelh);
+            curLevelPath.lineTo(startX, p.mLevelTop+levelh);
             curLevelPath.close();
         }
         
         if (lastCharging) {
-            mChargingPath.lineTo(w, h-mChargingOffset);
+            paths.mChargingPath.lineTo(w, h-p.mChargingOffset);
         }
         if (lastScreenOn) {
-            mScreenOnPath.lineTo(w, h-mScreenOnOffset);
+            paths.mScreenOnPath.lineTo(w, h-p.mScreenOnOffset);
         }
         if (lastGpsOn) {
-            mGpsOnPath.lineTo(w, h-mGpsOnOffset);
+            paths.mGpsOnPath.lineTo(w, h-p.mGpsOnOffset);
         }
         if (lastFlashlightOn) {
-            mFlashlightOnPath.lineTo(w, h-mFlashlightOnOffset);
+            paths.mFlashlightOnPath.lineTo(w, h-p.mFlashlightOnOffset);
         }
         if (lastCameraOn) {
-            mCameraOnPath.lineTo(w, h-mCameraOnOffset);
+            paths.mCameraOnPath.lineTo(w, h-p.mCameraOnOffset);
         }
         if (lastWifiRunning) {
-            mWifiRunningPath.lineTo(w, h-mWifiRunningOffset);
+            paths.mWifiRunningPath.lineTo(w, h-p.mWifiRunningOffset);
         }
         if (lastCpuRunning) {
-            mCpuRunningPath.lineTo(w, h - mCpuRunningOffset);
+            paths.mCpuRunningPath.lineTo(w, h - p.mCpuRunningOffset);
         }
-        if (mHavePhoneSignal) {
-            mPhoneSignalChart.finish(w);
+        if (p.mHavePhoneSignal) {
+            paths.mPhoneSignalChart.finish(w);
         }
     }
 
@@ -738,7 +872,6 @@ public class BatteryHistoryChart extends View {
         mLevelTop = mHeaderHeight;
         mLevelLeft = mMaxPercentLabelStringWidth + mThinLineWidth*3;
         mLevelRight = w;
-        int levelWidth = mLevelRight-mLevelLeft;
 
         mTextPaint.setStrokeWidth(mThinLineWidth);
         mBatteryGoodPaint.setStrokeWidth(mThinLineWidth);
@@ -766,48 +899,121 @@ public class BatteryHistoryChart extends View {
             mPhoneSignalOffset = mCameraOnOffset + (mHaveCamera ? fullBarOffset : 0);
             mLevelOffset = mPhoneSignalOffset + (mHavePhoneSignal ? fullBarOffset : 0)
                     + mLineWidth*2 + mLineWidth/2;
-            if (mHavePhoneSignal) {
-                mPhoneSignalChart.init(w);
-            }
         } else {
             mScreenOnOffset = mGpsOnOffset = mCameraOnOffset = mFlashlightOnOffset =
                     mWifiRunningOffset = mCpuRunningOffset = mChargingOffset =
                     mPhoneSignalOffset = 0;
             mLevelOffset = fullBarOffset + mThinLineWidth*4;
-            if (mHavePhoneSignal) {
-                mPhoneSignalChart.init(0);
-            }
         }
 
-        mBatLevelPath.reset();
-        mBatGoodPath.reset();
-        mBatWarnPath.reset();
-        mTimeRemainPath.reset();
-        mBatCriticalPath.reset();
-        mScreenOnPath.reset();
-        mGpsOnPath.reset();
-        mFlashlightOnPath.reset();
-        mCameraOnPath.reset();
-        mWifiRunningPath.reset();
-        mCpuRunningPath.reset();
-        mChargingPath.reset();
-
         mTimeLabels.clear();
         mDateLabels.clear();
 
-        final long walltimeStart = mStartWallTime;
-        final long walltimeChange = mEndWallTime > walltimeStart
-                ? (mEndWallTime-walltimeStart) : 1;
-        long curWalltime = mStartWallTime;
+        final int levelh = h - mLevelOffset - mLevelTop;
+        mLevelBottom = mLevelTop + levelh;
+
+        // Build the paths off the UI thread; the previous ones are drawn until
+        // the new ones are ready.
+        startBuildingPaths(w, h, levelh);
+
+        if (mStartWallTime > 0 && mEndWallTime > mStartWallTime) {
+            // Create the time labels at the bottom.
+            boolean is24hr = is24Hour();
+            Calendar calStart = Calendar.getInstance();
+            calStart.setTimeInMillis(mStartWallTime);
+            calStart.set(Calendar.MILLISECOND, 0);
+            calStart.set(Calendar.SECOND, 0);
+            calStart.set(Calendar.MINUTE, 0);
+            long startRoundTime = calStart.getTimeInMillis();
+            if (startRoundTime < mStartWallTime) {
+                calStart.set(Calendar.HOUR_OF_DAY, calStart.get(Calendar.HOUR_OF_DAY)+1);
+                startRoundTime = calStart.getTimeInMillis();
+            }
+            Calendar calEnd = Calendar.getInstance();
+            calEnd.setTimeInMillis(mEndWallTime);
+            calEnd.set(Calendar.MILLISECOND, 0);
+            calEnd.set(Calendar.SECOND, 0);
+            calEnd.set(Calendar.MINUTE, 0);
+            long endRoundTime = calEnd.getTimeInMillis();
+            if (startRoundTime < endRoundTime) {
+                addTimeLabel(calStart, mLevelLeft, mLevelRight, is24hr);
+                Calendar calMid = Calendar.getInstance();
+                calMid.setTimeInMillis(mStartWallTime+((mEndWallTime-mStartWallTime)/2));
+                calMid.set(Calendar.MILLISECOND, 0);
+                calMid.set(Calendar.SECOND, 0);
+                calMid.set(Calendar.MINUTE, 0);
+                long calMidMillis = calMid.getTimeInMillis();
+                if (calMidMillis > startRoundTime && calMidMillis < endRoundTime) {
+                    addTimeLabel(calMid, mLevelLeft, mLevelRight, is24hr);
+                }
+                addTimeLabel(calEnd, mLevelLeft, mLevelRight, is24hr);
+            }
+
+            // Create the date labels if the chart includes multiple days
+            if (calStart.get(Calendar.DAY_OF_YEAR) != calEnd.get(Calendar.DAY_OF_YEAR) ||
+                    calStart.get(Calendar.YEAR) != calEnd.get(Calendar.YEAR)) {
+                boolean isDayFirst = isDayFirst();
+                calStart.set(Calendar.HOUR_OF_DAY, 0);
+                startRoundTime = calStart.getTimeInMillis();
+                if (startRoundTime < mStartWallTime) {
+                    calStart.set(Calendar.DAY_OF_YEAR, calStart.get(Calendar.DAY_OF_YEAR) + 1);
+                    startRoundTime = calStart.getTimeInMillis();
+                }
+                calEnd.set(Calendar.HOUR_OF_DAY, 0);
+                endRoundTime = calEnd.getTimeInMillis();
+                if (startRoundTime < endRoundTime) {
+                    addDateLabel(calStart, mLevelLeft, mLevelRight, isDayFirst);
+                    Calendar calMid = Calendar.getInstance();
+                    calMid.setTimeInMillis(startRoundTime + ((endRoundTime - startRoundTime) / 2));
+                    calMid.set(Calendar.HOUR_OF_DAY, 0);
+                    long calMidMillis = calMid.getTimeInMillis();
+                    if (calMidMillis > startRoundTime && calMidMillis < endRoundTime) {
+                        addDateLabel(calMid, mLevelLeft, mLevelRight, isDayFirst);
+                    }
+                }
+                addDateLabel(calEnd, mLevelLeft, mLevelRight, isDayFirst);
+            }
+        }
+
+        if (mTimeLabels.size() < 2) {
+            // If there are fewer than 2 time labels, then they are useless.  Just
+            // show an axis label giving the entire duration.
+            mDurationString = Formatter.formatShortElapsedTime(getContext(),
+                    mEndWallTime - mStartWallTime);
+            mDurationStringWidth = (int)mTextPaint.measureText(mDurationString);
+        } else {
+            mDurationString = null;
+            mDurationStringWidth = 0;
+        }
+    }
+
+    /**
+     * Build the paths of the chart from the decoded history and a copy of the chart state. This
+     * runs off the UI thread; if the size or stats change meanwhile, the build is cancelled and
+     * its paths are dropped.
+     */
+    static ChartPaths buildPaths(BuildParams p) {
+        final HistoryTimeline timeline = p.mTimeline;
+        final int w = p.mWidth;
+        final int h = p.mHeight;
+        final int levelh = p.mLevelHeight;
+        final ChartPaths paths = new ChartPaths();
+        if (p.mHavePhoneSignal) {
+            paths.mPhoneSignalChart.init(p.mLargeMode ? w : 0);
+        }
+
+        final long walltimeStart = p.mStartWallTime;
+        final long walltimeChange = p.mEndWallTime > walltimeStart
+                ? (p.mEndWallTime-walltimeStart) : 1;
+        long curWalltime = p.mStartWallTime;
         long lastRealtime = 0;
 
-        final int batLow = mBatLow;
-        final int batChange = mBatHigh-mBatLow;
+        final int batLow = p.mBatLow;
+        final int batChange = p.mBatHigh-p.mBatLow;
 
-        final int levelh = h - mLevelOffset - mLevelTop;
-        mLevelBottom = mLevelTop + levelh;
+        final int levelWidth = p.mLevelRight-p.mLevelLeft;
 
-        int x = mLevelLeft, y = 0, startX = mLevelLeft, lastX = -1, lastY = -1;
+        int x = p.mLevelLeft, y = 0, startX = p.mLevelLeft, lastX = -1, lastY = -1;
         int i = 0;
         Path curLevelPath = null;
         Path lastLinePath = null;
@@ -815,14 +1021,19 @@ public class BatteryHistoryChart extends View {
         boolean lastFlashlightOn = false, lastCameraOn = false;
         boolean lastWifiRunning = false, lastWifiSupplRunning = false, lastCpuRunning = false;
         int lastWifiSupplState = BatteryStats.WIFI_SUPPL_STATE_INVALID;
-        final int N = mNumHist;
-        if (mEndDataWallTime > mStartWallTime && mStats.startIteratingHistoryLocked()) {
-            final HistoryItem rec = new HistoryItem();
-            while (mStats.getNextHistoryLocked(rec) && i < N) {
-                if (rec.isDeltaData()) {
-                    curWalltime += rec.time-lastRealtime;
-                    lastRealtime = rec.time;
-                    x = mLevelLeft + (int)(((curWalltime-walltimeStart)*levelWidth)/walltimeChange);
+        final int N = timeline != null ? timeline.mSize : 0;
+        if (p.mEndDataWallTime > p.mStartWallTime) {
+            for (i = 0; i < N; i++) {
+                final byte cmd = timeline.mCmd[i];
+                final long time = timeline.mTime[i];
+                if (cmd == HistoryItem.CMD_UPDATE) {
+                    final byte batteryLevel = timeline.mLevel[i];
+                    final int states = timeline.mStates[i];
+                    final int states2 = timeline.mStates2[i];
+                    curWalltime += time-lastRealtime;
+                    lastRealtime = time;
+                    x = p.mLevelLeft
+                            + (int)(((curWalltime-walltimeStart)*levelWidth)/walltimeChange);
                     if (x < 0) {
                         x = 0;
                     }
@@ -836,16 +1047,16 @@ public class BatteryHistoryChart extends View {
                         sb.append(x);
                         Log.d("foo", sb.toString());
                     }
-                    y = mLevelTop + levelh - ((rec.batteryLevel-batLow)*(levelh-1))/batChange;
+                    y = p.mLevelTop + levelh - ((batteryLevel-batLow)*(levelh-1))/batChange;
 
                     if (lastX != x) {
                         // We have moved by at least a pixel.
                         if (lastY != y) {
                             // Don't plot changes within a pixel.
                             Path path;
-                            byte value = rec.batteryLevel;
-                            if (value <= mBatteryCriticalLevel) path = mBatCriticalPath;
-                            else if (value <= mBatteryWarnLevel) path = mBatWarnPath;
+                            byte value = batteryLevel;
+                            if (value <= p.mBatteryCriticalLevel) path = paths.mBatCriticalPath;
+                            else if (value <= p.mBatteryWarnLevel) path = paths.mBatWarnPath;
                             else path = null; //mBatGoodPath;
 
                             if (path != lastLinePath) {
@@ -861,7 +1072,7 @@ public class BatteryHistoryChart extends View {
                             }
 
                             if (curLevelPath == null) {
-                                curLevelPath = mBatLevelPath;
+                                curLevelPath = paths.mBatLevelPath;
                                 curLevelPath.moveTo(x, y);
                                 startX = x;
                             } else {
@@ -872,64 +1083,64 @@ public class BatteryHistoryChart extends View {
                         }
                     }
 
-                    if (mLargeMode) {
+                    if (p.mLargeMode) {
                         final boolean charging =
-                            (rec.states&HistoryItem.STATE_BATTERY_PLUGGED_FLAG) != 0;
+                            (states&HistoryItem.STATE_BATTERY_PLUGGED_FLAG) != 0;
                         if (charging != lastCharging) {
                             if (charging) {
-                                mChargingPath.moveTo(x, h-mChargingOffset);
+                                paths.mChargingPath.moveTo(x, h-p.mChargingOffset);
                             } else {
-                                mChargingPath.lineTo(x, h-mChargingOffset);
+                                paths.mChargingPath.lineTo(x, h-p.mChargingOffset);
                             }
                             lastCharging = charging;
                         }
 
                         final boolean screenOn =
-                            (rec.states&HistoryItem.STATE_SCREEN_ON_FLAG) != 0;
+                            (states&HistoryItem.STATE_SCREEN_ON_FLAG) != 0;
                         if (screenOn != lastScreenOn) {
                             if (screenOn) {
-                                mScreenOnPath.moveTo(x, h-mScreenOnOffset);
+                                paths.mScreenOnPath.moveTo(x, h-p.mScreenOnOffset);
                             } else {
-                                mScreenOnPath.lineTo(x, h-mScreenOnOffset);
+                                paths.mScreenOnPath.lineTo(x, h-p.mScreenOnOffset);
                             }
                             lastScreenOn = screenOn;
                         }
 
                         final boolean gpsOn =
-                            (rec.states&HistoryItem.STATE_GPS_ON_FLAG) != 0;
+                            (states&HistoryItem.STATE_GPS_ON_FLAG) != 0;
                         if (gpsOn != lastGpsOn) {
                             if (gpsOn) {
-                                mGpsOnPath.moveTo(x, h-mGpsOnOffset);
+                                paths.mGpsOnPath.moveTo(x, h-p.mGpsOnOffset);
                             } else {
-                                mGpsOnPath.lineTo(x, h-mGpsOnOffset);
+                                paths.mGpsOnPath.lineTo(x, h-p.mGpsOnOffset);
                             }
                             lastGpsOn = gpsOn;
                         }
 
                         final boolean flashlightOn =
-                            (rec.states2&HistoryItem.STATE2_FLASHLIGHT_FLAG) != 0;
+                            (states2&HistoryItem.STATE2_FLASHLIGHT_FLAG) != 0;
                         if (flashlightOn != lastFlashlightOn) {
                             if (flashlightOn) {
-                                mFlashlightOnPath.moveTo(x, h-mFlashlightOnOffset);
+                                paths.mFlashlightOnPath.moveTo(x, h-p.mFlashlightOnOffset);
                             } else {
-                                mFlashlightOnPath.lineTo(x, h-mFlashlightOnOffset);
+                                paths.mFlashlightOnPath.lineTo(x, h-p.mFlashlightOnOffset);
                             }
                             lastFlashlightOn = flashlightOn;
                         }
 
                         final boolean cameraOn =
-                            (rec.states2&HistoryItem.STATE2_CAMERA_FLAG) != 0;
+                            (states2&HistoryItem.STATE2_CAMERA_FLAG) != 0;
                         if (cameraOn != lastCameraOn) {
                             if (cameraOn) {
-                                mCameraOnPath.moveTo(x, h-mCameraOnOffset);
+                                paths.mCameraOnPath.moveTo(x, h-p.mCameraOnOffset);
                             } else {
-                                mCameraOnPath.lineTo(x, h-mCameraOnOffset);
+                                paths.mCameraOnPath.lineTo(x, h-p.mCameraOnOffset);
                             }
                             lastCameraOn = cameraOn;
                         }
 
                         final int wifiSupplState =
-                            ((rec.states2&HistoryItem.STATE2_WIFI_SUPPL_STATE_MASK)
+                            ((states2&HistoryItem.STATE2_WIFI_SUPPL_STATE_MASK)
                                     >> HistoryItem.STATE2_WIFI_SUPPL_STATE_SHIFT);
                         boolean wifiRunning;
                         if (lastWifiSupplState != wifiSupplState) {
@@ -950,67 +1161,69 @@ public class BatteryHistoryChart extends View {
                         } else {
                             wifiRunning = lastWifiSupplRunning;
                         }
-                        if ((rec.states&(HistoryItem.STATE_WIFI_FULL_LOCK_FLAG
+                        if ((states&(HistoryItem.STATE_WIFI_FULL_LOCK_FLAG
                                 |HistoryItem.STATE_WIFI_MULTICAST_ON_FLAG
                                 |HistoryItem.STATE_WIFI_SCAN_FLAG)) != 0) {
                             wifiRunning = true;
                         }
                         if (wifiRunning != lastWifiRunning) {
                             if (wifiRunning) {
-                                mWifiRunningPath.moveTo(x, h-mWifiRunningOffset);
+                                paths.mWifiRunningPath.moveTo(x, h-p.mWifiRunningOffset);
                             } else {
-                                mWifiRunningPath.lineTo(x, h-mWifiRunningOffset);
+                                paths.mWifiRunningPath.lineTo(x, h-p.mWifiRunningOffset);
                             }
                             lastWifiRunning = wifiRunning;
                         }
 
                         final boolean cpuRunning =
-                            (rec.states&HistoryItem.STATE_CPU_RUNNING_FLAG) != 0;
+                            (states&HistoryItem.STATE_CPU_RUNNING_FLAG) != 0;
                         if (cpuRunning != lastCpuRunning) {
                             if (cpuRunning) {
-                                mCpuRunningPath.moveTo(x, h - mCpuRunningOffset);
+                                paths.mCpuRunningPath.moveTo(x, h - p.mCpuRunningOffset);
                             } else {
-                                mCpuRunningPath.lineTo(x, h - mCpuRunningOffset);
+                                paths.mCpuRunningPath.lineTo(x, h - p.mCpuRunningOffset);
                             }
                             lastCpuRunning = cpuRunning;
                         }
 
-                        if (mLargeMode && mHavePhoneSignal) {
+                        if (p.mLargeMode && p.mHavePhoneSignal) {
                             int bin;
-                            if (((rec.states&HistoryItem.STATE_PHONE_STATE_MASK)
+                            if (((states&HistoryItem.STATE_PHONE_STATE_MASK)
                                     >> HistoryItem.STATE_PHONE_STATE_SHIFT)
                                     == ServiceState.STATE_POWER_OFF) {
                                 bin = 0;
-                            } else if ((rec.states&HistoryItem.STATE_PHONE_SCANNING_FLAG) != 0) {
+                            } else if ((states&HistoryItem.STATE_PHONE_SCANNING_FLAG) != 0) {
                                 bin = 1;
                             } else {
-                                bin = (rec.states&HistoryItem.STATE_PHONE_SIGNAL_STRENGTH_MASK)
+                                bin = (states&HistoryItem.STATE_PHONE_SIGNAL_STRENGTH_MASK)
                                         >> HistoryItem.STATE_PHONE_SIGNAL_STRENGTH_SHIFT;
                                 bin += 2;
                             }
-                            mPhoneSignalChart.addTick(x, bin);
+                            paths.mPhoneSignalChart.addTick(x, bin);
                         }
                     }
 
                 } else {
                     long lastWalltime = curWalltime;
-                    if (rec.cmd == HistoryItem.CMD_CURRENT_TIME
-                            || rec.cmd == HistoryItem.CMD_RESET) {
-                        if (rec.currentTime >= mStartWallTime) {
-                            curWalltime = rec.currentTime;
+                    if (cmd == HistoryItem.CMD_CURRENT_TIME
+                            || cmd == HistoryItem.CMD_RESET) {
+                        final long currentTime = timeline.mCurrentTime[i];
+                        if (currentTime >= p.mStartWallTime) {
+                            curWalltime = currentTime;
                         } else {
-                            curWalltime = mStartWallTime + (rec.time-mHistStart);
+                            curWalltime = p.mStartWallTime + (time-p.mHistStart);
                         }
-                        lastRealtime = rec.time;
+                        lastRealtime = time;
                     }
 
-                    if (rec.cmd != HistoryItem.CMD_OVERFLOW
-                            && (rec.cmd != HistoryItem.CMD_CURRENT_TIME
+                    if (cmd != HistoryItem.CMD_OVERFLOW
+                            && (cmd != HistoryItem.CMD_CURRENT_TIME
                                     || Math.abs(lastWalltime-curWalltime) > (60*60*1000))) {
                         if (curLevelPath != null) {
-                            finishPaths(x+1, h, levelh, startX, lastY, curLevelPath, lastX,
-                                    lastCharging, lastScreenOn, lastGpsOn, lastFlashlightOn,
-                                    lastCameraOn, lastWifiRunning, lastCpuRunning, lastLinePath);
+                            finishPaths(p, paths, x+1, h, levelh, startX, lastY,
+                                    curLevelPath, lastX, lastCharging, lastScreenOn, lastGpsOn,
+                                    lastFlashlightOn, lastCameraOn, lastWifiRunning,
+                                    lastCpuRunning, lastLinePath);
                             lastX = lastY = -1;
                             curLevelPath = null;
                             lastLinePath = null;
@@ -1019,125 +1232,82 @@ public class BatteryHistoryChart extends View {
                         }
                     }
                 }
-                
-                i++;
             }
-            mStats.finishIteratingHistoryLocked();
         }
 
         if (lastY < 0 || lastX < 0) {
             // Didn't get any data...
-            x = lastX = mLevelLeft;
-            y = lastY = mLevelTop + levelh - ((mBatteryLevel-batLow)*(levelh-1))/batChange;
+            x = lastX = p.mLevelLeft;
+            y = lastY = p.mLevelTop + levelh - ((p.mBatteryLevel-batLow)*(levelh-1))/batChange;
             Path path;
-            byte value = (byte)mBatteryLevel;
-            if (value <= mBatteryCriticalLevel) path = mBatCriticalPath;
-            else if (value <= mBatteryWarnLevel) path = mBatWarnPath;
+            byte value = (byte)p.mBatteryLevel;
+            if (value <= p.mBatteryCriticalLevel) path = paths.mBatCriticalPath;
+            else if (value <= p.mBatteryWarnLevel) path = paths.mBatWarnPath;
             else path = null; //mBatGoodPath;
             if (path != null) {
                 path.moveTo(x, y);
                 lastLinePath = path;
             }
-            mBatLevelPath.moveTo(x, y);
-            curLevelPath = mBatLevelPath;
+            paths.mBatLevelPath.moveTo(x, y);
+            curLevelPath = paths.mBatLevelPath;
             x = w;
         } else {
             // Figure out where the actual data ends on the screen.
-            x = mLevelLeft + (int)(((mEndDataWallTime-walltimeStart)*levelWidth)/walltimeChange);
+            x = p.mLevelLeft
+                    + (int)(((p.mEndDataWallTime-walltimeStart)*levelWidth)/walltimeChange);
             if (x < 0) {
                 x = 0;
             }
         }
 
-        finishPaths(x, h, levelh, startX, lastY, curLevelPath, lastX,
+        finishPaths(p, paths, x, h, levelh, startX, lastY, curLevelPath, lastX,
                 lastCharging, lastScreenOn, lastGpsOn, lastFlashlightOn, lastCameraOn,
                 lastWifiRunning, lastCpuRunning, lastLinePath);
 
         if (x < w) {
             // If we reserved room for the remaining time, create a final path to draw
             // that part of the UI.
-            mTimeRemainPath.moveTo(x, lastY);
-            int fullY = mLevelTop + levelh - ((100-batLow)*(levelh-1))/batChange;
-            int emptyY = mLevelTop + levelh - ((0-batLow)*(levelh-1))/batChange;
-            if (mDischarging) {
-                mTimeRemainPath.lineTo(mLevelRight, emptyY);
+            paths.mTimeRemainPath.moveTo(x, lastY);
+            int fullY = p.mLevelTop + levelh - ((100-batLow)*(levelh-1))/batChange;
+            int emptyY = p.mLevelTop + levelh - ((0-batLow)*(levelh-1))/batChange;
+            if (p.mDischarging) {
+                paths.mTimeRemainPath.lineTo(p.mLevelRight, emptyY);
             } else {
-                mTimeRemainPath.lineTo(mLevelRight, fullY);
-                mTimeRemainPath.lineTo(mLevelRight, emptyY);
+                paths.mTimeRemainPath.lineTo(p.mLevelRight, fullY);
+                paths.mTimeRemainPath.lineTo(p.mLevelRight, emptyY);
             }
-            mTimeRemainPath.lineTo(x, emptyY);
-            mTimeRemainPath.close();
+            paths.mTimeRemainPath.lineTo(x, emptyY);
+            paths.mTimeRemainPath.close();
         }
 
-        if (mStartWallTime > 0 && mEndWallTime > mStartWallTime) {
-            // Create the time labels at the bottom.
-            boolean is24hr = is24Hour();
-            Calendar calStart = Calendar.getInstance();
-            calStart.setTimeInMillis(mStartWallTime);
-            calStart.set(Calendar.MILLISECOND, 0);
-            calStart.set(Calendar.SECOND, 0);
-            calStart.set(Calendar.MINUTE, 0);
-            long startRoundTime = calStart.getTimeInMillis();
-            if (startRoundTime < mStartWallTime) {
-                calStart.set(Calendar.HOUR_OF_DAY, calStart.get(Calendar.HOUR_OF_DAY)+1);
-                startRoundTime = calStart.getTimeInMillis();
-            }
-            Calendar calEnd = Calendar.getInstance();
-            calEnd.setTimeInMillis(mEndWallTime);
-            calEnd.set(Calendar.MILLISECOND, 0);
-            calEnd.set(Calendar.SECOND, 0);
-            calEnd.set(Calendar.MINUTE, 0);
-            long endRoundTime = calEnd.getTimeInMillis();
-            if (startRoundTime < endRoundTime) {
-                addTimeLabel(calStart, mLevelLeft, mLevelRight, is24hr);
-                Calendar calMid = Calendar.getInstance();
-                calMid.setTimeInMillis(mStartWallTime+((mEndWallTime-mStartWallTime)/2));
-                calMid.set(Calendar.MILLISECOND, 0);
-                calMid.set(Calendar.SECOND, 0);
-                calMid.set(Calendar.MINUTE, 0);
-                long calMidMillis = calMid.getTimeInMillis();
-                if (calMidMillis > startRoundTime && calMidMillis < endRoundTime) {
-                    addTimeLabel(calMid, mLevelLeft, mLevelRight, is24hr);
-                }
-                addTimeLabel(calEnd, mLevelLeft, mLevelRight, is24hr);
+        return paths;
+    }
+
+    void cancelBuildingPaths() {
+        if (mBuildPathsTask != null) {
+            mBuildPathsTask.cancel(false);
+            mBuildPathsTask = null;
+        }
+    }
+
+    void startBuildingPaths(int w, int h, int levelh) {
+        cancelBuildingPaths();
+        final BuildParams buildParams = new BuildParams(this, w, h, levelh);
+        mBuildPathsTask = new AsyncTask<Void, Void, ChartPaths>() {
+            @Override
+            protected ChartPaths doInBackground(Void... params) {
+                return buildPaths(buildParams);
             }
 
-            // Create the date labels if the chart includes multiple days
-            if (calStart.get(Calendar.DAY_OF_YEAR) != calEnd.get(Calendar.DAY_OF_YEAR) ||
-                    calStart.get(Calendar.YEAR) != calEnd.get(Calendar.YEAR)) {
-                boolean isDayFirst = isDayFirst();
-                calStart.set(Calendar.HOUR_OF_DAY, 0);
-                startRoundTime = calStart.getTimeInMillis();
-                if (startRoundTime < mStartWallTime) {
-                    calStart.set(Calendar.DAY_OF_YEAR, calStart.get(Calendar.DAY_OF_YEAR) + 1);
-                    startRoundTime = calStart.getTimeInMillis();
+            @Override
+            protected void onPostExecute(ChartPaths paths) {
+                if (mBuildPathsTask == this) {
+                    mBuildPathsTask = null;
                 }
-                calEnd.set(Calendar.HOUR_OF_DAY, 0);
-                endRoundTime = calEnd.getTimeInMillis();
-                if (startRoundTime < endRoundTime) {
-                    addDateLabel(calStart, mLevelLeft, mLevelRight, isDayFirst);
-                    Calendar calMid = Calendar.getInstance();
-                    calMid.setTimeInMillis(startRoundTime + ((endRoundTime - startRoundTime) / 2));
-                    calMid.set(Calendar.HOUR_OF_DAY, 0);
-                    long calMidMillis = calMid.getTimeInMillis();
-                    if (calMidMillis > startRoundTime && calMidMillis < endRoundTime) {
-                        addDateLabel(calMid, mLevelLeft, mLevelRight, isDayFirst);
-                    }
-                }
-                addDateLabel(calEnd, mLevelLeft, mLevelRight, isDayFirst);
+                mPaths = paths;
+                invalidate();
             }
-        }
-
-        if (mTimeLabels.size() < 2) {
-            // If there are fewer than 2 time labels, then they are useless.  Just
-            // show an axis label giving the entire duration.
-            mDurationString = Formatter.formatShortElapsedTime(getContext(),
-                    mEndWallTime - mStartWallTime);
-            mDurationStringWidth = (int)mTextPaint.measureText(mDurationString);
-        } else {
-            mDurationString = null;
-            mDurationStringWidth = 0;
-        }
+        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
     }
 
     void addTimeLabel(Calendar cal, int levelLeft, int levelRight, boolean is24hr) {
@@ -1186,6 +1356,7 @@ public class BatteryHistoryChart extends View {
     }
 
     void drawChart(Canvas canvas, int width, int height) {
+        final ChartPaths paths = mPaths;
         final boolean layoutRtl = isLayoutRtl();
         final int textStartX = layoutRtl ? width : 0;
         final int textEndX = layoutRtl ? 0 : width;
@@ -1197,10 +1368,10 @@ public class BatteryHistoryChart extends View {
         }
 
         if (DEBUG) Log.d(TAG, "Drawing level path.");
-        canvas.drawPath(mBatLevelPath, mBatteryBackgroundPaint);
-        if (!mTimeRemainPath.isEmpty()) {
+        canvas.drawPath(paths.mBatLevelPath, mBatteryBackgroundPaint);
+        if (!paths.mTimeRemainPath.isEmpty()) {
             if (DEBUG) Log.d(TAG, "Drawing time remain path.");
-            canvas.drawPath(mTimeRemainPath, mTimeRemainPaint);
+            canvas.drawPath(paths.mTimeRemainPath, mTimeRemainPaint);
         }
         if (mTimeLabels.size() > 1) {
             int y = mLevelBottom - mTextAscent + (mThinLineWidth*4);
@@ -1268,54 +1439,54 @@ public class BatteryHistoryChart extends View {
             if (DEBUG) Log.d(TAG, "Drawing good battery path");
             canvas.drawPath(mBatGoodPath, mBatteryGoodPaint);
         }
-        if (!mBatWarnPath.isEmpty()) {
+        if (!paths.mBatWarnPath.isEmpty()) {
             if (DEBUG) Log.d(TAG, "Drawing warn battery path");
-            canvas.drawPath(mBatWarnPath, mBatteryWarnPaint);
+            canvas.drawPath(paths.mBatWarnPath, mBatteryWarnPaint);
         }
-        if (!mBatCriticalPath.isEmpty()) {
+        if (!paths.mBatCriticalPath.isEmpty()) {
             if (DEBUG) Log.d(TAG, "Drawing critical battery path");
-            canvas.drawPath(mBatCriticalPath, mBatteryCriticalPaint);
+            canvas.drawPath(paths.mBatCriticalPath, mBatteryCriticalPaint);
         }
         if (mHavePhoneSignal) {
             if (DEBUG) Log.d(TAG, "Drawing phone signal path");
             int top = height-mPhoneSignalOffset - (mLineWidth/2);
-            mPhoneSignalChart.draw(canvas, top, mLineWidth);
+            paths.mPhoneSignalChart.draw(canvas, top, mLineWidth);
         }
-        if (!mScreenOnPath.isEmpty()) {
+        if (!paths.mScreenOnPath.isEmpty()) {
             if (DEBUG) Log.d(TAG, "Drawing screen on path");
-            canvas.drawPath(mScreenOnPath, mScreenOnPaint);
+            canvas.drawPath(paths.mScreenOnPath, mScreenOnPaint);
         }
-        if (!mChargingPath.isEmpty()) {
+        if (!paths.mChargingPath.isEmpty()) {
             if (DEBUG) Log.d(TAG, "Drawing charging path");
-            canvas.drawPath(mChargingPath, mChargingPaint);
+            canvas.drawPath(paths.mChargingPath, mChargingPaint);
         }
         if (mHaveGps) {
-            if (!mGpsOnPath.isEmpty()) {
+            if (!paths.mGpsOnPath.isEmpty()) {
                 if (DEBUG) Log.d(TAG, "Drawing gps path");
-                canvas.drawPath(mGpsOnPath, mGpsOnPaint);
+                canvas.drawPath(paths.mGpsOnPath, mGpsOnPaint);
             }
         }
         if (mHaveFlashlight) {
-            if (!mFlashlightOnPath.isEmpty()) {
+            if (!paths.mFlashlightOnPath.isEmpty()) {
                 if (DEBUG) Log.d(TAG, "Drawing flashlight path");
-                canvas.drawPath(mFlashlightOnPath, mFlashlightOnPaint);
+                canvas.drawPath(paths.mFlashlightOnPath, mFlashlightOnPaint);
             }
         }
         if (mHaveCamera) {
-            if (!mCameraOnPath.isEmpty()) {
+            if (!paths.mCameraOnPath.isEmpty()) {
                 if (DEBUG) Log.d(TAG, "Drawing camera path");
-                canvas.drawPath(mCameraOnPath, mCameraOnPaint);
+                canvas.drawPath(paths.mCameraOnPath, mCameraOnPaint);
             }
         }
         if (mHaveWifi) {
-            if (!mWifiRunningPath.isEmpty()) {
+            if (!paths.mWifiRunningPath.isEmpty()) {
                 if (DEBUG) Log.d(TAG, "Drawing wifi path");
-                canvas.drawPath(mWifiRunningPath, mWifiRunningPaint);
+                canvas.drawPath(paths.mWifiRunningPath, mWifiRunningPaint);
             }
         }
-        if (!mCpuRunningPath.isEmpty()) {
+        if (!paths.mCpuRunningPath.isEmpty()) {
             if (DEBUG) Log.d(TAG, "Drawing running path");
-            canvas.drawPath(mCpuRunningPath, mCpuRunningPaint);
+            canvas.drawPath(paths.mCpuRunningPath, mCpuRunningPaint);
         }
 
         if (mLargeMode) {
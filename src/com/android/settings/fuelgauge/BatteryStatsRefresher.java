@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.fuelgauge;
+
+import android.content.Context;
+import android.os.AsyncTask;
+import android.os.BatteryStats;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.os.UserHandle;
+import android.util.Log;
+
+import com.android.internal.os.BatteryStatsHelper;
+import com.android.settings.R;
+
+import java.io.PrintWriter;
+import java.util.List;
+
+/**
+ * Refreshes battery stats in the background, and keeps the last computed stats as a process
+ * wide snapshot so that the battery screens can show the last known usage immediately while
+ * the stats are computed again.
+ *
+ * Each refresh loads the stats into a new {@link BatteryStatsHelper}, which is not modified
+ * once published, so the snapshot can be read on the UI thread while another refresh runs.
+ * Refreshes that are not forced are done at most once per minimum refresh interval.
+ */
+public class BatteryStatsRefresher {
+    private static final String TAG = "BatteryStatsRefresher";
+    private static final boolean DEBUG = false;
+
+    // Last computed stats, and the time at which they started to be loaded
+    private static BatteryStatsHelper sSnapshot;
+    private static int sSnapshotStatsType;
+    private static long sSnapshotElapsed = -1;
+
+    private static int sRefreshCount;
+    private static int sDelayedCount;
+    private static long sLastRefreshDuration;
+
+    public interface Callback {
+        /**
+         * Called on the UI thread with a helper holding the refreshed stats.
+         */
+        void onStatsRefreshed(BatteryStatsHelper helper);
+    }
+
+    private final Context mContext;
+    private final Callback mCallback;
+    private final Handler mHandler = new Handler();
+    private final long mMinRefreshInterval;
+
+    private RefreshTask mTask;
+    private int mDelayedStatsType;
+    private List<UserHandle> mDelayedProfiles;
+
+    private final Runnable mDelayedRefresh = new Runnable() {
+        @Override
+        public void run() {
+            startRefresh(mDelayedStatsType, mDelayedProfiles);
+        }
+    };
+
+    public BatteryStatsRefresher(Context context, Callback callback) {
+        mContext = context.getApplicationContext();
+        mCallback = callback;
+        mMinRefreshInterval = context.getResources().getInteger(
+                R.integer.config_battery_stats_min_refresh_interval);
+    }
+
+    /**
+     * Return the last computed stats of the given type, or null if there are none.
+     */
+    public static BatteryStatsHelper getSnapshot(int statsType) {
+        synchronized (BatteryStatsRefresher.class) {
+            return sSnapshotStatsType == statsType ? sSnapshot : null;
+        }
+    }
+
+    /**
+     * Refresh the stats in the background. Unless forced, the refresh is delayed until the
+     * minimum refresh interval elapsed since the stats of the snapshot started to be loaded,
+     * and is skipped if a refresh of the same type is already running.
+     */
+    public void refresh(int statsType, List<UserHandle> profiles, boolean force) {
+        mHandler.removeCallbacks(mDelayedRefresh);
+        if (!force) {
+            if (mTask != null && mTask.mStatsType == statsType) {
+                return;
+            }
+            final long age = getSnapshotAge(statsType);
+            if (age >= 0 && age < mMinRefreshInterval) {
+                synchronized (BatteryStatsRefresher.class) {
+                    sDelayedCount++;
+                }
+                mDelayedStatsType = statsType;
+                mDelayedProfiles = profiles;
+                mHandler.postDelayed(mDelayedRefresh, mMinRefreshInterval - age);
+                return;
+            }
+        }
+        startRefresh(statsType, profiles);
+    }
+
+    /**
+     * Stop delivering refreshed stats. A running refresh still completes and updates the
+     * snapshot.
+     */
+    public void stop() {
+        mHandler.removeCallbacks(mDelayedRefresh);
+        mDelayedProfiles = null;
+        mTask = null;
+    }
+
+    public static void dump(String prefix, PrintWriter pw) {
+        synchronized (BatteryStatsRefresher.class) {
+            pw.println(prefix + "BatteryStatsRefresher: refreshes=" + sRefreshCount
+                    + " delayed=" + sDelayedCount + " lastDuration=" + sLastRefreshDuration
+                    + "ms snapshotAge=" + (sSnapshotElapsed >= 0
+                            ? (SystemClock.elapsedRealtime() - sSnapshotElapsed) + "ms" : "none"));
+        }
+    }
+
+    private void startRefresh(int statsType, List<UserHandle> profiles) {
+        if (mTask != null) {
+            mTask.cancel(false);
+        }
+        mTask = new RefreshTask(statsType, profiles);
+        mTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    private static long getSnapshotAge(int statsType) {
+        synchronized (BatteryStatsRefresher.class) {
+            if (sSnapshot == null || sSnapshotStatsType != statsType) {
+                return -1;
+            }
+            return SystemClock.elapsedRealtime() - sSnapshotElapsed;
+        }
+    }
+
+    private class RefreshTask extends AsyncTask<Void, Void, BatteryStatsHelper> {
+        final int mStatsType;
+        final List<UserHandle> mProfiles;
+        final long mStartElapsed = SystemClock.elapsedRealtime();
+
+        RefreshTask(int statsType, List<UserHandle> profiles) {
+            mStatsType = statsType;
+            mProfiles = profiles;
+        }
+
+        @Override
+        protected BatteryStatsHelper doInBackground(Void... params) {
+            final BatteryStatsHelper helper = new BatteryStatsHelper(mContext, true);
+            helper.create((Bundle) null);
+            helper.refreshStats(mStatsType, mProfiles);
+            if (mStatsType == BatteryStats.STATS_SINCE_CHARGED) {
+                BatteryTrendStore.getInstance(mContext).record(helper);
+            }
+
+            final long duration = SystemClock.elapsedRealtime() - mStartElapsed;
+            if (DEBUG) Log.d(TAG, "Refreshed stats in " + duration + "ms");
+            synchronized (BatteryStatsRefresher.class) {
+                sRefreshCount++;
+                sLastRefreshDuration = duration;
+                // Keep the most recent stats if refreshes from several screens overlap.
+                if (sSnapshot == null || sSnapshotStatsType != mStatsType
+                        || sSnapshotElapsed <= mStartElapsed) {
+                    sSnapshot = helper;
+                    sSnapshotStatsType = mStatsType;
+                    sSnapshotElapsed = mStartElapsed;
+                }
+            }
+            return helper;
+        }
+
+        @Override
+        protected void onPostExecute(BatteryStatsHelper helper) {
+            if (mTask != this) {
+                return;
+            }
+            mTask = null;
+            mCallback.onStatsRefreshed(helper);
+        }
+    }
+}
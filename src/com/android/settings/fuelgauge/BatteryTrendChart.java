@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.fuelgauge;
+
+import android.content.Context;
+import android.content.res.TypedArray;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.text.TextPaint;
+import android.text.TextUtils;
+import android.util.AttributeSet;
+import android.view.View;
+
+import com.android.settings.R;
+
+/**
+ * Chart of the battery use of a few apps over the last charge cycles: one row per app, with
+ * one bar per cycle, oldest first. All the bars share the same scale so that rows can be
+ * compared.
+ */
+public class BatteryTrendChart extends View {
+
+    private final TextPaint mTextPaint = new TextPaint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint mBarPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint mEmptyPaint = new Paint();
+
+    private final int mRowHeight;
+    private final int mLabelWidth;
+    private final int mBarGap;
+
+    private CharSequence[] mLabels = new CharSequence[0];
+    private float[][] mValues = new float[0][];
+    private int mNumCycles;
+    private float mMaxValue;
+
+    public BatteryTrendChart(Context context, AttributeSet attrs) {
+        super(context, attrs);
+
+        mRowHeight = getResources().getDimensionPixelSize(R.dimen.battery_trend_row_height);
+        mLabelWidth = getResources().getDimensionPixelSize(R.dimen.battery_trend_label_width);
+        mBarGap = Math.max(1, mRowHeight / 8);
+
+        // Attributes are sorted by id, as required by obtainStyledAttributes().
+        final TypedArray a = context.obtainStyledAttributes(new int[] {
+                android.R.attr.textColorSecondary,
+                android.R.attr.colorControlActivated });
+        mTextPaint.setColor(a.getColor(0, 0));
+        mBarPaint.setColor(a.getColor(1, 0));
+        a.recycle();
+        mTextPaint.setTextSize(getResources().getDimension(R.dimen.battery_trend_text_size));
+        mTextPaint.density = getResources().getDisplayMetrics().density;
+        mEmptyPaint.setColor(getContext().getColor(R.color.material_empty_color_light));
+    }
+
+    /**
+     * Set the use to chart.
+     *
+     * @param labels the label of each row.
+     * @param values the use of each row, in mAh, for each cycle.
+     */
+    public void setTrends(CharSequence[] labels, float[][] values, int numCycles) {
+        mLabels = labels;
+        mValues = values;
+        mNumCycles = numCycles;
+        mMaxValue = 0;
+        for (float[] row : values) {
+            for (float value : row) {
+                mMaxValue = Math.max(mMaxValue, value);
+            }
+        }
+        requestLayout();
+        invalidate();
+    }
+
+    @Override
+    protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+        final int height = getPaddingTop() + getPaddingBottom() + mLabels.length * mRowHeight;
+        setMeasuredDimension(getDefaultSize(getSuggestedMinimumWidth(), widthMeasureSpec),
+                resolveSize(height, heightMeasureSpec));
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        if (mNumCycles == 0 || mMaxValue <= 0) {
+            return;
+        }
+
+        final boolean rtl = isLayoutRtl();
+        final int left = getPaddingLeft();
+        final int right = getWidth() - getPaddingRight();
+        final int barsStart = rtl ? left : left + mLabelWidth;
+        final int barsEnd = rtl ? right - mLabelWidth : right;
+        final float slot = (float) (barsEnd - barsStart) / mNumCycles;
+        final float barHeight = mRowHeight - mBarGap * 2;
+        final float textOffset = (mRowHeight - mTextPaint.ascent() - mTextPaint.descent()) / 2;
+        mTextPaint.setTextAlign(rtl ? Paint.Align.RIGHT : Paint.Align.LEFT);
+
+        int top = getPaddingTop();
+        for (int i = 0; i < mLabels.length; i++) {
+            final CharSequence label = TextUtils.ellipsize(mLabels[i], mTextPaint,
+                    mLabelWidth - mBarGap * 2, TextUtils.TruncateAt.END);
+            canvas.drawText(label, 0, label.length(), rtl ? right : left, top + textOffset,
+                    mTextPaint);
+
+            final float[] row = mValues[i];
+            final float bottom = top + mRowHeight - mBarGap;
+            for (int j = 0; j < mNumCycles; j++) {
+                // Oldest cycle at the start
+                final int slotIndex = rtl ? mNumCycles - 1 - j : j;
+                final float barLeft = barsStart + slot * slotIndex + mBarGap;
+                final float barRight = barsStart + slot * (slotIndex + 1) - mBarGap;
+                canvas.drawRect(barLeft, bottom - 1, barRight, bottom, mEmptyPaint);
+                if (row[j] > 0) {
+                    final float height = Math.max(1, barHeight * row[j] / mMaxValue);
+                    canvas.drawRect(barLeft, bottom - height, barRight, bottom, mBarPaint);
+                }
+            }
+            top += mRowHeight;
+        }
+    }
+}
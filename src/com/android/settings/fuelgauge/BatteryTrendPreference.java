@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.fuelgauge;
+
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.os.AsyncTask;
+import android.os.Process;
+import android.os.UserHandle;
+import android.preference.Preference;
+import android.util.AttributeSet;
+import android.util.SparseLongArray;
+import android.view.View;
+
+import com.android.internal.os.BatterySipper.DrainType;
+import com.android.settings.R;
+import com.android.settings.applications.AppLabelIconCache;
+
+import java.util.List;
+
+/**
+ * Preference showing the battery use of the apps that used the most battery over the last
+ * charge cycles, read from the {@link BatteryTrendStore}.
+ */
+public class BatteryTrendPreference extends Preference {
+
+    // Number of apps shown
+    private static final int MAX_ROWS = 5;
+
+    // Number of cycles needed for a trend to be shown
+    private static final int MIN_CYCLES = 2;
+
+    private CharSequence[] mLabels = new CharSequence[0];
+    private float[][] mValues = new float[0][];
+    private int mNumCycles;
+
+    private AsyncTask<Void, Void, Trends> mLoadTask;
+
+    private static class Trends {
+        CharSequence[] labels;
+        float[][] values;
+        int numCycles;
+    }
+
+    public BatteryTrendPreference(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        setLayoutResource(R.layout.battery_trend_chart);
+        setSummary(R.string.battery_trend_not_enough_data);
+    }
+
+    /**
+     * Load the trends from the store in the background, and show them once loaded.
+     */
+    public void loadTrends() {
+        if (mLoadTask != null) {
+            mLoadTask.cancel(false);
+        }
+        final Context context = getContext().getApplicationContext();
+        mLoadTask = new AsyncTask<Void, Void, Trends>() {
+            @Override
+            protected Trends doInBackground(Void... params) {
+                return buildTrends(context);
+            }
+
+            @Override
+            protected void onPostExecute(Trends trends) {
+                mLoadTask = null;
+                mLabels = trends.labels;
+                mValues = trends.values;
+                mNumCycles = trends.numCycles;
+                setSummary(mNumCycles >= MIN_CYCLES ? null
+                        : getContext().getString(R.string.battery_trend_not_enough_data));
+                notifyChanged();
+            }
+        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    @Override
+    protected void onBindView(View view) {
+        super.onBindView(view);
+
+        final BatteryTrendChart chart =
+                (BatteryTrendChart) view.findViewById(R.id.battery_trend_chart);
+        if (mNumCycles >= MIN_CYCLES) {
+            chart.setTrends(mLabels, mValues, mNumCycles);
+            chart.setVisibility(View.VISIBLE);
+        } else {
+            chart.setVisibility(View.GONE);
+        }
+    }
+
+    private static Trends buildTrends(Context context) {
+        final List<BatteryTrendStore.Cycle> cycles =
+                BatteryTrendStore.getInstance(context).getCycles(BatteryTrendStore.MAX_CYCLES);
+        final int numCycles = cycles.size();
+
+        // Total use of each key over all the cycles, in 1/1000 mAh
+        final SparseLongArray totals = new SparseLongArray();
+        for (int i = 0; i < numCycles; i++) {
+            final BatteryTrendStore.Cycle cycle = cycles.get(i);
+            for (int j = 0; j < cycle.getKeyCount(); j++) {
+                final int key = cycle.getKeyAt(j);
+                if (key != BatteryTrendStore.KEY_DISCHARGE) {
+                    totals.put(key, totals.get(key) + cycle.getValueAt(j));
+                }
+            }
+        }
+
+        // Pick the keys with the highest totals, highest first.
+        final int numRows = Math.min(MAX_ROWS, totals.size());
+        final int[] keys = new int[numRows];
+        for (int row = 0; row < numRows; row++) {
+            int maxIndex = -1;
+            for (int i = 0; i < totals.size(); i++) {
+                if (totals.valueAt(i) >= 0
+                        && (maxIndex < 0 || totals.valueAt(i) > totals.valueAt(maxIndex))) {
+                    maxIndex = i;
+                }
+            }
+            keys[row] = totals.keyAt(maxIndex);
+            totals.put(keys[row], -1);
+        }
+
+        final Trends trends = new Trends();
+        trends.numCycles = numCycles;
+        trends.labels = new CharSequence[numRows];
+        trends.values = new float[numRows][numCycles];
+        for (int row = 0; row < numRows; row++) {
+            trends.labels[row] = getLabel(context, keys[row]);
+            for (int i = 0; i < numCycles; i++) {
+                trends.values[row][i] = (float) cycles.get(i).getPowerMah(keys[row]);
+            }
+        }
+        return trends;
+    }
+
+    private static CharSequence getLabel(Context context, int key) {
+        final DrainType drainType = BatteryTrendStore.getDrainType(key);
+        if (drainType != null) {
+            final int resId = getDrainTypeLabel(drainType);
+            return resId != 0 ? context.getString(resId) : drainType.name();
+        }
+        if (key == Process.ROOT_UID) {
+            return context.getString(R.string.process_kernel_label);
+        }
+
+        final PackageManager pm = context.getPackageManager();
+        final String[] packages = pm.getPackagesForUid(key);
+        if (packages == null || packages.length == 0) {
+            final String name = pm.getNameForUid(key);
+            return name != null ? name : Integer.toString(key);
+        }
+        try {
+            final ApplicationInfo info = pm.getApplicationInfoAsUser(packages[0], 0,
+                    UserHandle.getUserId(key));
+            return AppLabelIconCache.getInstance(context).getLabel(info);
+        } catch (PackageManager.NameNotFoundException e) {
+            return packages[0];
+        }
+    }
+
+    private static int getDrainTypeLabel(DrainType drainType) {
+        switch (drainType) {
+            case IDLE:
+                return R.string.power_idle;
+            case CELL:
+                return R.string.power_cell;
+            case PHONE:
+                return R.string.power_phone;
+            case WIFI:
+                return R.string.power_wifi;
+            case BLUETOOTH:
+                return R.string.power_bluetooth;
+            case SCREEN:
+                return R.string.power_screen;
+            case FLASHLIGHT:
+                return R.string.power_flashlight;
+            case UNACCOUNTED:
+                return R.string.power_unaccounted;
+            case OVERCOUNTED:
+                return R.string.power_overcounted;
+            case CAMERA:
+                return R.string.power_camera;
+            default:
+                return 0;
+        }
+    }
+}
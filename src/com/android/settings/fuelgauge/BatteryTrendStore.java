@@ -0,0 +1,413 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.fuelgauge;
+
+import android.content.Context;
+import android.os.BatteryStats;
+import android.os.SystemClock;
+import android.text.format.DateUtils;
+import android.util.AtomicFile;
+import android.util.Log;
+import android.util.SparseIntArray;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.os.BatterySipper;
+import com.android.internal.os.BatterySipper.DrainType;
+import com.android.internal.os.BatteryStatsHelper;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Store of the battery usage of each app and subsystem over the last charge cycles, so that
+ * usage trends can be shown after the stats since charged were reset.
+ *
+ * The store is an append-only file of fixed-width records, each giving the usage of one app or
+ * subsystem during one cycle; a later record of the same cycle and key replaces an earlier one.
+ * Only the values that changed since the last snapshot are appended, and the file is compacted
+ * to a single record per value, for the last {@link #MAX_CYCLES} cycles only, when it grows.
+ * Cycles are identified by the wall clock time at which their stats started.
+ */
+public class BatteryTrendStore {
+    private static final String TAG = "BatteryTrendStore";
+    private static final boolean DEBUG = false;
+
+    private static final String FILE_NAME = "battery_trends.bin";
+
+    // Size of a record: start time of the cycle, key, and value
+    private static final int RECORD_SIZE = 8 + 4 + 4;
+
+    // Number of charge cycles kept
+    public static final int MAX_CYCLES = 10;
+
+    // Number of records in the file above which it is compacted
+    private static final int COMPACT_RECORDS = 4096;
+
+    // Minimum time between two snapshots of the same cycle
+    private static final long SNAPSHOT_INTERVAL = 15 * DateUtils.MINUTE_IN_MILLIS;
+
+    // Usage below this value, in 1/1000 mAh, is not recorded
+    private static final int MIN_RECORDED_VALUE = 1000;
+
+    /** Key of the value holding the battery discharge of a cycle, in percent. */
+    public static final int KEY_DISCHARGE = Integer.MIN_VALUE;
+
+    // Keys of the drain types other than apps. They are written to disk, so they must not
+    // change, and must not depend on the order of the DrainType values.
+    private static final int KEY_NONE = Integer.MIN_VALUE + 1;
+    private static final int KEY_IDLE = -1;
+    private static final int KEY_CELL = -2;
+    private static final int KEY_PHONE = -3;
+    private static final int KEY_WIFI = -4;
+    private static final int KEY_BLUETOOTH = -5;
+    private static final int KEY_FLASHLIGHT = -6;
+    private static final int KEY_SCREEN = -7;
+    private static final int KEY_UNACCOUNTED = -8;
+    private static final int KEY_OVERCOUNTED = -9;
+    private static final int KEY_CAMERA = -10;
+
+    private static BatteryTrendStore sInstance;
+
+    private final AtomicFile mFile;
+
+    // Cycles ordered by start time, oldest first
+    private final ArrayList<Cycle> mCycles = new ArrayList<>();
+    private boolean mLoaded;
+    private int mNumRecords;
+    private long mLastSnapshotElapsed = -1;
+    // True if the file may end with a partial record, so that it must be rewritten before
+    // records are appended to it
+    private boolean mNeedsCompact;
+
+    /**
+     * Battery usage of one charge cycle.
+     */
+    public static class Cycle {
+        public final long startTime;
+
+        // Usage of each key in 1/1000 mAh, and discharge of the cycle in percent
+        final SparseIntArray mValues;
+
+        Cycle(long startTime, SparseIntArray values) {
+            this.startTime = startTime;
+            mValues = values;
+        }
+
+        public int getDischarge() {
+            return mValues.get(KEY_DISCHARGE);
+        }
+
+        public double getPowerMah(int key) {
+            return mValues.get(key) / 1000.0;
+        }
+
+        public int getKeyCount() {
+            return mValues.size();
+        }
+
+        public int getKeyAt(int index) {
+            return mValues.keyAt(index);
+        }
+
+        /**
+         * Return the value at the given index, in 1/1000 mAh, or in percent for the discharge.
+         */
+        public int getValueAt(int index) {
+            return mValues.valueAt(index);
+        }
+    }
+
+    public static BatteryTrendStore getInstance(Context context) {
+        synchronized (BatteryTrendStore.class) {
+            if (sInstance == null) {
+                sInstance = new BatteryTrendStore(context.getApplicationContext());
+            }
+            return sInstance;
+        }
+    }
+
+    private BatteryTrendStore(Context context) {
+        this(new File(context.getFilesDir(), FILE_NAME));
+    }
+
+    @VisibleForTesting
+    BatteryTrendStore(File file) {
+        mFile = new AtomicFile(file);
+    }
+
+    /**
+     * Return the key under which the usage of the given sipper is stored: the UID of apps, a
+     * negative value for the other drain types, or KEY_NONE if the usage is not stored.
+     */
+    public static int getKey(BatterySipper sipper) {
+        switch (sipper.drainType) {
+            case APP:
+                return sipper.getUid();
+            case IDLE:
+                return KEY_IDLE;
+            case CELL:
+                return KEY_CELL;
+            case PHONE:
+                return KEY_PHONE;
+            case WIFI:
+                return KEY_WIFI;
+            case BLUETOOTH:
+                return KEY_BLUETOOTH;
+            case FLASHLIGHT:
+                return KEY_FLASHLIGHT;
+            case SCREEN:
+                return KEY_SCREEN;
+            case UNACCOUNTED:
+                return KEY_UNACCOUNTED;
+            case OVERCOUNTED:
+                return KEY_OVERCOUNTED;
+            case CAMERA:
+                return KEY_CAMERA;
+            default:
+                return KEY_NONE;
+        }
+    }
+
+    /**
+     * Return the drain type of the given key, or null if it is the key of an app.
+     */
+    public static DrainType getDrainType(int key) {
+        switch (key) {
+            case KEY_IDLE:
+                return DrainType.IDLE;
+            case KEY_CELL:
+                return DrainType.CELL;
+            case KEY_PHONE:
+                return DrainType.PHONE;
+            case KEY_WIFI:
+                return DrainType.WIFI;
+            case KEY_BLUETOOTH:
+                return DrainType.BLUETOOTH;
+            case KEY_FLASHLIGHT:
+                return DrainType.FLASHLIGHT;
+            case KEY_SCREEN:
+                return DrainType.SCREEN;
+            case KEY_UNACCOUNTED:
+                return DrainType.UNACCOUNTED;
+            case KEY_OVERCOUNTED:
+                return DrainType.OVERCOUNTED;
+            case KEY_CAMERA:
+                return DrainType.CAMERA;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Record the usage since charged held by the given helper, unless the same cycle was
+     * recorded recently. Must not be called from the main thread.
+     */
+    public synchronized void record(BatteryStatsHelper helper) {
+        final BatteryStats stats = helper.getStats();
+        final List<BatterySipper> usageList = helper.getUsageList();
+        if (stats == null || usageList == null) {
+            return;
+        }
+        record(stats.getStartClockTime(),
+                stats.getDischargeAmount(BatteryStats.STATS_SINCE_CHARGED), usageList);
+    }
+
+    /**
+     * Record the usage of the given sippers and the discharge of the cycle started at the given
+     * time, unless the same cycle was recorded recently.
+     */
+    @VisibleForTesting
+    synchronized void record(long startTime, int discharge, List<BatterySipper> usageList) {
+        ensureLoaded();
+
+        final long now = SystemClock.elapsedRealtime();
+        final int size = mCycles.size();
+        if (size > 0 && mCycles.get(size - 1).startTime == startTime
+                && mLastSnapshotElapsed >= 0 && now - mLastSnapshotElapsed < SNAPSHOT_INTERVAL) {
+            return;
+        }
+        mLastSnapshotElapsed = now;
+
+        final SparseIntArray values = getCycleValues(startTime);
+        final ByteBuffer buffer = ByteBuffer.allocate((usageList.size() + 1) * RECORD_SIZE);
+        putValue(buffer, startTime, values, KEY_DISCHARGE, discharge);
+        final int numSippers = usageList.size();
+        for (int i = 0; i < numSippers; i++) {
+            final BatterySipper sipper = usageList.get(i);
+            final int key = getKey(sipper);
+            if (key == KEY_NONE) {
+                continue;
+            }
+            final int value = (int) Math.min(Integer.MAX_VALUE,
+                    Math.round(sipper.totalPowerMah * 1000));
+            if (value >= MIN_RECORDED_VALUE) {
+                putValue(buffer, startTime, values, key, value);
+            }
+        }
+        if (buffer.position() == 0) {
+            return;
+        }
+
+        final int numRecords = buffer.position() / RECORD_SIZE;
+        if (mNeedsCompact || hasBackup() || mNumRecords + numRecords > COMPACT_RECORDS
+                || mCycles.size() > MAX_CYCLES) {
+            compact();
+        } else {
+            append(buffer);
+            mNumRecords += numRecords;
+        }
+        if (DEBUG) Log.d(TAG, "Recorded " + numRecords + " values, " + mNumRecords + " in file");
+    }
+
+    /**
+     * Return a copy of the most recent cycles, oldest first.
+     */
+    public synchronized List<Cycle> getCycles(int maxCycles) {
+        ensureLoaded();
+        final int size = mCycles.size();
+        final ArrayList<Cycle> cycles = new ArrayList<>(Math.min(size, maxCycles));
+        for (int i = Math.max(0, size - maxCycles); i < size; i++) {
+            final Cycle cycle = mCycles.get(i);
+            cycles.add(new Cycle(cycle.startTime, cycle.mValues.clone()));
+        }
+        return cycles;
+    }
+
+    private void putValue(ByteBuffer buffer, long startTime, SparseIntArray values, int key,
+            int value) {
+        final int index = values.indexOfKey(key);
+        if (index >= 0 && values.valueAt(index) == value) {
+            return;
+        }
+        values.put(key, value);
+        buffer.putLong(startTime).putInt(key).putInt(value);
+    }
+
+    private SparseIntArray getCycleValues(long startTime) {
+        // Cycles are mostly added in order, so look for the position from the end.
+        int i = mCycles.size();
+        while (i > 0 && mCycles.get(i - 1).startTime > startTime) {
+            i--;
+        }
+        if (i > 0 && mCycles.get(i - 1).startTime == startTime) {
+            return mCycles.get(i - 1).mValues;
+        }
+        final Cycle cycle = new Cycle(startTime, new SparseIntArray());
+        mCycles.add(i, cycle);
+        return cycle.mValues;
+    }
+
+    private void ensureLoaded() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+
+        final byte[] data;
+        try {
+            data = mFile.readFully();
+        } catch (FileNotFoundException e) {
+            return;
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot read battery trends", e);
+            return;
+        }
+        // A partial record at the end is the result of an interrupted append: ignore it, and
+        // rewrite the file before appending so that the next records stay aligned.
+        final ByteBuffer buffer = ByteBuffer.wrap(data);
+        mNumRecords = data.length / RECORD_SIZE;
+        mNeedsCompact = data.length % RECORD_SIZE != 0;
+        for (int i = 0; i < mNumRecords; i++) {
+            final long startTime = buffer.getLong();
+            final int key = buffer.getInt();
+            final int value = buffer.getInt();
+            getCycleValues(startTime).put(key, value);
+        }
+        if (DEBUG) {
+            Log.d(TAG, "Loaded " + mNumRecords + " records of " + mCycles.size() + " cycles");
+        }
+    }
+
+    /**
+     * Whether a compaction has been interrupted. The AtomicFile would restore its backup on the
+     * next read, dropping the records appended to the base file since, so the file must be
+     * rewritten through the AtomicFile instead of appended to.
+     */
+    private boolean hasBackup() {
+        return new File(mFile.getBaseFile().getPath() + ".bak").exists();
+    }
+
+    private void append(ByteBuffer buffer) {
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(mFile.getBaseFile(), true);
+            out.write(buffer.array(), 0, buffer.position());
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot append battery trends", e);
+            mNeedsCompact = true;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * Drop the oldest cycles, and rewrite the file with a single record per value.
+     */
+    private void compact() {
+        while (mCycles.size() > MAX_CYCLES) {
+            mCycles.remove(0);
+        }
+        int numRecords = 0;
+        for (int i = 0; i < mCycles.size(); i++) {
+            numRecords += mCycles.get(i).mValues.size();
+        }
+
+        final ByteBuffer buffer = ByteBuffer.allocate(numRecords * RECORD_SIZE);
+        for (int i = 0; i < mCycles.size(); i++) {
+            final Cycle cycle = mCycles.get(i);
+            final SparseIntArray values = cycle.mValues;
+            for (int j = 0; j < values.size(); j++) {
+                buffer.putLong(cycle.startTime).putInt(values.keyAt(j)).putInt(values.valueAt(j));
+            }
+        }
+
+        FileOutputStream out = null;
+        try {
+            out = mFile.startWrite();
+            out.write(buffer.array(), 0, buffer.position());
+            mFile.finishWrite(out);
+            mNumRecords = numRecords;
+            mNeedsCompact = false;
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot compact battery trends", e);
+            mFile.failWrite(out);
+            // The restored file may miss the latest records
+            mNeedsCompact = true;
+        }
+    }
+}
@@ -44,6 +44,8 @@ public abstract class PowerUsageBase extends SettingsPreferenceFragment {
     protected BatteryStatsHelper mStatsHelper;
     protected UserManager mUm;
 
+    private BatteryStatsRefresher mRefresher;
+
     private String mBatteryLevel;
     private String mBatteryStatus;
 
@@ -52,6 +54,13 @@ public abstract class PowerUsageBase extends SettingsPreferenceFragment {
         super.onAttach(activity);
         mUm = (UserManager) activity.getSystemService(Context.USER_SERVICE);
         mStatsHelper = new BatteryStatsHelper(activity, true);
+        mRefresher = new BatteryStatsRefresher(activity, new BatteryStatsRefresher.Callback() {
+            @Override
+            public void onStatsRefreshed(BatteryStatsHelper helper) {
+                mStatsHelper = helper;
+                onStatsRefreshed();
+            }
+        });
     }
 
     @Override
@@ -61,28 +70,33 @@ public abstract class PowerUsageBase extends SettingsPreferenceFragment {
         setHasOptionsMenu(true);
     }
 
-    @Override
-    public void onStart() {
-        super.onStart();
-        mStatsHelper.clearStats();
-    }
-
     @Override
     public void onResume() {
         super.onResume();
         BatteryStatsHelper.dropFile(getActivity(), BatteryHistoryPreference.BATTERY_HISTORY_FILE);
         updateBatteryStatus(getActivity().registerReceiver(mBatteryInfoReceiver,
                 new IntentFilter(Intent.ACTION_BATTERY_CHANGED)));
+        boolean force = false;
         if (mHandler.hasMessages(MSG_REFRESH_STATS)) {
             mHandler.removeMessages(MSG_REFRESH_STATS);
-            mStatsHelper.clearStats();
+            force = true;
         }
+
+        // Show the last known stats right away, and refresh them in the background.
+        final BatteryStatsHelper snapshot =
+                BatteryStatsRefresher.getSnapshot(BatteryStats.STATS_SINCE_CHARGED);
+        if (snapshot != null && snapshot != mStatsHelper) {
+            mStatsHelper = snapshot;
+            onStatsRefreshed();
+        }
+        refreshStats(force);
     }
 
     @Override
     public void onPause() {
         super.onPause();
         getActivity().unregisterReceiver(mBatteryInfoReceiver);
+        mRefresher.stop();
     }
 
     @Override
@@ -112,16 +126,26 @@ public abstract class PowerUsageBase extends SettingsPreferenceFragment {
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {
             case MENU_STATS_REFRESH:
-                mStatsHelper.clearStats();
-                refreshStats();
+                refreshStats(true);
                 mHandler.removeMessages(MSG_REFRESH_STATS);
                 return true;
         }
         return super.onOptionsItemSelected(item);
     }
 
-    protected void refreshStats() {
-        mStatsHelper.refreshStats(BatteryStats.STATS_SINCE_CHARGED, mUm.getUserProfiles());
+    /**
+     * Refresh the stats in the background, {@link #onStatsRefreshed()} is called once
+     * mStatsHelper holds the new stats. Unless forced, the stats are refreshed at most once per
+     * minimum refresh interval.
+     */
+    protected void refreshStats(boolean force) {
+        mRefresher.refresh(BatteryStats.STATS_SINCE_CHARGED, mUm.getUserProfiles(), force);
+    }
+
+    /**
+     * Called on the UI thread when mStatsHelper was replaced by a helper holding newer stats.
+     */
+    protected void onStatsRefreshed() {
     }
 
     protected void updatePreference(BatteryHistoryPreference historyPref) {
@@ -149,8 +173,7 @@ public abstract class PowerUsageBase extends SettingsPreferenceFragment {
         public void handleMessage(Message msg) {
             switch (msg.what) {
                 case MSG_REFRESH_STATS:
-                    mStatsHelper.clearStats();
-                    refreshStats();
+                    refreshStats(false);
                     break;
             }
         }
@@ -448,7 +448,7 @@ public class PowerUsageDetail extends PowerUsageBase implements Button.OnClickLi
             mControlsParent.removePreference(findPreference(KEY_HIGH_POWER));
         }
 
-        refreshStats();
+        refreshStats(false);
 
         fillDetailsSection();
         fillPackagesSection(mUid);
@@ -24,12 +24,15 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
 import android.os.Process;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.preference.Preference;
 import android.preference.PreferenceGroup;
 import android.preference.PreferenceScreen;
 import android.text.TextUtils;
+import android.util.Log;
 import android.util.SparseArray;
+import android.util.SparseBooleanArray;
 import android.util.TypedValue;
 import android.view.Menu;
 import android.view.MenuInflater;
@@ -65,6 +68,7 @@ public class PowerUsageSummary extends PowerUsageBase {
 
     private static final String KEY_APP_LIST = "app_list";
     private static final String KEY_BATTERY_HISTORY = "battery_history";
+    private static final String KEY_BATTERY_TREND = "battery_trend";
 
     private static final String FAST_CHARGE_FILE = "/sys/kernel/fast_charge/force_fast_charge";
 
@@ -75,6 +79,7 @@ public class PowerUsageSummary extends PowerUsageBase {
     private static final int MENU_FAST_CHARGE = Menu.FIRST + 5;
 
     private BatteryHistoryPreference mHistPref;
+    private BatteryTrendPreference mTrendPref;
     private PreferenceGroup mAppListGroup;
 
     private int mStatsType = BatteryStats.STATS_SINCE_CHARGED;
@@ -90,6 +95,7 @@ public class PowerUsageSummary extends PowerUsageBase {
 
         addPreferencesFromResource(R.xml.power_usage_summary);
         mHistPref = (BatteryHistoryPreference) findPreference(KEY_BATTERY_HISTORY);
+        mTrendPref = (BatteryTrendPreference) findPreference(KEY_BATTERY_TREND);
         mAppListGroup = (PreferenceGroup) findPreference(KEY_APP_LIST);
     }
 
@@ -98,12 +104,6 @@ public class PowerUsageSummary extends PowerUsageBase {
         return MetricsLogger.FUELGAUGE_POWER_USAGE_SUMMARY;
     }
 
-    @Override
-    public void onResume() {
-        super.onResume();
-        refreshStats();
-    }
-
     @Override
     public void onPause() {
         BatteryEntry.stopRequestQueue();
@@ -169,7 +169,7 @@ public class PowerUsageSummary extends PowerUsageBase {
                 } else {
                     mStatsType = BatteryStats.STATS_SINCE_CHARGED;
                 }
-                refreshStats();
+                onStatsRefreshed();
                 return true;
             case MENU_BATTERY_SAVER:
                 sa.startPreferencePanel(BatterySaverSettings.class.getName(), null,
@@ -210,10 +210,15 @@ public class PowerUsageSummary extends PowerUsageBase {
      * We want to coalesce some UIDs. For example, dex2oat runs under a shared gid that
      * exists for all users of the same app. We detect this case and merge the power use
      * for dex2oat to the device OWNER's use of the app.
+     *
+     * The given sippers may belong to the shared stats snapshot, which is shown again when the
+     * screen is resumed, so they are never modified: sippers are combined into new ones.
      * @return A sorted list of apps using power.
      */
     private static List<BatterySipper> getCoalescedUsageList(final List<BatterySipper> sippers) {
         final SparseArray<BatterySipper> uidList = new SparseArray<>();
+        // Whether the sipper of each uid was created here, and so can be modified
+        final SparseBooleanArray ownedSippers = new SparseBooleanArray();
 
         final ArrayList<BatterySipper> results = new ArrayList<>();
         final int numSippers = sippers.size();
@@ -238,23 +243,25 @@ public class PowerUsageSummary extends PowerUsageBase {
                     realUid = Process.SYSTEM_UID;
                 }
 
-                if (realUid != sipper.getUid()) {
+                final boolean owned = realUid != sipper.getUid();
+                if (owned) {
                     // Replace the BatterySipper with a new one with the real UID set.
-                    BatterySipper newSipper = new BatterySipper(sipper.drainType,
-                            new FakeUid(realUid), 0.0);
-                    newSipper.add(sipper);
-                    newSipper.packageWithHighestDrain = sipper.packageWithHighestDrain;
-                    newSipper.mPackages = sipper.mPackages;
-                    sipper = newSipper;
+                    sipper = copySipper(sipper, new FakeUid(realUid));
                 }
 
                 int index = uidList.indexOfKey(realUid);
                 if (index < 0) {
                     // New entry.
                     uidList.put(realUid, sipper);
+                    ownedSippers.put(realUid, owned);
                 } else {
                     // Combine BatterySippers if we already have one with this UID.
-                    final BatterySipper existingSipper = uidList.valueAt(index);
+                    BatterySipper existingSipper = uidList.valueAt(index);
+                    if (!ownedSippers.get(realUid)) {
+                        existingSipper = copySipper(existingSipper, existingSipper.uidObj);
+                        uidList.setValueAt(index, existingSipper);
+                        ownedSippers.put(realUid, true);
+                    }
                     existingSipper.add(sipper);
                     if (existingSipper.packageWithHighestDrain == null
                             && sipper.packageWithHighestDrain != null) {
@@ -296,9 +303,19 @@ public class PowerUsageSummary extends PowerUsageBase {
         return results;
     }
 
-    protected void refreshStats() {
-        super.refreshStats();
+    private static BatterySipper copySipper(BatterySipper sipper, BatteryStats.Uid uid) {
+        final BatterySipper newSipper = new BatterySipper(sipper.drainType, uid, 0.0);
+        newSipper.add(sipper);
+        newSipper.packageWithHighestDrain = sipper.packageWithHighestDrain;
+        newSipper.mPackages = sipper.mPackages;
+        return newSipper;
+    }
+
+    @Override
+    protected void onStatsRefreshed() {
+        final long startTime = SystemClock.uptimeMillis();
         updatePreference(mHistPref);
+        mTrendPref.loadTrends();
         mAppListGroup.removeAll();
         mAppListGroup.setOrderingAsAdded(false);
         boolean addedSome = false;
@@ -389,6 +406,9 @@ public class PowerUsageSummary extends PowerUsageBase {
         }
 
         BatteryEntry.startRequestQueue();
+        if (DEBUG) {
+            Log.d(TAG, "Showed stats in " + (SystemClock.uptimeMillis() - startTime) + "ms");
+        }
     }
 
     private static List<BatterySipper> getFakeStats() {
@@ -430,15 +450,16 @@ public class PowerUsageSummary extends PowerUsageBase {
         public void handleMessage(Message msg) {
             switch (msg.what) {
                 case BatteryEntry.MSG_UPDATE_NAME_ICON:
-                    BatteryEntry entry = (BatteryEntry) msg.obj;
-                    PowerGaugePreference pgp =
-                            (PowerGaugePreference) findPreference(
-                                    Integer.toString(entry.sipper.uidObj.getUid()));
-                    if (pgp != null) {
-                        final int userId = UserHandle.getUserId(entry.sipper.getUid());
-                        final UserHandle userHandle = new UserHandle(userId);
-                        pgp.setIcon(mUm.getBadgedIconForUser(entry.getIcon(), userHandle));
-                        pgp.setTitle(entry.name);
+                    for (BatteryEntry entry : BatteryEntry.takeUpdatedEntries()) {
+                        PowerGaugePreference pgp =
+                                (PowerGaugePreference) findPreference(
+                                        Integer.toString(entry.sipper.uidObj.getUid()));
+                        if (pgp != null) {
+                            final int userId = UserHandle.getUserId(entry.sipper.getUid());
+                            final UserHandle userHandle = new UserHandle(userId);
+                            pgp.setIcon(mUm.getBadgedIconForUser(entry.getIcon(), userHandle));
+                            pgp.setTitle(entry.name);
+                        }
                     }
                     break;
                 case BatteryEntry.MSG_REPORT_FULLY_DRAWN:
@@ -30,13 +30,25 @@ import android.net.NetworkStatsHistory;
 import android.net.NetworkTemplate;
 import android.os.Bundle;
 import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
 
+import com.android.settings.BackgroundExecutor;
 import com.android.settings.DataUsageSummary.AppItem;
 
+import java.io.PrintWriter;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
 /**
  * Loader for historical chart data for both network and UID details.
  */
 public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
+    private static final String TAG = "ChartDataLoader";
+    private static final boolean LOGD = false;
+
     private static final String KEY_TEMPLATE = "template";
     private static final String KEY_APP = "app";
     private static final String KEY_FIELDS = "fields";
@@ -44,6 +56,12 @@ public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
     private final INetworkStatsSession mSession;
     private final Bundle mArgs;
 
+    // Timing of the completed loads, reported by dump().
+    private static int sLoadCount;
+    private static int sLastLoadUids;
+    private static long sLastLoadDuration;
+    private static long sMaxLoadDuration;
+
     public static Bundle buildArgs(NetworkTemplate template, AppItem app) {
         return buildArgs(template, app, FIELD_RX_BYTES | FIELD_TX_BYTES);
     }
@@ -83,36 +101,78 @@ public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
         }
     }
 
-    private ChartData loadInBackground(NetworkTemplate template, AppItem app, int fields)
-            throws RemoteException {
+    private ChartData loadInBackground(final NetworkTemplate template, AppItem app,
+            final int fields) throws RemoteException {
+        final long start = SystemClock.elapsedRealtime();
         final ChartData data = new ChartData();
-        data.network = mSession.getHistoryForNetwork(template, fields);
-
-        if (app != null) {
-            // load stats for current uid and template
-            final int size = app.uids.size();
-            for (int i = 0; i < size; i++) {
-                final int uid = app.uids.keyAt(i);
-                data.detailDefault = collectHistoryForUid(
-                        template, uid, SET_DEFAULT, data.detailDefault);
-                data.detailForeground = collectHistoryForUid(
-                        template, uid, SET_FOREGROUND, data.detailForeground);
-            }
+        final int size = app != null ? app.uids.size() : 0;
+
+        // Items like "removed apps" or shared UIDs have many UIDs, so the history of each UID
+        // and set is requested concurrently, along with the history of the network.
+        final ExecutorService executor = BackgroundExecutor.get();
+        final Future<NetworkStatsHistory> network = executor.submit(
+                new Callable<NetworkStatsHistory>() {
+                    @Override
+                    public NetworkStatsHistory call() throws RemoteException {
+                        return mSession.getHistoryForNetwork(template, fields);
+                    }
+                });
+        final Future<NetworkStatsHistory>[] detailDefault = submitHistoryForUids(executor,
+                template, app, SET_DEFAULT);
+        final Future<NetworkStatsHistory>[] detailForeground = submitHistoryForUids(executor,
+                template, app, SET_FOREGROUND);
 
-            if (size > 0) {
-                data.detail = new NetworkStatsHistory(data.detailForeground.getBucketDuration());
-                data.detail.recordEntireHistory(data.detailDefault);
-                data.detail.recordEntireHistory(data.detailForeground);
-            } else {
-                data.detailDefault = new NetworkStatsHistory(HOUR_IN_MILLIS);
-                data.detailForeground = new NetworkStatsHistory(HOUR_IN_MILLIS);
-                data.detail = new NetworkStatsHistory(HOUR_IN_MILLIS);
+        try {
+            data.network = getHistory(network);
+
+            if (app != null) {
+                // Merge the stats of all uids in a single pass
+                for (int i = 0; i < size; i++) {
+                    data.detailDefault = combineHistory(data.detailDefault,
+                            getHistory(detailDefault[i]));
+                    data.detailForeground = combineHistory(data.detailForeground,
+                            getHistory(detailForeground[i]));
+                }
+
+                if (size > 0) {
+                    data.detail = new NetworkStatsHistory(
+                            data.detailForeground.getBucketDuration());
+                    data.detail.recordEntireHistory(data.detailDefault);
+                    data.detail.recordEntireHistory(data.detailForeground);
+                } else {
+                    data.detailDefault = new NetworkStatsHistory(HOUR_IN_MILLIS);
+                    data.detailForeground = new NetworkStatsHistory(HOUR_IN_MILLIS);
+                    data.detail = new NetworkStatsHistory(HOUR_IN_MILLIS);
+                }
             }
+        } finally {
+            // Don't leave requests queued on the shared executor if a request failed.
+            cancelAll(network);
+            cancelAll(detailDefault);
+            cancelAll(detailForeground);
         }
 
+        final long duration = SystemClock.elapsedRealtime() - start;
+        synchronized (ChartDataLoader.class) {
+            sLoadCount++;
+            sLastLoadUids = size;
+            sLastLoadDuration = duration;
+            sMaxLoadDuration = Math.max(sMaxLoadDuration, duration);
+        }
+        if (LOGD) {
+            Log.d(TAG, "Loaded history of " + size + " uids in " + duration + " millis");
+        }
         return data;
     }
 
+    public static void dump(String prefix, PrintWriter pw) {
+        synchronized (ChartDataLoader.class) {
+            pw.println(prefix + "ChartDataLoader: loads=" + sLoadCount + " lastUids="
+                    + sLastLoadUids + " lastDuration=" + sLastLoadDuration + "ms maxDuration="
+                    + sMaxLoadDuration + "ms");
+        }
+    }
+
     @Override
     protected void onStopLoading() {
         super.onStopLoading();
@@ -125,16 +185,30 @@ public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
         cancelLoad();
     }
 
+    @SuppressWarnings("unchecked")
+    private Future<NetworkStatsHistory>[] submitHistoryForUids(ExecutorService executor,
+            final NetworkTemplate template, AppItem app, final int set) {
+        final int size = app != null ? app.uids.size() : 0;
+        final Future<NetworkStatsHistory>[] histories = new Future[size];
+        for (int i = 0; i < size; i++) {
+            final int uid = app.uids.keyAt(i);
+            histories[i] = executor.submit(new Callable<NetworkStatsHistory>() {
+                @Override
+                public NetworkStatsHistory call() throws RemoteException {
+                    return mSession.getHistoryForUid(
+                            template, uid, set, TAG_NONE, FIELD_RX_BYTES | FIELD_TX_BYTES);
+                }
+            });
+        }
+        return histories;
+    }
+
     /**
-     * Collect {@link NetworkStatsHistory} for the requested UID, combining with
-     * an existing {@link NetworkStatsHistory} if provided.
+     * Combine the given {@link NetworkStatsHistory} with an existing
+     * {@link NetworkStatsHistory} if provided.
      */
-    private NetworkStatsHistory collectHistoryForUid(
-            NetworkTemplate template, int uid, int set, NetworkStatsHistory existing)
-            throws RemoteException {
-        final NetworkStatsHistory history = mSession.getHistoryForUid(
-                template, uid, set, TAG_NONE, FIELD_RX_BYTES | FIELD_TX_BYTES);
-
+    private static NetworkStatsHistory combineHistory(NetworkStatsHistory existing,
+            NetworkStatsHistory history) {
         if (existing != null) {
             existing.recordEntireHistory(history);
             return existing;
@@ -142,4 +216,24 @@ public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
             return history;
         }
     }
+
+    private static NetworkStatsHistory getHistory(Future<NetworkStatsHistory> future)
+            throws RemoteException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RemoteException) {
+                throw (RemoteException) e.getCause();
+            }
+            throw new RuntimeException("problem reading network stats", e.getCause());
+        } catch (InterruptedException e) {
+            throw new RuntimeException("interrupted while reading network stats", e);
+        }
+    }
+
+    private static void cancelAll(Future<?>... futures) {
+        for (Future<?> future : futures) {
+            future.cancel(true);
+        }
+    }
 }
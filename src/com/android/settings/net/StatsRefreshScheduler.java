@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+import android.net.INetworkStatsService;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import java.io.PrintWriter;
+
+/**
+ * Rate limits the forced polls of network stats done when the data usage screen is shown.
+ *
+ * Forcing an update makes the stats service poll the kernel for every interface and UID, so it
+ * is skipped when stats were already refreshed recently, in which case the stats already shown
+ * are recent enough.
+ */
+public class StatsRefreshScheduler {
+    private static final String TAG = "StatsRefreshScheduler";
+    private static final boolean DEBUG = false;
+
+    // Minimum time between two forced updates
+    private static final long MIN_REFRESH_INTERVAL = 2 * DateUtils.MINUTE_IN_MILLIS;
+
+    // Time at which stats were last refreshed, in elapsed realtime
+    private static long sLastRefreshElapsed = -1;
+
+    // True between the time an update is requested and the time it completes or is cancelled
+    private static boolean sUpdatePending;
+
+    // Time at which stats were last refreshed, in wall clock time
+    private static long sLastRefreshTime = -1;
+
+    private static int sRefreshCount;
+    private static int sAvoidedCount;
+
+    private StatsRefreshScheduler() {
+    }
+
+    /**
+     * Return true if stats were not refreshed recently and no update is pending, in which case
+     * the update is recorded as pending until {@link #forceUpdate} or
+     * {@link #cancelForceUpdate} is called. When it returns false, the forced update is counted
+     * as avoided.
+     */
+    public static boolean shouldForceUpdate() {
+        synchronized (StatsRefreshScheduler.class) {
+            final long now = SystemClock.elapsedRealtime();
+            if (sUpdatePending || (sLastRefreshElapsed >= 0
+                    && now - sLastRefreshElapsed < MIN_REFRESH_INTERVAL)) {
+                sAvoidedCount++;
+                if (DEBUG) {
+                    Log.d(TAG, "Stats refreshed recently, avoided " + sAvoidedCount
+                            + " forced updates");
+                }
+                return false;
+            }
+            sUpdatePending = true;
+            return true;
+        }
+    }
+
+    /**
+     * Cancel the update requested by {@link #shouldForceUpdate}, so that the next request is
+     * not avoided.
+     */
+    public static void cancelForceUpdate() {
+        synchronized (StatsRefreshScheduler.class) {
+            sUpdatePending = false;
+        }
+    }
+
+    /**
+     * Force the stats service to poll stats, and record the time of the refresh. Must not be
+     * called from the main thread.
+     */
+    public static boolean forceUpdate(INetworkStatsService statsService) {
+        boolean updated = false;
+        try {
+            statsService.forceUpdate();
+            updated = true;
+        } catch (RemoteException e) {
+            return false;
+        } finally {
+            if (!updated) {
+                cancelForceUpdate();
+            }
+        }
+        synchronized (StatsRefreshScheduler.class) {
+            sUpdatePending = false;
+            sLastRefreshElapsed = SystemClock.elapsedRealtime();
+            sLastRefreshTime = System.currentTimeMillis();
+            sRefreshCount++;
+        }
+        return true;
+    }
+
+    /**
+     * Return the wall clock time at which stats were last refreshed, or -1 if they were not
+     * refreshed by this process.
+     */
+    public static long getLastRefreshTime() {
+        synchronized (StatsRefreshScheduler.class) {
+            return sLastRefreshTime;
+        }
+    }
+
+    public static void dump(String prefix, PrintWriter pw) {
+        synchronized (StatsRefreshScheduler.class) {
+            pw.println(prefix + "StatsRefreshScheduler: refreshes=" + sRefreshCount
+                    + " avoided=" + sAvoidedCount + " lastRefreshTime=" + sLastRefreshTime);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+import android.net.NetworkTemplate;
+import android.text.format.DateUtils;
+import android.util.LruCache;
+
+import com.android.settings.DataUsageSummary.AppItem;
+
+import java.util.Objects;
+
+/**
+ * Cache of the data usage shown for each network template and cycle, held for the lifetime of
+ * the data usage screen so that switching between networks and cycles shows the last known
+ * usage immediately.
+ *
+ * The usage of a closed cycle does not change anymore, so it is never loaded again. Only the
+ * current cycle, and the network history it is part of, needs to be refreshed.
+ */
+public class SummaryCache {
+    // Number of summaries kept, enough for a few cycles of each network
+    private static final int MAX_SUMMARIES = 24;
+
+    // Number of network histories kept, one per network
+    private static final int MAX_HISTORIES = 6;
+
+    // Time after the end of a cycle after which its usage is considered final, so that the
+    // stats polled shortly after the end of the cycle are not missed.
+    private static final long CYCLE_SETTLE_MILLIS = DateUtils.DAY_IN_MILLIS;
+
+    private final LruCache<Key, AppItem[]> mSummaries =
+            new LruCache<Key, AppItem[]>(MAX_SUMMARIES);
+    private final LruCache<NetworkTemplate, ChartData> mHistories =
+            new LruCache<NetworkTemplate, ChartData>(MAX_HISTORIES);
+
+    private static class Key {
+        final NetworkTemplate template;
+        final long start;
+        final long end;
+
+        Key(NetworkTemplate template, long start, long end) {
+            this.template = template;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return start == other.start && end == other.end
+                    && Objects.equals(template, other.template);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(template, start, end);
+        }
+    }
+
+    /**
+     * Return the cached summary of the given template and cycle, or null if it is not cached.
+     */
+    public AppItem[] getSummary(NetworkTemplate template, long start, long end) {
+        return mSummaries.get(new Key(template, start, end));
+    }
+
+    public void putSummary(NetworkTemplate template, long start, long end, AppItem[] items) {
+        if (template != null && items != null) {
+            mSummaries.put(new Key(template, start, end), items);
+        }
+    }
+
+    /**
+     * Return the cached network history of the given template, or null if it is not cached.
+     * Only the history of the network is cached, not the one of a single app.
+     */
+    public ChartData getHistory(NetworkTemplate template) {
+        return template != null ? mHistories.get(template) : null;
+    }
+
+    public void putHistory(NetworkTemplate template, ChartData data) {
+        if (template != null && data != null && data.detail == null) {
+            mHistories.put(template, data);
+        }
+    }
+
+    /**
+     * Return true if the usage of the cycle ending at the given time does not change anymore.
+     */
+    public static boolean isClosedCycle(long end, long now) {
+        return end + CYCLE_SETTLE_MILLIS < now;
+    }
+
+    /**
+     * Drop the cached summaries, for example when the restrict state of an app changed.
+     */
+    public void clearSummaries() {
+        mSummaries.evictAll();
+    }
+
+    public void clear() {
+        mSummaries.evictAll();
+        mHistories.evictAll();
+    }
+}
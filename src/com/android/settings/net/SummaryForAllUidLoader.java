@@ -16,19 +16,46 @@
 
 package com.android.settings.net;
 
+import static android.net.NetworkPolicyManager.POLICY_REJECT_METERED_BACKGROUND;
+import static android.net.TrafficStats.UID_REMOVED;
+import static android.net.TrafficStats.UID_TETHERING;
+
+import android.app.ActivityManager;
 import android.content.AsyncTaskLoader;
 import android.content.Context;
 import android.net.INetworkStatsSession;
+import android.net.NetworkPolicyManager;
 import android.net.NetworkStats;
 import android.net.NetworkTemplate;
 import android.os.Bundle;
 import android.os.RemoteException;
+import android.os.UserHandle;
+import android.os.UserManager;
+import android.util.SparseArray;
+import android.util.SparseBooleanArray;
+import android.util.SparseIntArray;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.settings.DataUsageSummary.AppItem;
 
-public class SummaryForAllUidLoader extends AsyncTaskLoader<NetworkStats> {
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Loads the usage summary of all UIDs, and collapses it into the sorted {@link AppItem}s shown
+ * by the data usage list, so that none of that work happens on the main thread.
+ */
+public class SummaryForAllUidLoader extends AsyncTaskLoader<AppItem[]> {
     private static final String KEY_TEMPLATE = "template";
     private static final String KEY_START = "start";
     private static final String KEY_END = "end";
 
+    // Known state of the users that are not profiles of the current user
+    private static final int USER_UNKNOWN = 0;
+    private static final int USER_REMOVED = 1;
+    private static final int USER_OTHER = 2;
+
     private final INetworkStatsSession mSession;
     private final Bundle mArgs;
 
@@ -46,6 +73,18 @@ public class SummaryForAllUidLoader extends AsyncTaskLoader<NetworkStats> {
         mArgs = args;
     }
 
+    public NetworkTemplate getTemplate() {
+        return mArgs.getParcelable(KEY_TEMPLATE);
+    }
+
+    public long getStart() {
+        return mArgs.getLong(KEY_START);
+    }
+
+    public long getEnd() {
+        return mArgs.getLong(KEY_END);
+    }
+
     @Override
     protected void onStartLoading() {
         super.onStartLoading();
@@ -53,16 +92,135 @@ public class SummaryForAllUidLoader extends AsyncTaskLoader<NetworkStats> {
     }
 
     @Override
-    public NetworkStats loadInBackground() {
+    public AppItem[] loadInBackground() {
         final NetworkTemplate template = mArgs.getParcelable(KEY_TEMPLATE);
         final long start = mArgs.getLong(KEY_START);
         final long end = mArgs.getLong(KEY_END);
 
+        final NetworkStats stats;
         try {
-            return mSession.getSummaryForAllUid(template, start, end, false);
+            stats = mSession.getSummaryForAllUid(template, start, end, false);
         } catch (RemoteException e) {
             return null;
         }
+        final int[] restrictedUids = NetworkPolicyManager.from(getContext()).getUidsWithPolicy(
+                POLICY_REJECT_METERED_BACKGROUND);
+        return collapseStats(stats, restrictedUids);
+    }
+
+    /**
+     * Collapse the usage of each UID into the items of the data usage list, sorted by category
+     * then by total usage descending.
+     */
+    @VisibleForTesting
+    AppItem[] collapseStats(NetworkStats stats, int[] restrictedUids) {
+        final UserManager um = UserManager.get(getContext());
+        final int currentUserId = ActivityManager.getCurrentUser();
+
+        // Profiles of the current user, looked up for each entry
+        final SparseBooleanArray profiles = new SparseBooleanArray();
+        final List<UserHandle> profileHandles = um.getUserProfiles();
+        for (int i = 0; i < profileHandles.size(); i++) {
+            profiles.put(profileHandles.get(i).getIdentifier(), true);
+        }
+        final SparseIntArray otherUsers = new SparseIntArray();
+
+        final ArrayList<AppItem> items = new ArrayList<AppItem>();
+        final SparseArray<AppItem> knownItems = new SparseArray<AppItem>();
+
+        NetworkStats.Entry entry = null;
+        final int size = stats != null ? stats.size() : 0;
+        for (int i = 0; i < size; i++) {
+            entry = stats.getValues(i, entry);
+
+            // Decide how to collapse items together
+            final int uid = entry.uid;
+            final long bytes = entry.rxBytes + entry.txBytes;
+
+            final int collapseKey;
+            final int category;
+            final int userId = UserHandle.getUserId(uid);
+            if (UserHandle.isApp(uid)) {
+                if (profiles.get(userId)) {
+                    if (userId != currentUserId) {
+                        // Add to a managed user item.
+                        final int managedKey = UidDetailProvider.buildKeyForUser(userId);
+                        accumulate(managedKey, AppItem.CATEGORY_USER, uid, bytes, items,
+                                knownItems);
+                    }
+                    // Add to app item.
+                    collapseKey = uid;
+                    category = AppItem.CATEGORY_APP;
+                } else {
+                    int userState = otherUsers.get(userId, USER_UNKNOWN);
+                    if (userState == USER_UNKNOWN) {
+                        userState = um.getUserInfo(userId) == null ? USER_REMOVED : USER_OTHER;
+                        otherUsers.put(userId, userState);
+                    }
+                    if (userState == USER_REMOVED) {
+                        // If it is a removed user add it to the removed users' key
+                        collapseKey = UID_REMOVED;
+                        category = AppItem.CATEGORY_APP;
+                    } else {
+                        // Add to other user item.
+                        collapseKey = UidDetailProvider.buildKeyForUser(userId);
+                        category = AppItem.CATEGORY_USER;
+                    }
+                }
+            } else if (uid == UID_REMOVED || uid == UID_TETHERING) {
+                collapseKey = uid;
+                category = AppItem.CATEGORY_APP;
+            } else {
+                collapseKey = android.os.Process.SYSTEM_UID;
+                category = AppItem.CATEGORY_APP;
+            }
+            accumulate(collapseKey, category, uid, bytes, items, knownItems);
+        }
+
+        final int restrictedUidsMax = restrictedUids != null ? restrictedUids.length : 0;
+        for (int i = 0; i < restrictedUidsMax; ++i) {
+            final int uid = restrictedUids[i];
+            // Only splice in restricted state for current user or managed users
+            if (!profiles.get(UserHandle.getUserId(uid))) {
+                continue;
+            }
+
+            AppItem item = knownItems.get(uid);
+            if (item == null) {
+                item = new AppItem(uid);
+                item.total = -1;
+                items.add(item);
+                knownItems.put(item.key, item);
+            }
+            item.restricted = true;
+        }
+
+        if (!items.isEmpty()) {
+            final AppItem title = new AppItem();
+            title.category = AppItem.CATEGORY_APP_TITLE;
+            items.add(title);
+        }
+
+        final AppItem[] sortedItems = items.toArray(new AppItem[items.size()]);
+        Arrays.sort(sortedItems);
+        return sortedItems;
+    }
+
+    /**
+     * Accumulate the usage of a UID into the item mapped by the collapse key, creating the item
+     * if needed.
+     */
+    private static void accumulate(int collapseKey, int category, int uid, long bytes,
+            ArrayList<AppItem> items, SparseArray<AppItem> knownItems) {
+        AppItem item = knownItems.get(collapseKey);
+        if (item == null) {
+            item = new AppItem(collapseKey);
+            item.category = category;
+            items.add(item);
+            knownItems.put(item.key, item);
+        }
+        item.addUid(uid);
+        item.total += bytes;
     }
 
     @Override
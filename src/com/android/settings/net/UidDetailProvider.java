@@ -34,9 +34,11 @@ import android.os.RemoteException;
 import android.text.TextUtils;
 import android.util.Log;
 import android.util.SparseArray;
+import android.util.SparseIntArray;
 
 import com.android.settings.R;
 import com.android.settings.Utils;
+import com.android.settings.applications.AppLabelIconCache;
 
 /**
  * Return details about a specific UID, handling special cases like
@@ -44,8 +46,17 @@ import com.android.settings.Utils;
  */
 public class UidDetailProvider {
     private static final String TAG = "DataUsage";
+
+    // Application labels and icons are also kept in the shared AppLabelIconCache, so this
+    // only needs to hold the details of the UIDs that are currently shown.
+    private static final int UID_DETAIL_CACHE_SIZE = 64;
+
     private final Context mContext;
+    private final AppLabelIconCache mLabelIconCache;
     private final SparseArray<UidDetail> mUidDetailCache;
+    // Last use of each cached UID, to evict the least recently used one when full.
+    private final SparseIntArray mUidDetailLastUse;
+    private int mUseCount;
 
     public static final int OTHER_USER_RANGE_START = -2000;
 
@@ -63,12 +74,15 @@ public class UidDetailProvider {
 
     public UidDetailProvider(Context context) {
         mContext = context.getApplicationContext();
+        mLabelIconCache = AppLabelIconCache.getInstance(mContext);
         mUidDetailCache = new SparseArray<UidDetail>();
+        mUidDetailLastUse = new SparseIntArray();
     }
 
     public void clearCache() {
         synchronized (mUidDetailCache) {
             mUidDetailCache.clear();
+            mUidDetailLastUse.clear();
         }
     }
 
@@ -80,6 +94,9 @@ public class UidDetailProvider {
 
         synchronized (mUidDetailCache) {
             detail = mUidDetailCache.get(uid);
+            if (detail != null) {
+                mUidDetailLastUse.put(uid, ++mUseCount);
+            }
         }
 
         if (detail != null) {
@@ -91,12 +108,29 @@ public class UidDetailProvider {
         detail = buildUidDetail(uid);
 
         synchronized (mUidDetailCache) {
+            if (mUidDetailCache.indexOfKey(uid) < 0
+                    && mUidDetailCache.size() >= UID_DETAIL_CACHE_SIZE) {
+                evictLeastRecentlyUsedLocked();
+            }
             mUidDetailCache.put(uid, detail);
+            mUidDetailLastUse.put(uid, ++mUseCount);
         }
 
         return detail;
     }
 
+    private void evictLeastRecentlyUsedLocked() {
+        int oldestIndex = 0;
+        for (int i = 1; i < mUidDetailLastUse.size(); i++) {
+            if (mUidDetailLastUse.valueAt(i) < mUidDetailLastUse.valueAt(oldestIndex)) {
+                oldestIndex = i;
+            }
+        }
+        final int uid = mUidDetailLastUse.keyAt(oldestIndex);
+        mUidDetailLastUse.removeAt(oldestIndex);
+        mUidDetailCache.remove(uid);
+    }
+
     /**
      * Build {@link UidDetail} object, blocking until all {@link Drawable}
      * lookup is finished.
@@ -153,9 +187,8 @@ public class UidDetailProvider {
                 final ApplicationInfo info = ipm.getApplicationInfo(packageNames[0],
                         0 /* no flags */, userId);
                 if (info != null) {
-                    detail.label = info.loadLabel(pm).toString();
-                    detail.icon = um.getBadgedIconForUser(info.loadIcon(pm),
-                            new UserHandle(userId));
+                    detail.label = mLabelIconCache.getLabel(info).toString();
+                    detail.icon = mLabelIconCache.getIcon(info);
                 }
             } else if (length > 1) {
                 detail.detailLabels = new CharSequence[length];
@@ -167,13 +200,13 @@ public class UidDetailProvider {
                             0 /* no flags */, userId);
 
                     if (appInfo != null) {
-                        detail.detailLabels[i] = appInfo.loadLabel(pm).toString();
+                        detail.detailLabels[i] = mLabelIconCache.getLabel(appInfo).toString();
                         detail.detailContentDescriptions[i] = um.getBadgedLabelForUser(
                                 detail.detailLabels[i], userHandle);
                         if (packageInfo.sharedUserLabel != 0) {
                             detail.label = pm.getText(packageName, packageInfo.sharedUserLabel,
                                     packageInfo.applicationInfo).toString();
-                            detail.icon = um.getBadgedIconForUser(appInfo.loadIcon(pm), userHandle);
+                            detail.icon = mLabelIconCache.getIcon(appInfo);
                         }
                     }
                 }
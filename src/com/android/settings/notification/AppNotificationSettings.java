@@ -138,7 +138,7 @@ public class AppNotificationSettings extends SettingsPreferenceFragment {
         mPeekable = (SwitchPreference) findPreference(KEY_PEEKABLE);
         mSensitive = (SwitchPreference) findPreference(KEY_SENSITIVE);
 
-        mAppRow = mBackend.loadAppRow(pm, info.applicationInfo);
+        mAppRow = mBackend.loadAppRow(mContext, info.applicationInfo);
 
         // load settings intent
         ArrayMap<String, AppRow> rows = new ArrayMap<String, AppRow>();
@@ -20,34 +20,52 @@ import android.app.Notification;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.ApplicationInfo;
-import android.content.pm.PackageManager;
 import android.graphics.drawable.Drawable;
 import android.os.ServiceManager;
 import android.service.notification.NotificationListenerService;
 import android.util.Log;
 
+import com.android.settings.applications.AppLabelIconCache;
+
 public class NotificationBackend {
     private static final String TAG = "NotificationBackend";
 
     static INotificationManager sINM = INotificationManager.Stub.asInterface(
             ServiceManager.getService(Context.NOTIFICATION_SERVICE));
 
-    public AppRow loadAppRow(PackageManager pm, ApplicationInfo app) {
+    public AppRow loadAppRow(Context context, ApplicationInfo app) {
+        final AppLabelIconCache labelIconCache = AppLabelIconCache.getInstance(context);
         final AppRow row = new AppRow();
         row.pkg = app.packageName;
         row.uid = app.uid;
         try {
-            row.label = app.loadLabel(pm);
+            row.label = labelIconCache.getLabel(app);
         } catch (Throwable t) {
             Log.e(TAG, "Error loading application label for " + row.pkg, t);
             row.label = row.pkg;
         }
-        row.icon = app.loadIcon(pm);
+        row.icon = labelIconCache.getIcon(app);
+        loadAppRowState(row);
+        return row;
+    }
+
+    /**
+     * Load the notification state of an app without its label and icon, for the callers that
+     * load the state of every installed app.
+     */
+    public AppRow loadAppRowState(ApplicationInfo app) {
+        final AppRow row = new AppRow();
+        row.pkg = app.packageName;
+        row.uid = app.uid;
+        loadAppRowState(row);
+        return row;
+    }
+
+    private void loadAppRowState(AppRow row) {
         row.banned = getNotificationsBanned(row.pkg, row.uid);
         row.priority = getHighPriority(row.pkg, row.uid);
         row.peekable = getPeekable(row.pkg, row.uid);
         row.sensitive = getSensitive(row.pkg, row.uid);
-        return row;
     }
 
     public boolean setNotificationsBanned(String pkg, int uid, boolean banned) {
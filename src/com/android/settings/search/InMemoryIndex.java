@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import android.text.TextUtils;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * An in-memory copy of the Index for one locale, used for answering short prefix queries
+ * without going to the database.
+ *
+ * The searchable columns are split into tokens the same way the SQLite FTS "simple" tokenizer
+ * does and kept in a sorted array, so that all the tokens starting with a prefix can be found
+ * with a binary search. Results are returned in the same order as the FTS search: rows matching
+ * the primary columns first, then rows only matching the secondary columns, each sorted by rank.
+ */
+final class InMemoryIndex {
+
+    // Queries longer than this are answered by the FTS search
+    public static final int MAX_QUERY_LENGTH = 3;
+
+    // Rough estimation of the memory used by the object header and fields of a String
+    private static final int STRING_OVERHEAD_BYTES = 40;
+    private static final int REFERENCE_BYTES = 4;
+
+    private final String mLocale;
+    private final String[][] mRows;
+
+    // Sorted tokens and, for each of them, the row it comes from and whether it comes from a
+    // primary column
+    private final String[] mTokens;
+    private final int[] mTokenRows;
+    private final boolean[] mTokenPrimary;
+
+    private final long mMemoryUsage;
+
+    private InMemoryIndex(String locale, String[][] rows, String[] tokens, int[] tokenRows,
+            boolean[] tokenPrimary, long memoryUsage) {
+        mLocale = locale;
+        mRows = rows;
+        mTokens = tokens;
+        mTokenRows = tokenRows;
+        mTokenPrimary = tokenPrimary;
+        mMemoryUsage = memoryUsage;
+    }
+
+    public String getLocale() {
+        return mLocale;
+    }
+
+    public long getMemoryUsage() {
+        return mMemoryUsage;
+    }
+
+    /**
+     * Returns true if the query is short enough and made of a single token.
+     */
+    public static boolean canAnswer(String query) {
+        return isSingleToken(query) && query.length() <= MAX_QUERY_LENGTH;
+    }
+
+    /**
+     * Returns true if the query is not empty and made of a single token.
+     */
+    static boolean isSingleToken(String query) {
+        if (TextUtils.isEmpty(query)) {
+            return false;
+        }
+        final int length = query.length();
+        for (int n = 0; n < length; n++) {
+            if (!isTokenChar(query.charAt(n))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if one of the tokens of the text starts with the given prefix, which must be
+     * lower case.
+     */
+    static boolean hasTokenStartingWith(String text, String lowerPrefix) {
+        if (TextUtils.isEmpty(text)) {
+            return false;
+        }
+        final int length = text.length();
+        final int prefixLength = lowerPrefix.length();
+        boolean tokenStart = true;
+        for (int n = 0; n < length; n++) {
+            final char c = text.charAt(n);
+            if (!isTokenChar(c)) {
+                tokenStart = true;
+                continue;
+            }
+            if (tokenStart && length - n >= prefixLength &&
+                    startsWithIgnoreCaseAscii(text, n, lowerPrefix)) {
+                return true;
+            }
+            tokenStart = false;
+        }
+        return false;
+    }
+
+    private static boolean startsWithIgnoreCaseAscii(String text, int offset, String lowerPrefix) {
+        final int prefixLength = lowerPrefix.length();
+        for (int n = 0; n < prefixLength; n++) {
+            if (toLowerCaseAscii(text.charAt(offset + n)) != lowerPrefix.charAt(n)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public String[][] search(String query) {
+        final String prefix = toLowerCaseAscii(query);
+        final int rowCount = mRows.length;
+        final boolean[] primary = new boolean[rowCount];
+        final boolean[] secondary = new boolean[rowCount];
+
+        int first = Arrays.binarySearch(mTokens, prefix);
+        if (first < 0) {
+            first = -first - 1;
+        }
+        for (int n = first; n < mTokens.length && mTokens[n].startsWith(prefix); n++) {
+            if (mTokenPrimary[n]) {
+                primary[mTokenRows[n]] = true;
+            } else {
+                secondary[mTokenRows[n]] = true;
+            }
+        }
+
+        // Rows are already sorted by rank
+        final List<String[]> results = new ArrayList<String[]>();
+        for (int n = 0; n < rowCount; n++) {
+            if (primary[n]) {
+                results.add(mRows[n]);
+            }
+        }
+        for (int n = 0; n < rowCount; n++) {
+            if (secondary[n] && !primary[n]) {
+                results.add(mRows[n]);
+            }
+        }
+        return results.toArray(new String[results.size()][]);
+    }
+
+    public void dump(String prefix, PrintWriter pw) {
+        pw.print(prefix); pw.print("locale="); pw.print(mLocale);
+        pw.print(" rows="); pw.print(mRows.length);
+        pw.print(" tokens="); pw.print(mTokens.length);
+        pw.print(" memory="); pw.print(mMemoryUsage); pw.println(" bytes");
+    }
+
+    private static boolean isTokenChar(char c) {
+        // Same as the FTS "simple" tokenizer: every non ASCII character is part of a token
+        return c >= 0x80 || Character.isLetterOrDigit(c);
+    }
+
+    static String toLowerCaseAscii(String s) {
+        final StringBuilder sb = new StringBuilder(s.length());
+        final int length = s.length();
+        for (int n = 0; n < length; n++) {
+            sb.append(toLowerCaseAscii(s.charAt(n)));
+        }
+        return sb.toString();
+    }
+
+    private static char toLowerCaseAscii(char c) {
+        return (c >= 'A' && c <= 'Z') ? (char) (c + ('a' - 'A')) : c;
+    }
+
+    private static long getStringSize(String s) {
+        return (s == null) ? 0 : STRING_OVERHEAD_BYTES + 2 * s.length();
+    }
+
+    /**
+     * Collects the rows and their searchable text, and builds the sorted token array.
+     */
+    public static class Builder {
+        private final String mLocale;
+        private final List<String[]> mRows = new ArrayList<String[]>();
+        private final List<Token> mTokens = new ArrayList<Token>();
+        private final HashMap<String, String> mUniqueTokens = new HashMap<String, String>();
+        private long mMemoryUsage;
+
+        private static class Token implements Comparable<Token> {
+            final String value;
+            final int row;
+            final boolean primary;
+
+            Token(String value, int row, boolean primary) {
+                this.value = value;
+                this.row = row;
+                this.primary = primary;
+            }
+
+            @Override
+            public int compareTo(Token other) {
+                return value.compareTo(other.value);
+            }
+        }
+
+        public Builder(String locale) {
+            mLocale = locale;
+        }
+
+        /**
+         * Add a row, which must be added in rank order.
+         *
+         * @return the index of the row to be used with {@link #addText}
+         */
+        public int addRow(String[] row) {
+            mRows.add(row);
+            mMemoryUsage += REFERENCE_BYTES * (row.length + 1);
+            for (String value : row) {
+                mMemoryUsage += getStringSize(value);
+            }
+            return mRows.size() - 1;
+        }
+
+        public void addText(int row, String text, boolean primary) {
+            if (TextUtils.isEmpty(text)) {
+                return;
+            }
+            final String lowerText = toLowerCaseAscii(text);
+            final int length = lowerText.length();
+            int start = -1;
+            for (int n = 0; n <= length; n++) {
+                final boolean tokenChar = (n < length) && isTokenChar(lowerText.charAt(n));
+                if (tokenChar && start < 0) {
+                    start = n;
+                } else if (!tokenChar && start >= 0) {
+                    addToken(lowerText.substring(start, n), row, primary);
+                    start = -1;
+                }
+            }
+        }
+
+        private void addToken(String value, int row, boolean primary) {
+            String token = mUniqueTokens.get(value);
+            if (token == null) {
+                token = value;
+                mUniqueTokens.put(token, token);
+                mMemoryUsage += getStringSize(token);
+            }
+            mTokens.add(new Token(token, row, primary));
+        }
+
+        public InMemoryIndex build() {
+            final Token[] sorted = mTokens.toArray(new Token[mTokens.size()]);
+            Arrays.sort(sorted);
+
+            final int count = sorted.length;
+            final String[] tokens = new String[count];
+            final int[] tokenRows = new int[count];
+            final boolean[] tokenPrimary = new boolean[count];
+            for (int n = 0; n < count; n++) {
+                tokens[n] = sorted[n].value;
+                tokenRows[n] = sorted[n].row;
+                tokenPrimary[n] = sorted[n].primary;
+            }
+            final long memoryUsage = mMemoryUsage + count * (REFERENCE_BYTES + 4 + 1);
+
+            return new InMemoryIndex(mLocale, mRows.toArray(new String[mRows.size()][]),
+                    tokens, tokenRows, tokenPrimary, memoryUsage);
+        }
+    }
+}
@@ -27,12 +27,12 @@ import android.content.pm.ResolveInfo;
 import android.content.res.TypedArray;
 import android.content.res.XmlResourceParser;
 import android.database.Cursor;
-import android.database.DatabaseUtils;
-import android.database.MergeCursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.Build;
+import android.os.CancellationSignal;
 import android.provider.SearchIndexableData;
 import android.provider.SearchIndexableResource;
 import android.provider.SearchIndexablesContract;
@@ -41,22 +41,32 @@ import android.util.AttributeSet;
 import android.util.Log;
 import android.util.TypedValue;
 import android.util.Xml;
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.settings.BackgroundExecutor;
 import com.android.settings.R;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.lang.reflect.Field;
 import java.text.Normalizer;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 
 import static android.provider.SearchIndexablesContract.COLUMN_INDEX_NON_INDEXABLE_KEYS_KEY_VALUE;
@@ -85,12 +95,13 @@ import static android.provider.SearchIndexablesContract.COLUMN_INDEX_XML_RES_INT
 
 import static com.android.settings.search.IndexDatabaseHelper.Tables;
 import static com.android.settings.search.IndexDatabaseHelper.IndexColumns;
+import static com.android.settings.search.IndexDatabaseHelper.MetaFingerprintsColumns;
 
 public class Index {
 
     private static final String LOG_TAG = "Index";
 
-    // Those indices should match the indices of SELECT_COLUMNS !
+    // Those indices should match the indices of IndexSearchEngine.SELECT_COLUMNS !
     public static final int COLUMN_INDEX_RANK = 0;
     public static final int COLUMN_INDEX_TITLE = 1;
     public static final int COLUMN_INDEX_SUMMARY_ON = 2;
@@ -109,46 +120,12 @@ public class Index {
 
     public static final String ENTRIES_SEPARATOR = "|";
 
-    // If you change the order of columns here, you SHOULD change the COLUMN_INDEX_XXX values
-    private static final String[] SELECT_COLUMNS = new String[] {
-            IndexColumns.DATA_RANK,               // 0
-            IndexColumns.DATA_TITLE,              // 1
-            IndexColumns.DATA_SUMMARY_ON,         // 2
-            IndexColumns.DATA_SUMMARY_OFF,        // 3
-            IndexColumns.DATA_ENTRIES,            // 4
-            IndexColumns.DATA_KEYWORDS,           // 5
-            IndexColumns.CLASS_NAME,              // 6
-            IndexColumns.SCREEN_TITLE,            // 7
-            IndexColumns.ICON,                    // 8
-            IndexColumns.INTENT_ACTION,           // 9
-            IndexColumns.INTENT_TARGET_PACKAGE,   // 10
-            IndexColumns.INTENT_TARGET_CLASS,     // 11
-            IndexColumns.ENABLED,                 // 12
-            IndexColumns.DATA_KEY_REF             // 13
-    };
-
-    private static final String[] MATCH_COLUMNS_PRIMARY = {
-            IndexColumns.DATA_TITLE,
-            IndexColumns.DATA_TITLE_NORMALIZED,
-            IndexColumns.DATA_KEYWORDS
-    };
-
-    private static final String[] MATCH_COLUMNS_SECONDARY = {
-            IndexColumns.DATA_SUMMARY_ON,
-            IndexColumns.DATA_SUMMARY_ON_NORMALIZED,
-            IndexColumns.DATA_SUMMARY_OFF,
-            IndexColumns.DATA_SUMMARY_OFF_NORMALIZED,
-            IndexColumns.DATA_ENTRIES
-    };
-
-    // Max number of saved search queries (who will be used for proposing suggestions)
-    private static long MAX_SAVED_SEARCH_QUERY = 64;
-    // Max number of proposed suggestions
-    private static final int MAX_PROPOSED_SUGGESTIONS = 5;
-
     private static final String BASE_AUTHORITY = "com.android.settings";
 
     private static final String EMPTY = "";
+    private static final String DOCIDS_SEPARATOR = ",";
+    // Prefix of the fingerprint of the entries only indexed by forced updates
+    private static final String FORCED_FINGERPRINT_PREFIX = "forced/";
     private static final String NON_BREAKING_HYPHEN = "\u2011";
     private static final String HYPHEN = "-";
 
@@ -173,6 +150,7 @@ public class Index {
         public List<SearchIndexableData> dataToUpdate;
         public List<SearchIndexableData> dataToDelete;
         public Map<String, List<String>> nonIndexableKeys;
+        public Map<String, String> providerFingerprints;
 
         public boolean forceUpdate = false;
 
@@ -180,12 +158,14 @@ public class Index {
             dataToUpdate = new ArrayList<SearchIndexableData>();
             dataToDelete = new ArrayList<SearchIndexableData>();
             nonIndexableKeys = new HashMap<String, List<String>>();
+            providerFingerprints = new HashMap<String, String>();
         }
 
         public UpdateData(UpdateData other) {
             dataToUpdate = new ArrayList<SearchIndexableData>(other.dataToUpdate);
             dataToDelete = new ArrayList<SearchIndexableData>(other.dataToDelete);
             nonIndexableKeys = new HashMap<String, List<String>>(other.nonIndexableKeys);
+            providerFingerprints = new HashMap<String, String>(other.providerFingerprints);
             forceUpdate = other.forceUpdate;
         }
 
@@ -197,14 +177,74 @@ public class Index {
             dataToUpdate.clear();
             dataToDelete.clear();
             nonIndexableKeys.clear();
+            providerFingerprints.clear();
             forceUpdate = false;
         }
     }
 
+    /**
+     * A private class to describe one indexed entry: all the data coming from the same package
+     * and having the same class name. The fingerprint of an entry is saved into the meta data
+     * so that the entry is only re-indexed when it has changed.
+     */
+    private static class IndexedEntry {
+        public final String packageName;
+        public final String className;
+        public final List<SearchIndexableData> data = new ArrayList<SearchIndexableData>();
+        public String fingerprint;
+        // DocIDs of the rows written for this entry
+        public final Set<String> docIds = new LinkedHashSet<String>();
+
+        public IndexedEntry(String packageName, String className) {
+            this.packageName = (packageName != null) ? packageName : EMPTY;
+            this.className = (className != null) ? className : EMPTY;
+        }
+
+        public String getKey() {
+            return buildEntryKey(packageName, className);
+        }
+
+        /**
+         * Compute the fingerprint of this entry from the provider fingerprint and a hash of
+         * the indexable data. Returns null if the provider fingerprint is unknown.
+         */
+        public String computeFingerprint(String providerFingerprint) {
+            if (providerFingerprint == null) {
+                return null;
+            }
+            long hash = 0;
+            final int count = data.size();
+            for (int n = 0; n < count; n++) {
+                hash = 31 * hash + getDataHash(data.get(n));
+            }
+            return providerFingerprint + ":" + Long.toHexString(hash);
+        }
+    }
+
     private final AtomicBoolean mIsAvailable = new AtomicBoolean(false);
+    // Incremented each time the Index content has been updated
+    private final AtomicInteger mGeneration = new AtomicInteger(0);
     private final UpdateData mDataToProcess = new UpdateData();
     private Context mContext;
     private final String mBaseAuthority;
+    private final IndexDatabaseHelper mDatabaseHelper;
+
+    // Number of rows written or deleted by the current UpdateIndexTask
+    private int mChangedRowCount;
+
+    private final SearchResultCache mResultCache = new SearchResultCache();
+    private final SavedQueryWriter mSavedQueryWriter;
+
+    private final Object mInMemoryIndexLock = new Object();
+    private InMemoryIndex mInMemoryIndex;
+    private int mInMemoryIndexGeneration;
+    private int mInMemoryIndexHits;
+    private int mInMemoryIndexMisses;
+    // Loaded from the last snapshot while the Index is being updated
+    private InMemoryIndex mSnapshotIndex;
+    // Locale and generation of the last snapshot read, which may have found no snapshot
+    private String mSnapshotLocale;
+    private int mSnapshotGeneration;
 
     /**
      * A basic singleton
@@ -219,8 +259,15 @@ public class Index {
     }
 
     public Index(Context context, String baseAuthority) {
+        this(context, baseAuthority, IndexDatabaseHelper.getInstance(context));
+    }
+
+    @VisibleForTesting
+    Index(Context context, String baseAuthority, IndexDatabaseHelper databaseHelper) {
         mContext = context;
         mBaseAuthority = baseAuthority;
+        mDatabaseHelper = databaseHelper;
+        mSavedQueryWriter = new SavedQueryWriter(databaseHelper);
     }
 
     public void setContext(Context context) {
@@ -231,74 +278,154 @@ public class Index {
         return mIsAvailable.get();
     }
 
-    public Cursor search(String query) {
-        final SQLiteDatabase database = getReadableDatabase();
-        final Cursor[] cursors = new Cursor[2];
-
-        final String primarySql = buildSearchSQL(query, MATCH_COLUMNS_PRIMARY, true);
-        Log.d(LOG_TAG, "Search primary query: " + primarySql);
-        cursors[0] = database.rawQuery(primarySql, null);
+    /**
+     * Search the Index for the current locale.
+     *
+     * @return the matching rows, whose values are indexed by the COLUMN_INDEX_XXX constants.
+     *         The returned array may be shared with other callers and must not be modified.
+     */
+    public String[][] search(String query) {
+        return search(query, null);
+    }
 
-        // We need to use an EXCEPT operator as negate MATCH queries do not work.
-        StringBuilder sql = new StringBuilder(
-                buildSearchSQL(query, MATCH_COLUMNS_SECONDARY, false));
-        sql.append(" EXCEPT ");
-        sql.append(primarySql);
+    /**
+     * Same as {@link #search(String)} but the database read can be interrupted.
+     *
+     * @throws android.os.OperationCanceledException if the signal has been canceled.
+     */
+    public String[][] search(String query, CancellationSignal cancellationSignal) {
+        final String locale = Locale.getDefault().toString();
+        final int generation = mGeneration.get();
 
-        final String secondarySql = sql.toString();
-        Log.d(LOG_TAG, "Search secondary query: " + secondarySql);
-        cursors[1] = database.rawQuery(secondarySql, null);
+        String[][] results = mResultCache.get(locale, query, generation);
+        if (results != null) {
+            return results;
+        }
 
-        return new MergeCursor(cursors);
+        InMemoryIndex inMemoryIndex = getInMemoryIndex(query, locale);
+        if (inMemoryIndex == null && !isAvailable() && InMemoryIndex.isSingleToken(query)) {
+            // The Index is being updated: use the last snapshot if there is one
+            inMemoryIndex = getSnapshotIndex(locale);
+        }
+        if (inMemoryIndex != null) {
+            results = inMemoryIndex.search(query);
+        } else {
+            results = IndexSearchEngine.search(getReadableDatabase(), query, locale,
+                    cancellationSignal);
+        }
+        mResultCache.put(locale, query, generation, results);
+        return results;
     }
 
-    public Cursor getSuggestions(String query) {
-        final String sql = buildSuggestionsSQL(query);
-        Log.d(LOG_TAG, "Suggestions query: " + sql);
-        return getReadableDatabase().rawQuery(sql, null);
+    /**
+     * Returns the in-memory index if it is enabled and can answer the query, building it if
+     * needed. Returns null if the query has to be answered by the database.
+     */
+    private InMemoryIndex getInMemoryIndex(String query, String locale) {
+        if (!InMemoryIndex.canAnswer(query) || !isAvailable() ||
+                !mContext.getResources().getBoolean(R.bool.config_search_in_memory_index)) {
+            return null;
+        }
+        synchronized (mInMemoryIndexLock) {
+            final int generation = mGeneration.get();
+            if (mInMemoryIndex == null || mInMemoryIndexGeneration != generation ||
+                    !locale.equals(mInMemoryIndex.getLocale())) {
+                mInMemoryIndexMisses++;
+                final long current = System.currentTimeMillis();
+                mInMemoryIndex = IndexSearchEngine.buildInMemoryIndex(getReadableDatabase(),
+                        locale);
+                mInMemoryIndexGeneration = generation;
+                Log.d(LOG_TAG, "Building in-memory index for locale '" + locale + "' took "
+                        + (System.currentTimeMillis() - current) + " millis");
+            } else {
+                mInMemoryIndexHits++;
+            }
+            return mInMemoryIndex;
+        }
     }
 
-    private String buildSuggestionsSQL(String query) {
-        StringBuilder sb = new StringBuilder();
+    private InMemoryIndex getSnapshotIndex(String locale) {
+        synchronized (mInMemoryIndexLock) {
+            // Also remember when there is no snapshot, so that the file is not looked up again
+            // for each query
+            final int generation = mGeneration.get();
+            if (!locale.equals(mSnapshotLocale) || mSnapshotGeneration != generation) {
+                mSnapshotIndex = IndexSnapshot.read(mContext,
+                        mDatabaseHelper.getDatabaseName(), locale);
+                mSnapshotLocale = locale;
+                mSnapshotGeneration = generation;
+            }
+            return mSnapshotIndex;
+        }
+    }
 
-        sb.append("SELECT ");
-        sb.append(IndexDatabaseHelper.SavedQueriesColums.QUERY);
-        sb.append(" FROM ");
-        sb.append(Tables.TABLE_SAVED_QUERIES);
+    private void clearSnapshotIndex() {
+        synchronized (mInMemoryIndexLock) {
+            mSnapshotIndex = null;
+            mSnapshotLocale = null;
+        }
+    }
 
-        if (TextUtils.isEmpty(query)) {
-            sb.append(" ORDER BY rowId DESC");
-        } else {
-            sb.append(" WHERE ");
-            sb.append(IndexDatabaseHelper.SavedQueriesColums.QUERY);
-            sb.append(" LIKE ");
-            sb.append("'");
-            sb.append(query);
-            sb.append("%");
-            sb.append("'");
+    public void dump(String prefix, PrintWriter pw) {
+        pw.print(prefix); pw.println("Search Index:");
+        final String innerPrefix = prefix + "  ";
+        pw.print(innerPrefix); pw.print("available="); pw.print(isAvailable());
+        pw.print(" generation="); pw.println(mGeneration.get());
+        mResultCache.dump(innerPrefix, pw);
+        synchronized (mInMemoryIndexLock) {
+            pw.print(innerPrefix); pw.print("In-memory index: hits="); pw.print(mInMemoryIndexHits);
+            pw.print(" builds="); pw.println(mInMemoryIndexMisses);
+            if (mInMemoryIndex != null) {
+                mInMemoryIndex.dump(innerPrefix + "  ", pw);
+            }
+            if (mSnapshotIndex != null) {
+                pw.print(innerPrefix); pw.println("Snapshot index:");
+                mSnapshotIndex.dump(innerPrefix + "  ", pw);
+            }
         }
+    }
 
-        sb.append(" LIMIT ");
-        sb.append(MAX_PROPOSED_SUGGESTIONS);
+    public Cursor getSuggestions(String query) {
+        return getSuggestions(query, null);
+    }
 
-        return sb.toString();
+    public Cursor getSuggestions(String query, CancellationSignal cancellationSignal) {
+        return IndexSearchEngine.getSuggestions(getReadableDatabase(), query,
+                cancellationSignal);
     }
 
-    public long addSavedQuery(String query){
-        final SaveSearchQueryTask task = new SaveSearchQueryTask();
-        task.execute(query);
-        try {
-            return task.get();
-        } catch (InterruptedException e) {
-            Log.e(LOG_TAG, "Cannot insert saved query: " + query, e);
-            return -1 ;
-        } catch (ExecutionException e) {
-            Log.e(LOG_TAG, "Cannot insert saved query: " + query, e);
-            return -1;
-        }
+    /**
+     * Save a query for proposing it later as a suggestion. The query is written in the
+     * background and this method returns immediately.
+     */
+    public void addSavedQuery(String query) {
+        mSavedQueryWriter.addQuery(query);
     }
 
     public void update() {
+        addIndexablesFromRemoteProviders();
+        updateInternal();
+    }
+
+    /**
+     * Same as {@link #update()} but waits for the update task to be done. Must not be called
+     * from the main thread, where the task completes.
+     */
+    @VisibleForTesting
+    void updateBlocking() throws InterruptedException, ExecutionException {
+        addIndexablesFromRemoteProviders();
+        updateInternal().get();
+    }
+
+    /**
+     * Forget the cached search results.
+     */
+    @VisibleForTesting
+    void clearResultCache() {
+        mResultCache.clear();
+    }
+
+    private void addIndexablesFromRemoteProviders() {
         final Intent intent = new Intent(SearchIndexablesContract.PROVIDER_INTERFACE);
         List<ResolveInfo> list =
                 mContext.getPackageManager().queryIntentContentProviders(intent, 0);
@@ -312,11 +439,35 @@ public class Index {
             final String authority = info.providerInfo.authority;
             final String packageName = info.providerInfo.packageName;
 
+            addProviderFingerprint(packageName);
             addIndexablesFromRemoteProvider(packageName, authority);
             addNonIndexablesKeysFromRemoteProvider(packageName, authority);
         }
+    }
 
-        updateInternal();
+    private void addProviderFingerprint(String packageName) {
+        final String fingerprint = getProviderFingerprint(packageName);
+        if (fingerprint == null) {
+            return;
+        }
+        synchronized (mDataToProcess) {
+            mDataToProcess.providerFingerprints.put(packageName, fingerprint);
+        }
+    }
+
+    /**
+     * The fingerprint of a provider is changing each time its package or the system is updated,
+     * as a system update can change the resources of a package without changing its version.
+     */
+    private String getProviderFingerprint(String packageName) {
+        final PackageManager pm = mContext.getPackageManager();
+        try {
+            PackageInfo packInfo = pm.getPackageInfo(packageName, 0);
+            return Build.FINGERPRINT + "/" + packInfo.versionCode + "/"
+                    + packInfo.lastUpdateTime;
+        } catch (PackageManager.NameNotFoundException e) {
+            return null;
+        }
     }
 
     private boolean addIndexablesFromRemoteProvider(String packageName, String authority) {
@@ -498,12 +649,12 @@ public class Index {
     }
 
     private SQLiteDatabase getReadableDatabase() {
-        return IndexDatabaseHelper.getInstance(mContext).getReadableDatabase();
+        return mDatabaseHelper.getReadableDatabase();
     }
 
     private SQLiteDatabase getWritableDatabase() {
         try {
-            return IndexDatabaseHelper.getInstance(mContext).getWritableDatabase();
+            return mDatabaseHelper.getWritableDatabase();
         } catch (SQLiteException e) {
             Log.e(LOG_TAG, "Cannot open writable database", e);
             return null;
@@ -525,12 +676,19 @@ public class Index {
                 SearchIndexablesContract.NON_INDEXABLES_KEYS_PATH);
     }
 
-    private void updateInternal() {
+    private void onIndexUpdated() {
+        mGeneration.incrementAndGet();
+        mIsAvailable.set(true);
+        clearSnapshotIndex();
+    }
+
+    private UpdateIndexTask updateInternal() {
         synchronized (mDataToProcess) {
             final UpdateIndexTask task = new UpdateIndexTask();
             UpdateData copy = mDataToProcess.copy();
             task.execute(copy);
             mDataToProcess.clear();
+            return task;
         }
     }
 
@@ -644,80 +802,23 @@ public class Index {
         }
     }
 
-    private String buildSearchSQL(String query, String[] colums, boolean withOrderBy) {
-        StringBuilder sb = new StringBuilder();
-        sb.append(buildSearchSQLForColumn(query, colums));
-        if (withOrderBy) {
-            sb.append(" ORDER BY ");
-            sb.append(IndexColumns.DATA_RANK);
-        }
-        return sb.toString();
-    }
-
-    private String buildSearchSQLForColumn(String query, String[] columnNames) {
-        StringBuilder sb = new StringBuilder();
-        sb.append("SELECT ");
-        for (int n = 0; n < SELECT_COLUMNS.length; n++) {
-            sb.append(SELECT_COLUMNS[n]);
-            if (n < SELECT_COLUMNS.length - 1) {
-                sb.append(", ");
-            }
-        }
-        sb.append(" FROM ");
-        sb.append(Tables.TABLE_PREFS_INDEX);
-        sb.append(" WHERE ");
-        sb.append(buildSearchWhereStringForColumns(query, columnNames));
-
-        return sb.toString();
-    }
-
-    private String buildSearchWhereStringForColumns(String query, String[] columnNames) {
-        final StringBuilder sb = new StringBuilder(Tables.TABLE_PREFS_INDEX);
-        sb.append(" MATCH ");
-        DatabaseUtils.appendEscapedSQLString(sb,
-                buildSearchMatchStringForColumns(query, columnNames));
-        sb.append(" AND ");
-        sb.append(IndexColumns.LOCALE);
-        sb.append(" = ");
-        DatabaseUtils.appendEscapedSQLString(sb, Locale.getDefault().toString());
-        sb.append(" AND ");
-        sb.append(IndexColumns.ENABLED);
-        sb.append(" = 1");
-        return sb.toString();
-    }
-
-    private String buildSearchMatchStringForColumns(String query, String[] columnNames) {
-        final String value = query + "*";
-        StringBuilder sb = new StringBuilder();
-        final int count = columnNames.length;
-        for (int n = 0; n < count; n++) {
-            sb.append(columnNames[n]);
-            sb.append(":");
-            sb.append(value);
-            if (n < count - 1) {
-                sb.append(" OR ");
-            }
-        }
-        return sb.toString();
-    }
-
-    private void indexOneSearchIndexableData(SQLiteDatabase database, String localeStr,
+    private void indexOneSearchIndexableData(List<ContentValues> rows, String localeStr,
             SearchIndexableData data, Map<String, List<String>> nonIndexableKeys) {
         if (data instanceof SearchIndexableResource) {
-            indexOneResource(database, localeStr, (SearchIndexableResource) data, nonIndexableKeys);
+            indexOneResource(rows, localeStr, (SearchIndexableResource) data, nonIndexableKeys);
         } else if (data instanceof SearchIndexableRaw) {
-            indexOneRaw(database, localeStr, (SearchIndexableRaw) data);
+            indexOneRaw(rows, localeStr, (SearchIndexableRaw) data);
         }
     }
 
-    private void indexOneRaw(SQLiteDatabase database, String localeStr,
+    private void indexOneRaw(List<ContentValues> rows, String localeStr,
                              SearchIndexableRaw raw) {
         // Should be the same locale as the one we are processing
         if (!raw.locale.toString().equalsIgnoreCase(localeStr)) {
             return;
         }
 
-        updateOneRowWithFilteredData(database, localeStr,
+        updateOneRowWithFilteredData(rows, localeStr,
                 raw.title,
                 raw.summaryOn,
                 raw.summaryOff,
@@ -750,7 +851,7 @@ public class Index {
         return isIndexableClass(clazz) ? clazz : null;
     }
 
-    private void indexOneResource(SQLiteDatabase database, String localeStr,
+    private void indexOneResource(List<ContentValues> rows, String localeStr,
             SearchIndexableResource sir, Map<String, List<String>> nonIndexableKeysFromResource) {
 
         if (sir == null) {
@@ -766,7 +867,7 @@ public class Index {
                 nonIndexableKeys.addAll(resNonIndxableKeys);
             }
 
-            indexFromResource(sir.context, database, localeStr,
+            indexFromResource(sir.context, rows, localeStr,
                     sir.xmlResId, sir.className, sir.iconResId, sir.rank,
                     sir.intentAction, sir.intentTargetPackage, sir.intentTargetClass,
                     nonIndexableKeys);
@@ -792,7 +893,7 @@ public class Index {
                     nonIndexableKeys.addAll(providerNonIndexableKeys);
                 }
 
-                indexFromProvider(mContext, database, localeStr, provider, sir.className,
+                indexFromProvider(mContext, rows, localeStr, provider, sir.className,
                         sir.iconResId, sir.rank, sir.enabled, nonIndexableKeys);
             }
         }
@@ -818,7 +919,7 @@ public class Index {
         return null;
     }
 
-    private void indexFromResource(Context context, SQLiteDatabase database, String localeStr,
+    private void indexFromResource(Context context, List<ContentValues> rows, String localeStr,
            int xmlResId, String fragmentName, int iconResId, int rank,
            String intentAction, String intentTargetPackage, String intentTargetClass,
            List<String> nonIndexableKeys) {
@@ -858,7 +959,7 @@ public class Index {
                 summary = getDataSummary(context, attrs);
                 keywords = getDataKeywords(context, attrs);
 
-                updateOneRowWithFilteredData(database, localeStr, title, summary, null, null,
+                updateOneRowWithFilteredData(rows, localeStr, title, summary, null, null,
                         fragmentName, screenTitle, iconResId, rank,
                         keywords, intentAction, intentTargetPackage, intentTargetClass, true,
                         key, -1 /* default user id */);
@@ -890,7 +991,7 @@ public class Index {
                     }
 
                     // Insert rows for the child nodes of PreferenceScreen
-                    updateOneRowWithFilteredData(database, localeStr, title, summary, null, entries,
+                    updateOneRowWithFilteredData(rows, localeStr, title, summary, null, entries,
                             fragmentName, screenTitle, iconResId, rank,
                             keywords, intentAction, intentTargetPackage, intentTargetClass,
                             true, key, -1 /* default user id */);
@@ -902,7 +1003,7 @@ public class Index {
                         summaryOn = getDataSummary(context, attrs);
                     }
 
-                    updateOneRowWithFilteredData(database, localeStr, title, summaryOn, summaryOff,
+                    updateOneRowWithFilteredData(rows, localeStr, title, summaryOn, summaryOff,
                             null, fragmentName, screenTitle, iconResId, rank,
                             keywords, intentAction, intentTargetPackage, intentTargetClass,
                             true, key, -1 /* default user id */);
@@ -918,7 +1019,7 @@ public class Index {
         }
     }
 
-    private void indexFromProvider(Context context, SQLiteDatabase database, String localeStr,
+    private void indexFromProvider(Context context, List<ContentValues> rows, String localeStr,
             Indexable.SearchIndexProvider provider, String className, int iconResId, int rank,
             boolean enabled, List<String> nonIndexableKeys) {
 
@@ -943,7 +1044,7 @@ public class Index {
                     continue;
                 }
 
-                updateOneRowWithFilteredData(database, localeStr,
+                updateOneRowWithFilteredData(rows, localeStr,
                         raw.title,
                         raw.summaryOn,
                         raw.summaryOff,
@@ -979,7 +1080,7 @@ public class Index {
                 String itemClassName = (TextUtils.isEmpty(item.className))
                         ? className : item.className;
 
-                indexFromResource(context, database, localeStr,
+                indexFromResource(context, rows, localeStr,
                         item.xmlResId, itemClassName, itemIconResId, itemRank,
                         item.intentAction, item.intentTargetPackage,
                         item.intentTargetClass, nonIndexableKeys);
@@ -987,7 +1088,7 @@ public class Index {
         }
     }
 
-    private void updateOneRowWithFilteredData(SQLiteDatabase database, String locale,
+    private void updateOneRowWithFilteredData(List<ContentValues> rows, String locale,
             String title, String summaryOn, String summaryOff, String entries,
             String className,
             String screenTitle, int iconResId, int rank, String keywords,
@@ -1002,7 +1103,7 @@ public class Index {
         final String normalizedSummaryOn = normalizeString(updatedSummaryOn);
         final String normalizedSummaryOff = normalizeString(updatedSummaryOff);
 
-        updateOneRow(database, locale,
+        updateOneRow(rows, locale,
                 updatedTitle, normalizedTitle, updatedSummaryOn, normalizedSummaryOn,
                 updatedSummaryOff, normalizedSummaryOff, entries,
                 className, screenTitle, iconResId,
@@ -1014,14 +1115,53 @@ public class Index {
         return (input != null) ? input.replaceAll(NON_BREAKING_HYPHEN, HYPHEN) : EMPTY;
     }
 
-    private static String normalizeString(String input) {
+    static String normalizeString(String input) {
         final String nohyphen = (input != null) ? input.replaceAll(HYPHEN, EMPTY) : EMPTY;
         final String normalized = Normalizer.normalize(nohyphen, Normalizer.Form.NFD);
 
         return REMOVE_DIACRITICALS_PATTERN.matcher(normalized).replaceAll("").toLowerCase();
     }
 
-    private void updateOneRow(SQLiteDatabase database, String locale,
+    private static String buildEntryKey(String packageName, String className) {
+        return packageName + "/" + className;
+    }
+
+    /**
+     * Mix the key of the entry of the data into the DocIDs of its rows, so that the rows of
+     * different entries having the same title and screen title do not replace each other, and
+     * deleting the rows of an entry never deletes the rows of another one.
+     */
+    private static void setEntryDocIds(List<ContentValues> rows, SearchIndexableData data) {
+        final int entryHash = buildEntryKey(
+                (data.packageName != null) ? data.packageName : EMPTY,
+                (data.className != null) ? data.className : EMPTY).hashCode();
+        final int count = rows.size();
+        for (int n = 0; n < count; n++) {
+            final ContentValues row = rows.get(n);
+            row.put(IndexColumns.DOCID, 31 * entryHash + row.getAsInteger(IndexColumns.DOCID));
+        }
+    }
+
+    private static String getForcedFingerprint() {
+        return FORCED_FINGERPRINT_PREFIX + Build.FINGERPRINT;
+    }
+
+    private static long getDataHash(SearchIndexableData data) {
+        long hash = Objects.hash(data.className, data.packageName, data.rank, data.iconResId,
+                data.intentAction, data.intentTargetPackage, data.intentTargetClass,
+                data.enabled, data.key, data.userId);
+        if (data instanceof SearchIndexableResource) {
+            final SearchIndexableResource sir = (SearchIndexableResource) data;
+            hash = 31 * hash + sir.xmlResId;
+        } else if (data instanceof SearchIndexableRaw) {
+            final SearchIndexableRaw raw = (SearchIndexableRaw) data;
+            hash = 31 * hash + Objects.hash(raw.title, raw.summaryOn, raw.summaryOff,
+                    raw.entries, raw.keywords, raw.screenTitle);
+        }
+        return hash;
+    }
+
+    private void updateOneRow(List<ContentValues> rows, String locale,
             String updatedTitle, String normalizedTitle,
             String updatedSummaryOn, String normalizedSummaryOn,
             String updatedSummaryOff, String normalizedSummaryOff, String entries,
@@ -1035,6 +1175,7 @@ public class Index {
 
         // The DocID should contains more than the title string itself (you may have two settings
         // with the same title). So we need to use a combination of the title and the screenTitle.
+        // It is made unique to the indexed entry once the rows are built, see setEntryDocIds().
         StringBuilder sb = new StringBuilder(updatedTitle);
         sb.append(screenTitle);
         int docId = sb.toString().hashCode();
@@ -1061,7 +1202,7 @@ public class Index {
         values.put(IndexColumns.DATA_KEY_REF, key);
         values.put(IndexColumns.USER_ID, userId);
 
-        database.replaceOrThrow(Tables.TABLE_PREFS_INDEX, null, values);
+        rows.add(values);
     }
 
     private String getDataKey(Context context, AttributeSet attrs) {
@@ -1166,7 +1307,7 @@ public class Index {
         @Override
         protected void onPostExecute(Void aVoid) {
             super.onPostExecute(aVoid);
-            mIsAvailable.set(true);
+            onIndexUpdated();
         }
 
         @Override
@@ -1174,6 +1315,7 @@ public class Index {
             final List<SearchIndexableData> dataToUpdate = params[0].dataToUpdate;
             final List<SearchIndexableData> dataToDelete = params[0].dataToDelete;
             final Map<String, List<String>> nonIndexableKeys = params[0].nonIndexableKeys;
+            final Map<String, String> providerFingerprints = params[0].providerFingerprints;
 
             final boolean forceUpdate = params[0].forceUpdate;
 
@@ -1184,52 +1326,335 @@ public class Index {
             }
             final String localeStr = Locale.getDefault().toString();
 
+            boolean completed = true;
             try {
                 database.beginTransaction();
                 if (dataToDelete.size() > 0) {
                     processDataToDelete(database, localeStr, dataToDelete);
                 }
                 if (dataToUpdate.size() > 0) {
-                    processDataToUpdate(database, localeStr, dataToUpdate, nonIndexableKeys,
-                            forceUpdate);
+                    completed = processDataToUpdate(database, localeStr, dataToUpdate,
+                            nonIndexableKeys, providerFingerprints, forceUpdate);
+                }
+                // Do not commit partially written entries, as their fingerprints would mark
+                // them as indexed
+                if (completed) {
+                    database.setTransactionSuccessful();
                 }
-                database.setTransactionSuccessful();
             } finally {
                 database.endTransaction();
             }
+            if (!completed) {
+                return null;
+            }
+
+            // Only save a snapshot after a full pass over the indexable data
+            final String name = mDatabaseHelper.getDatabaseName();
+            if (!forceUpdate && dataToUpdate.size() > 0 && (mChangedRowCount > 0 ||
+                    !IndexSnapshot.exists(mContext, name, localeStr))) {
+                IndexSnapshot.write(mContext, name, database, localeStr);
+                clearSnapshotIndex();
+            }
 
             return null;
         }
 
+        /**
+         * @return false if the indexing has been interrupted and the transaction must not be
+         * committed.
+         */
         private boolean processDataToUpdate(SQLiteDatabase database, String localeStr,
                 List<SearchIndexableData> dataToUpdate, Map<String, List<String>> nonIndexableKeys,
-                boolean forceUpdate) {
+                Map<String, String> providerFingerprints, boolean forceUpdate) {
 
-            if (!forceUpdate && isLocaleAlreadyIndexed(database, localeStr)) {
-                Log.d(LOG_TAG, "Locale '" + localeStr + "' is already indexed");
+            final boolean result;
+            final long current = System.currentTimeMillis();
+            mChangedRowCount = 0;
+
+            if (forceUpdate) {
+                result = processForcedDataToUpdate(database, localeStr, dataToUpdate,
+                        nonIndexableKeys);
+            } else {
+                result = processDataToUpdateIncrementally(database, localeStr, dataToUpdate,
+                        nonIndexableKeys, providerFingerprints);
+            }
+
+            final long now = System.currentTimeMillis();
+            Log.d(LOG_TAG, "Indexing locale '" + localeStr + "' took " +
+                    (now - current) + " millis, changed rows: " + mChangedRowCount);
+            return result;
+        }
+
+        /**
+         * Re-index the given data whatever their fingerprints. The DocIDs of the written rows
+         * are added to their entries so that the rows are deleted with the entries. Entries that
+         * have not been indexed yet get a fingerprint only valid for the current build: they
+         * are kept by the next updates and removed after a system update.
+         */
+        private boolean processForcedDataToUpdate(SQLiteDatabase database, String localeStr,
+                List<SearchIndexableData> dataToUpdate,
+                Map<String, List<String>> nonIndexableKeys) {
+
+            final Map<String, IndexedEntry> storedEntries =
+                    getStoredEntries(database, localeStr);
+            final Map<String, IndexedEntry> entries = groupByEntry(dataToUpdate);
+
+            final List<SearchIndexableData> data = new ArrayList<SearchIndexableData>();
+            final List<IndexedEntry> dataEntries = new ArrayList<IndexedEntry>();
+            for (IndexedEntry entry : entries.values()) {
+                final IndexedEntry storedEntry = storedEntries.get(entry.getKey());
+                if (storedEntry != null) {
+                    entry.fingerprint = storedEntry.fingerprint;
+                    entry.docIds.addAll(storedEntry.docIds);
+                } else {
+                    entry.fingerprint = getForcedFingerprint();
+                }
+
+                final int dataCount = entry.data.size();
+                for (int n = 0; n < dataCount; n++) {
+                    data.add(entry.data.get(n));
+                    dataEntries.add(entry);
+                }
+            }
+
+            if (!indexInParallel(database, localeStr, data, dataEntries, nonIndexableKeys)) {
+                return false;
+            }
+
+            for (IndexedEntry entry : entries.values()) {
+                saveEntryFingerprint(database, localeStr, entry);
+            }
+            return true;
+        }
+
+        /**
+         * Only re-index the entries whose fingerprint has changed since the last time the
+         * locale has been indexed and remove the entries that are no more provided, except the
+         * ones indexed by forced updates since the last system update.
+         */
+        private boolean processDataToUpdateIncrementally(SQLiteDatabase database, String localeStr,
+                List<SearchIndexableData> dataToUpdate, Map<String, List<String>> nonIndexableKeys,
+                Map<String, String> providerFingerprints) {
+
+            final Map<String, IndexedEntry> storedEntries =
+                    getStoredEntries(database, localeStr);
+            final Map<String, IndexedEntry> entries = groupByEntry(dataToUpdate);
+
+            final List<SearchIndexableData> changedData = new ArrayList<SearchIndexableData>();
+            final List<IndexedEntry> changedDataEntries = new ArrayList<IndexedEntry>();
+            final List<IndexedEntry> changedEntries = new ArrayList<IndexedEntry>();
+
+            int skippedEntries = 0;
+            for (IndexedEntry entry : entries.values()) {
+                final String fingerprint = entry.computeFingerprint(
+                        providerFingerprints.get(entry.packageName));
+                final IndexedEntry storedEntry = storedEntries.remove(entry.getKey());
+
+                if (fingerprint != null && storedEntry != null &&
+                        fingerprint.equals(storedEntry.fingerprint)) {
+                    skippedEntries++;
+                    continue;
+                }
+
+                if (storedEntry != null) {
+                    deleteEntryRows(database, localeStr, storedEntry);
+                }
+
+                final int dataCount = entry.data.size();
+                for (int n = 0; n < dataCount; n++) {
+                    changedData.add(entry.data.get(n));
+                    changedDataEntries.add(entry);
+                }
+                // Entries without a fingerprint are still saved so that their rows are tracked,
+                // they never match and are re-indexed each time.
+                entry.fingerprint = (fingerprint != null) ? fingerprint : EMPTY;
+                changedEntries.add(entry);
+            }
+
+            if (!indexInParallel(database, localeStr, changedData, changedDataEntries,
+                    nonIndexableKeys)) {
+                return false;
+            }
+
+            final int changedCount = changedEntries.size();
+            for (int n = 0; n < changedCount; n++) {
+                saveEntryFingerprint(database, localeStr, changedEntries.get(n));
+            }
+
+            // Whatever is remaining has not been provided this time, so remove it
+            final String forcedFingerprint = getForcedFingerprint();
+            int removedEntries = 0;
+            for (IndexedEntry storedEntry : storedEntries.values()) {
+                if (forcedFingerprint.equals(storedEntry.fingerprint)) {
+                    continue;
+                }
+                deleteEntryRows(database, localeStr, storedEntry);
+                deleteEntryFingerprint(database, localeStr, storedEntry);
+                removedEntries++;
+            }
+
+            Log.d(LOG_TAG, "Locale '" + localeStr + "': " + skippedEntries + " entries unchanged, "
+                    + (entries.size() - skippedEntries) + " entries re-indexed, "
+                    + removedEntries + " entries removed");
+            return true;
+        }
+
+        /**
+         * Parse the data on the indexing worker threads and write the resulting rows from the
+         * current thread (which is owning the database transaction), in submission order.
+         *
+         * @param entries the entry of each data, whose DocIDs are collected.
+         * @return false if the indexing has been interrupted before all the rows were written.
+         */
+        private boolean indexInParallel(SQLiteDatabase database, final String localeStr,
+                List<SearchIndexableData> data, List<IndexedEntry> entries,
+                final Map<String, List<String>> nonIndexableKeys) {
+            final int count = data.size();
+            if (count == 0) {
                 return true;
             }
 
-            boolean result = false;
-            final long current = System.currentTimeMillis();
+            final ExecutorService executor = BackgroundExecutor.get();
+            final List<Future<List<ContentValues>>> futures =
+                    new ArrayList<Future<List<ContentValues>>>(count);
+            for (int n = 0; n < count; n++) {
+                final SearchIndexableData item = data.get(n);
+                futures.add(executor.submit(new Callable<List<ContentValues>>() {
+                    @Override
+                    public List<ContentValues> call() {
+                        final List<ContentValues> rows = new ArrayList<ContentValues>();
+                        try {
+                            indexOneSearchIndexableData(rows, localeStr, item, nonIndexableKeys);
+                        } catch (Exception e) {
+                            Log.e(LOG_TAG, "Cannot index: " + item.className + " for locale: "
+                                    + localeStr, e);
+                        }
+                        setEntryDocIds(rows, item);
+                        return rows;
+                    }
+                }));
+            }
+
+            final IndexRowWriter writer = new IndexRowWriter(database);
+            try {
+                for (int n = 0; n < count; n++) {
+                    // Write in submission order, so that the row kept for colliding DocIDs
+                    // does not depend on which worker finished first
+                    final List<ContentValues> rows = futures.get(n).get();
+                    mChangedRowCount += writer.write(rows);
+                    addDocIds(entries.get(n), rows);
+                }
+                return true;
+            } catch (InterruptedException e) {
+                Log.w(LOG_TAG, "Indexing locale '" + localeStr + "' has been interrupted");
+                Thread.currentThread().interrupt();
+                return false;
+            } catch (ExecutionException e) {
+                // Should not happen as the workers are catching their own exceptions
+                Log.e(LOG_TAG, "Cannot index for locale: " + localeStr, e);
+                return false;
+            } finally {
+                writer.close();
+                for (int n = 0; n < count; n++) {
+                    futures.get(n).cancel(true);
+                }
+            }
+        }
 
+        private void addDocIds(IndexedEntry entry, List<ContentValues> rows) {
+            final int count = rows.size();
+            for (int n = 0; n < count; n++) {
+                entry.docIds.add(rows.get(n).getAsString(IndexColumns.DOCID));
+            }
+        }
+
+        private Map<String, IndexedEntry> groupByEntry(List<SearchIndexableData> dataToUpdate) {
+            final Map<String, IndexedEntry> entries = new LinkedHashMap<String, IndexedEntry>();
             final int count = dataToUpdate.size();
             for (int n = 0; n < count; n++) {
                 final SearchIndexableData data = dataToUpdate.get(n);
-                try {
-                    indexOneSearchIndexableData(database, localeStr, data, nonIndexableKeys);
-                } catch (Exception e) {
-                    Log.e(LOG_TAG,
-                            "Cannot index: " + data.className + " for locale: " + localeStr, e);
+                if (data == null) {
+                    continue;
+                }
+                final String key = buildEntryKey(
+                        (data.packageName != null) ? data.packageName : EMPTY,
+                        (data.className != null) ? data.className : EMPTY);
+                IndexedEntry entry = entries.get(key);
+                if (entry == null) {
+                    entry = new IndexedEntry(data.packageName, data.className);
+                    entries.put(key, entry);
                 }
+                entry.data.add(data);
             }
+            return entries;
+        }
 
-            final long now = System.currentTimeMillis();
-            Log.d(LOG_TAG, "Indexing locale '" + localeStr + "' took " +
-                    (now - current) + " millis");
+        private Map<String, IndexedEntry> getStoredEntries(SQLiteDatabase database,
+                String locale) {
+            final Map<String, IndexedEntry> result = new HashMap<String, IndexedEntry>();
+            Cursor cursor = null;
+            try {
+                cursor = database.query(Tables.TABLE_META_FINGERPRINTS,
+                        new String[] {
+                                MetaFingerprintsColumns.PACKAGE,
+                                MetaFingerprintsColumns.CLASS_NAME,
+                                MetaFingerprintsColumns.FINGERPRINT,
+                                MetaFingerprintsColumns.DOCIDS },
+                        MetaFingerprintsColumns.LOCALE + " = ?", new String[] { locale },
+                        null, null, null);
+                while (cursor.moveToNext()) {
+                    final IndexedEntry entry =
+                            new IndexedEntry(cursor.getString(0), cursor.getString(1));
+                    entry.fingerprint = cursor.getString(2);
+                    if (!cursor.isNull(3)) {
+                        Collections.addAll(entry.docIds,
+                                TextUtils.split(cursor.getString(3), DOCIDS_SEPARATOR));
+                    }
+                    result.put(entry.getKey(), entry);
+                }
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
             return result;
         }
 
+        private void saveEntryFingerprint(SQLiteDatabase database, String locale,
+                IndexedEntry entry) {
+            final ContentValues values = new ContentValues();
+            values.put(MetaFingerprintsColumns.LOCALE, locale);
+            values.put(MetaFingerprintsColumns.PACKAGE, entry.packageName);
+            values.put(MetaFingerprintsColumns.CLASS_NAME, entry.className);
+            values.put(MetaFingerprintsColumns.FINGERPRINT, entry.fingerprint);
+            values.put(MetaFingerprintsColumns.DOCIDS,
+                    TextUtils.join(DOCIDS_SEPARATOR, entry.docIds));
+            database.replaceOrThrow(Tables.TABLE_META_FINGERPRINTS, null, values);
+        }
+
+        private void deleteEntryFingerprint(SQLiteDatabase database, String locale,
+                IndexedEntry entry) {
+            database.delete(Tables.TABLE_META_FINGERPRINTS,
+                    MetaFingerprintsColumns.LOCALE + " = ? AND " +
+                            MetaFingerprintsColumns.PACKAGE + " = ? AND " +
+                            MetaFingerprintsColumns.CLASS_NAME + " = ?",
+                    new String[] { locale, entry.packageName, entry.className });
+        }
+
+        private void deleteEntryRows(SQLiteDatabase database, String locale,
+                IndexedEntry entry) {
+            // The rows of an entry are found by their DocIDs, as rows do not keep the package
+            // they come from and raw rows may not have a class name
+            final String[] whereArgs = new String[2];
+            whereArgs[1] = locale;
+            for (String docId : entry.docIds) {
+                whereArgs[0] = docId;
+                mChangedRowCount += database.delete(Tables.TABLE_PREFS_INDEX,
+                        IndexColumns.DOCID + " = ? AND " + IndexColumns.LOCALE + " = ?",
+                        whereArgs);
+            }
+        }
+
         private boolean processDataToDelete(SQLiteDatabase database, String localeStr,
                 List<SearchIndexableData> dataToDelete) {
 
@@ -1266,70 +1691,5 @@ public class Index {
 
             return database.delete(Tables.TABLE_PREFS_INDEX, whereClause, whereArgs);
         }
-
-        private boolean isLocaleAlreadyIndexed(SQLiteDatabase database, String locale) {
-            Cursor cursor = null;
-            boolean result = false;
-            final StringBuilder sb = new StringBuilder(IndexColumns.LOCALE);
-            sb.append(" = ");
-            DatabaseUtils.appendEscapedSQLString(sb, locale);
-            try {
-                // We care only for 1 row
-                cursor = database.query(Tables.TABLE_PREFS_INDEX, null,
-                        sb.toString(), null, null, null, null, "1");
-                final int count = cursor.getCount();
-                result = (count >= 1);
-            } finally {
-                if (cursor != null) {
-                    cursor.close();
-                }
-            }
-            return result;
-        }
-    }
-
-    /**
-     * A basic AsyncTask for saving a Search query into the database
-     */
-    private class SaveSearchQueryTask extends AsyncTask<String, Void, Long> {
-
-        @Override
-        protected Long doInBackground(String... params) {
-            final long now = new Date().getTime();
-
-            final ContentValues values = new ContentValues();
-            values.put(IndexDatabaseHelper.SavedQueriesColums.QUERY, params[0]);
-            values.put(IndexDatabaseHelper.SavedQueriesColums.TIME_STAMP, now);
-
-            final SQLiteDatabase database = getWritableDatabase();
-            if (database == null) {
-                Log.e(LOG_TAG, "Cannot save Search queries as I cannot get a writable database");
-                return -1L;
-            }
-
-            long lastInsertedRowId = -1L;
-            try {
-                // First, delete all saved queries that are the same
-                database.delete(Tables.TABLE_SAVED_QUERIES,
-                        IndexDatabaseHelper.SavedQueriesColums.QUERY + " = ?",
-                        new String[] { params[0] });
-
-                // Second, insert the saved query
-                lastInsertedRowId =
-                        database.insertOrThrow(Tables.TABLE_SAVED_QUERIES, null, values);
-
-                // Last, remove "old" saved queries
-                final long delta = lastInsertedRowId - MAX_SAVED_SEARCH_QUERY;
-                if (delta > 0) {
-                    int count = database.delete(Tables.TABLE_SAVED_QUERIES, "rowId <= ?",
-                            new String[] { Long.toString(delta) });
-                    Log.d(LOG_TAG, "Deleted '" + count + "' saved Search query(ies)");
-                }
-            } catch (Exception e) {
-                Log.d(LOG_TAG, "Cannot update saved Search queries", e);
-            }
-
-            return lastInsertedRowId;
-        }
     }
 }
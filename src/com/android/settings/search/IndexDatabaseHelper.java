@@ -28,12 +28,13 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
     private static final String TAG = "IndexDatabaseHelper";
 
     private static final String DATABASE_NAME = "search_index.db";
-    private static final int DATABASE_VERSION = 115;
+    private static final int DATABASE_VERSION = 118;
 
     public interface Tables {
         public static final String TABLE_PREFS_INDEX = "prefs_index";
         public static final String TABLE_META_INDEX = "meta_index";
         public static final String TABLE_SAVED_QUERIES = "saved_queries";
+        public static final String TABLE_META_FINGERPRINTS = "meta_fingerprints";
     }
 
     public interface IndexColumns {
@@ -63,6 +64,14 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
         public static final String BUILD = "build";
     }
 
+    public interface MetaFingerprintsColumns {
+        public static final String LOCALE = "locale";
+        public static final String PACKAGE = "package";
+        public static final String CLASS_NAME = "class_name";
+        public static final String FINGERPRINT = "fingerprint";
+        public static final String DOCIDS = "docids";
+    }
+
     public interface SavedQueriesColums  {
         public static final String QUERY = "query";
         public static final String TIME_STAMP = "timestamp";
@@ -124,10 +133,36 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
                     SavedQueriesColums.TIME_STAMP + " INTEGER" +
                     ")";
 
+    private static final String CREATE_META_FINGERPRINTS_TABLE =
+            "CREATE TABLE " + Tables.TABLE_META_FINGERPRINTS +
+                    "(" +
+                    MetaFingerprintsColumns.LOCALE + " VARCHAR(32) NOT NULL" +
+                    ", " +
+                    MetaFingerprintsColumns.PACKAGE + " TEXT NOT NULL" +
+                    ", " +
+                    MetaFingerprintsColumns.CLASS_NAME + " TEXT NOT NULL" +
+                    ", " +
+                    MetaFingerprintsColumns.FINGERPRINT + " TEXT NOT NULL" +
+                    ", " +
+                    MetaFingerprintsColumns.DOCIDS + " TEXT" +
+                    ", " +
+                    "UNIQUE (" +
+                    MetaFingerprintsColumns.LOCALE +
+                    ", " +
+                    MetaFingerprintsColumns.PACKAGE +
+                    ", " +
+                    MetaFingerprintsColumns.CLASS_NAME +
+                    ") ON CONFLICT REPLACE" +
+                    ")";
+
     private static final String INSERT_BUILD_VERSION =
             "INSERT INTO " + Tables.TABLE_META_INDEX +
                     " VALUES ('" + Build.VERSION.INCREMENTAL + "');";
 
+    private static final String UPDATE_BUILD_VERSION =
+            "UPDATE " + Tables.TABLE_META_INDEX +
+                    " SET " + MetaColumns.BUILD + " = '" + Build.VERSION.INCREMENTAL + "';";
+
     private static final String SELECT_BUILD_VERSION =
             "SELECT " + MetaColumns.BUILD + " FROM " + Tables.TABLE_META_INDEX + " LIMIT 1;";
 
@@ -141,7 +176,15 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
     }
 
     public IndexDatabaseHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this(context, DATABASE_NAME);
+    }
+
+    /**
+     * Use a database with a different name than the Settings search Index, for example for
+     * benchmarking the Index without touching its data.
+     */
+    public IndexDatabaseHelper(Context context, String name) {
+        super(context, name, null, DATABASE_VERSION);
     }
 
     @Override
@@ -153,6 +196,7 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
         db.execSQL(CREATE_INDEX_TABLE);
         db.execSQL(CREATE_META_TABLE);
         db.execSQL(CREATE_SAVED_QUERIES_TABLE);
+        db.execSQL(CREATE_META_FINGERPRINTS_TABLE);
         db.execSQL(INSERT_BUILD_VERSION);
         Log.i(TAG, "Bootstrapped database");
     }
@@ -164,9 +208,11 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
         Log.i(TAG, "Using schema version: " + db.getVersion());
 
         if (!Build.VERSION.INCREMENTAL.equals(getBuildVersion(db))) {
-            Log.w(TAG, "Index needs to be rebuilt as build-version is not the same");
-            // We need to drop the tables and recreate them
-            reconstruct(db);
+            // No need to drop the tables: the fingerprint of each indexed package / class
+            // includes the build fingerprint, so every entry is re-indexed after an update and
+            // the entries only indexed by forced updates are removed.
+            Log.w(TAG, "Index needs to be refreshed as build-version is not the same");
+            db.execSQL(UPDATE_BUILD_VERSION);
         } else {
             Log.i(TAG, "Index is fine");
         }
@@ -219,5 +265,6 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
         db.execSQL("DROP TABLE IF EXISTS " + Tables.TABLE_META_INDEX);
         db.execSQL("DROP TABLE IF EXISTS " + Tables.TABLE_PREFS_INDEX);
         db.execSQL("DROP TABLE IF EXISTS " + Tables.TABLE_SAVED_QUERIES);
+        db.execSQL("DROP TABLE IF EXISTS " + Tables.TABLE_META_FINGERPRINTS);
     }
 }
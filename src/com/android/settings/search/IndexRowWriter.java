@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.List;
+
+import static com.android.settings.search.IndexDatabaseHelper.IndexColumns;
+import static com.android.settings.search.IndexDatabaseHelper.Tables;
+
+/**
+ * Writes rows into the Index table using a single prepared statement.
+ *
+ * A writer must be used from the thread owning the database transaction and closed when done.
+ */
+class IndexRowWriter {
+
+    private static final String[] COLUMNS = new String[] {
+            IndexColumns.DOCID,
+            IndexColumns.LOCALE,
+            IndexColumns.DATA_RANK,
+            IndexColumns.DATA_TITLE,
+            IndexColumns.DATA_TITLE_NORMALIZED,
+            IndexColumns.DATA_SUMMARY_ON,
+            IndexColumns.DATA_SUMMARY_ON_NORMALIZED,
+            IndexColumns.DATA_SUMMARY_OFF,
+            IndexColumns.DATA_SUMMARY_OFF_NORMALIZED,
+            IndexColumns.DATA_ENTRIES,
+            IndexColumns.DATA_KEYWORDS,
+            IndexColumns.CLASS_NAME,
+            IndexColumns.SCREEN_TITLE,
+            IndexColumns.INTENT_ACTION,
+            IndexColumns.INTENT_TARGET_PACKAGE,
+            IndexColumns.INTENT_TARGET_CLASS,
+            IndexColumns.ICON,
+            IndexColumns.ENABLED,
+            IndexColumns.DATA_KEY_REF,
+            IndexColumns.USER_ID
+    };
+
+    private static final String INSERT_SQL = buildInsertSQL();
+
+    private final SQLiteStatement mStatement;
+
+    public IndexRowWriter(SQLiteDatabase database) {
+        mStatement = database.compileStatement(INSERT_SQL);
+    }
+
+    /**
+     * Write a batch of rows. Each row must use the Index column names as keys.
+     *
+     * @return the number of rows written.
+     */
+    public int write(List<ContentValues> rows) {
+        int written = 0;
+        final int count = rows.size();
+        for (int n = 0; n < count; n++) {
+            final ContentValues values = rows.get(n);
+            mStatement.clearBindings();
+            for (int i = 0; i < COLUMNS.length; i++) {
+                DatabaseUtils.bindObjectToProgram(mStatement, i + 1, values.get(COLUMNS[i]));
+            }
+            if (mStatement.executeInsert() != -1) {
+                written++;
+            }
+        }
+        return written;
+    }
+
+    public void close() {
+        mStatement.close();
+    }
+
+    private static String buildInsertSQL() {
+        final StringBuilder sb = new StringBuilder("INSERT OR REPLACE INTO ");
+        sb.append(Tables.TABLE_PREFS_INDEX);
+        sb.append(" (");
+        for (int n = 0; n < COLUMNS.length; n++) {
+            if (n > 0) {
+                sb.append(", ");
+            }
+            sb.append(COLUMNS[n]);
+        }
+        sb.append(") VALUES (");
+        for (int n = 0; n < COLUMNS.length; n++) {
+            if (n > 0) {
+                sb.append(", ");
+            }
+            sb.append("?");
+        }
+        sb.append(")");
+        return sb.toString();
+    }
+}
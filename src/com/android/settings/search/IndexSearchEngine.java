@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.CancellationSignal;
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.android.settings.search.IndexDatabaseHelper.IndexColumns;
+import static com.android.settings.search.IndexDatabaseHelper.SavedQueriesColums;
+import static com.android.settings.search.IndexDatabaseHelper.Tables;
+
+/**
+ * Runs the search and suggestions queries against the Index database.
+ *
+ * All the SQL statements are built once and the user query (as well as the locale) is only
+ * bound as an argument, so that SQLite can reuse the statements it has already compiled for
+ * each keystroke. Search results are returned as an array of rows whose values are indexed by
+ * the {@link Index} COLUMN_INDEX_XXX constants.
+ */
+final class IndexSearchEngine {
+
+    // If you change the order of columns here, you SHOULD change the Index.COLUMN_INDEX_XXX values
+    private static final String[] SELECT_COLUMNS = new String[] {
+            IndexColumns.DATA_RANK,               // 0
+            IndexColumns.DATA_TITLE,              // 1
+            IndexColumns.DATA_SUMMARY_ON,         // 2
+            IndexColumns.DATA_SUMMARY_OFF,        // 3
+            IndexColumns.DATA_ENTRIES,            // 4
+            IndexColumns.DATA_KEYWORDS,           // 5
+            IndexColumns.CLASS_NAME,              // 6
+            IndexColumns.SCREEN_TITLE,            // 7
+            IndexColumns.ICON,                    // 8
+            IndexColumns.INTENT_ACTION,           // 9
+            IndexColumns.INTENT_TARGET_PACKAGE,   // 10
+            IndexColumns.INTENT_TARGET_CLASS,     // 11
+            IndexColumns.ENABLED,                 // 12
+            IndexColumns.DATA_KEY_REF             // 13
+    };
+
+    private static final String[] MATCH_COLUMNS_PRIMARY = {
+            IndexColumns.DATA_TITLE,
+            IndexColumns.DATA_TITLE_NORMALIZED,
+            IndexColumns.DATA_KEYWORDS
+    };
+
+    private static final String[] MATCH_COLUMNS_SECONDARY = {
+            IndexColumns.DATA_SUMMARY_ON,
+            IndexColumns.DATA_SUMMARY_ON_NORMALIZED,
+            IndexColumns.DATA_SUMMARY_OFF,
+            IndexColumns.DATA_SUMMARY_OFF_NORMALIZED,
+            IndexColumns.DATA_ENTRIES
+    };
+
+    // Max number of proposed suggestions
+    private static final int MAX_PROPOSED_SUGGESTIONS = 5;
+
+    private static final char LIKE_ESCAPE_CHAR = '\\';
+
+    public static final String[][] EMPTY_RESULTS = new String[0][];
+
+    // Arguments: match string, locale
+    private static final String PRIMARY_SQL = buildSearchSQL() +
+            " ORDER BY " + IndexColumns.DATA_RANK;
+
+    // We need to use an EXCEPT operator as negate MATCH queries do not work.
+    // Arguments: secondary match string, locale, primary match string, locale
+    private static final String SECONDARY_SQL = buildSearchSQL() + " EXCEPT " + PRIMARY_SQL;
+
+    private static final String RECENT_SUGGESTIONS_SQL =
+            "SELECT " + SavedQueriesColums.QUERY +
+            " FROM " + Tables.TABLE_SAVED_QUERIES +
+            " ORDER BY rowId DESC" +
+            " LIMIT " + MAX_PROPOSED_SUGGESTIONS;
+
+    // Arguments: escaped LIKE pattern
+    private static final String MATCHING_SUGGESTIONS_SQL =
+            "SELECT " + SavedQueriesColums.QUERY +
+            " FROM " + Tables.TABLE_SAVED_QUERIES +
+            " WHERE " + SavedQueriesColums.QUERY + " LIKE ? ESCAPE '" + LIKE_ESCAPE_CHAR + "'" +
+            " LIMIT " + MAX_PROPOSED_SUGGESTIONS;
+
+    // Result columns followed by the primary and secondary match columns
+    // Arguments: locale
+    private static final String ALL_ROWS_SQL = buildAllRowsSQL();
+
+    private IndexSearchEngine() {
+    }
+
+    /**
+     * Search the Index for the given query: rows matching the primary columns (title and
+     * keywords) come first, followed by the rows only matching the secondary columns.
+     *
+     * @throws android.os.OperationCanceledException if the signal has been canceled.
+     */
+    public static String[][] search(SQLiteDatabase database, String query, String locale,
+            CancellationSignal cancellationSignal) {
+        if (TextUtils.isEmpty(query)) {
+            return EMPTY_RESULTS;
+        }
+        final String primaryMatch = buildMatchString(query, MATCH_COLUMNS_PRIMARY);
+        final String secondaryMatch = buildMatchString(query, MATCH_COLUMNS_SECONDARY);
+
+        final List<String[]> rows = new ArrayList<String[]>();
+        readRows(database.rawQuery(PRIMARY_SQL, new String[] { primaryMatch, locale },
+                cancellationSignal), rows);
+        readRows(database.rawQuery(SECONDARY_SQL,
+                new String[] { secondaryMatch, locale, primaryMatch, locale },
+                cancellationSignal), rows);
+
+        return rows.toArray(new String[rows.size()][]);
+    }
+
+    public static Cursor getSuggestions(SQLiteDatabase database, String query,
+            CancellationSignal cancellationSignal) {
+        if (TextUtils.isEmpty(query)) {
+            return database.rawQuery(RECENT_SUGGESTIONS_SQL, null, cancellationSignal);
+        }
+        return database.rawQuery(MATCHING_SUGGESTIONS_SQL,
+                new String[] { escapeLikePattern(query) + "%" }, cancellationSignal);
+    }
+
+    /**
+     * Load all the enabled rows of a locale into an {@link InMemoryIndex}.
+     */
+    public static InMemoryIndex buildInMemoryIndex(SQLiteDatabase database, String locale) {
+        final InMemoryIndex.Builder builder = new InMemoryIndex.Builder(locale);
+        final Cursor cursor = queryAllRows(database, locale);
+        try {
+            final int columnCount = getAllRowsColumnCount();
+            final String[] fullRow = new String[columnCount];
+            while (cursor.moveToNext()) {
+                for (int n = 0; n < columnCount; n++) {
+                    fullRow[n] = cursor.getString(n);
+                }
+                addToInMemoryIndex(builder, fullRow);
+            }
+        } finally {
+            cursor.close();
+        }
+        return builder.build();
+    }
+
+    /**
+     * Query all the enabled rows of a locale, sorted by rank. The cursor contains the result
+     * columns followed by the primary and secondary match columns.
+     */
+    static Cursor queryAllRows(SQLiteDatabase database, String locale) {
+        return database.rawQuery(ALL_ROWS_SQL, new String[] { locale });
+    }
+
+    static int getAllRowsColumnCount() {
+        return SELECT_COLUMNS.length + MATCH_COLUMNS_PRIMARY.length +
+                MATCH_COLUMNS_SECONDARY.length;
+    }
+
+    /**
+     * Add a row returned by {@link #queryAllRows} to an in-memory index.
+     */
+    static void addToInMemoryIndex(InMemoryIndex.Builder builder, String[] fullRow) {
+        final int columnCount = SELECT_COLUMNS.length;
+        final int primaryCount = MATCH_COLUMNS_PRIMARY.length;
+        final int secondaryCount = MATCH_COLUMNS_SECONDARY.length;
+
+        final String[] row = new String[columnCount];
+        System.arraycopy(fullRow, 0, row, 0, columnCount);
+        final int index = builder.addRow(row);
+        for (int n = 0; n < primaryCount; n++) {
+            builder.addText(index, fullRow[columnCount + n], true);
+        }
+        for (int n = 0; n < secondaryCount; n++) {
+            builder.addText(index, fullRow[columnCount + primaryCount + n], false);
+        }
+    }
+
+    private static void readRows(Cursor cursor, List<String[]> rows) {
+        try {
+            final int columnCount = SELECT_COLUMNS.length;
+            while (cursor.moveToNext()) {
+                final String[] row = new String[columnCount];
+                for (int n = 0; n < columnCount; n++) {
+                    row[n] = cursor.getString(n);
+                }
+                rows.add(row);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static String buildSearchSQL() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("SELECT ");
+        appendColumns(sb, SELECT_COLUMNS);
+        sb.append(" FROM ");
+        sb.append(Tables.TABLE_PREFS_INDEX);
+        sb.append(" WHERE ");
+        sb.append(Tables.TABLE_PREFS_INDEX);
+        sb.append(" MATCH ? AND ");
+        sb.append(IndexColumns.LOCALE);
+        sb.append(" = ? AND ");
+        sb.append(IndexColumns.ENABLED);
+        sb.append(" = 1");
+        return sb.toString();
+    }
+
+    private static String buildAllRowsSQL() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("SELECT ");
+        appendColumns(sb, SELECT_COLUMNS);
+        sb.append(", ");
+        appendColumns(sb, MATCH_COLUMNS_PRIMARY);
+        sb.append(", ");
+        appendColumns(sb, MATCH_COLUMNS_SECONDARY);
+        sb.append(" FROM ");
+        sb.append(Tables.TABLE_PREFS_INDEX);
+        sb.append(" WHERE ");
+        sb.append(IndexColumns.LOCALE);
+        sb.append(" = ? AND ");
+        sb.append(IndexColumns.ENABLED);
+        sb.append(" = 1 ORDER BY ");
+        sb.append(IndexColumns.DATA_RANK);
+        return sb.toString();
+    }
+
+    private static void appendColumns(StringBuilder sb, String[] columns) {
+        for (int n = 0; n < columns.length; n++) {
+            sb.append(columns[n]);
+            if (n < columns.length - 1) {
+                sb.append(", ");
+            }
+        }
+    }
+
+    private static String buildMatchString(String query, String[] columnNames) {
+        final String value = query + "*";
+        final StringBuilder sb = new StringBuilder();
+        final int count = columnNames.length;
+        for (int n = 0; n < count; n++) {
+            sb.append(columnNames[n]);
+            sb.append(":");
+            sb.append(value);
+            if (n < count - 1) {
+                sb.append(" OR ");
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String escapeLikePattern(String query) {
+        final StringBuilder sb = new StringBuilder(query.length());
+        final int length = query.length();
+        for (int n = 0; n < length; n++) {
+            final char c = query.charAt(n);
+            if (c == '%' || c == '_' || c == LIKE_ESCAPE_CHAR) {
+                sb.append(LIKE_ESCAPE_CHAR);
+            }
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+}
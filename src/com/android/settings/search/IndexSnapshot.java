@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * A per-locale snapshot of the Index, saved after the Index has been updated.
+ *
+ * The snapshot is used for answering search queries while the live Index is being rebuilt
+ * (for example after a schema upgrade), so that search results are available right away.
+ */
+final class IndexSnapshot {
+
+    private static final String LOG_TAG = "IndexSnapshot";
+
+    private static final String SNAPSHOT_DIR = "search_index_snapshots";
+    private static final int SNAPSHOT_VERSION = 1;
+
+    private IndexSnapshot() {
+    }
+
+    public static boolean exists(Context context, String name, String locale) {
+        return getFile(context, name, locale).exists();
+    }
+
+    /**
+     * Save all the enabled rows of the locale. Failures are only logged.
+     *
+     * @param name the name of the Index database the snapshot is taken from.
+     */
+    public static void write(Context context, String name, SQLiteDatabase database,
+            String locale) {
+        final long current = System.currentTimeMillis();
+        final File dir = new File(context.getCacheDir(), SNAPSHOT_DIR);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.w(LOG_TAG, "Cannot create snapshot directory: " + dir);
+            return;
+        }
+
+        final AtomicFile file = new AtomicFile(getFile(context, name, locale));
+        FileOutputStream fos = null;
+        final Cursor cursor = IndexSearchEngine.queryAllRows(database, locale);
+        try {
+            fos = file.startWrite();
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            final int columnCount = IndexSearchEngine.getAllRowsColumnCount();
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeInt(columnCount);
+            out.writeInt(cursor.getCount());
+            while (cursor.moveToNext()) {
+                for (int n = 0; n < columnCount; n++) {
+                    writeString(out, cursor.getString(n));
+                }
+            }
+            out.flush();
+            file.finishWrite(fos);
+            Log.d(LOG_TAG, "Writing snapshot for locale '" + locale + "' took "
+                    + (System.currentTimeMillis() - current) + " millis");
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Cannot write snapshot for locale: " + locale, e);
+            file.failWrite(fos);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Load the snapshot of the locale into an in-memory index.
+     *
+     * @return null if there is no valid snapshot for the locale.
+     */
+    public static InMemoryIndex read(Context context, String name, String locale) {
+        final AtomicFile file = new AtomicFile(getFile(context, name, locale));
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(file.openRead()));
+            final int columnCount = IndexSearchEngine.getAllRowsColumnCount();
+            if (in.readInt() != SNAPSHOT_VERSION || in.readInt() != columnCount) {
+                Log.w(LOG_TAG, "Ignoring incompatible snapshot for locale: " + locale);
+                return null;
+            }
+
+            final InMemoryIndex.Builder builder = new InMemoryIndex.Builder(locale);
+            final String[] fullRow = new String[columnCount];
+            final int rowCount = in.readInt();
+            for (int i = 0; i < rowCount; i++) {
+                for (int n = 0; n < columnCount; n++) {
+                    fullRow[n] = readString(in);
+                }
+                IndexSearchEngine.addToInMemoryIndex(builder, fullRow);
+            }
+            return builder.build();
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Cannot read snapshot for locale: " + locale, e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+    }
+
+    private static File getFile(Context context, String name, String locale) {
+        return new File(new File(context.getCacheDir(), SNAPSHOT_DIR), name + "." + locale);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
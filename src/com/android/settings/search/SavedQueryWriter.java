@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.android.settings.search.IndexDatabaseHelper.SavedQueriesColums;
+import static com.android.settings.search.IndexDatabaseHelper.Tables;
+
+/**
+ * Saves the Search queries (used for proposing suggestions) without blocking the caller.
+ *
+ * Queries are queued and written in batches on a background thread: all the queries saved
+ * since the last write are inserted and the old ones are removed in a single transaction.
+ * The writes have their own thread so that they are not queued behind the Index updates.
+ */
+class SavedQueryWriter {
+
+    private static final String LOG_TAG = "SavedQueryWriter";
+
+    // Max number of saved search queries (who will be used for proposing suggestions)
+    private static final long MAX_SAVED_SEARCH_QUERY = 64;
+
+    private static Handler sWriteHandler;
+
+    private final IndexDatabaseHelper mDatabaseHelper;
+
+    private final List<String> mPendingQueries = new ArrayList<String>();
+    private boolean mWriteScheduled;
+
+    private final Runnable mWriteRunnable = new Runnable() {
+        @Override
+        public void run() {
+            final List<String> queries;
+            synchronized (mPendingQueries) {
+                queries = new ArrayList<String>(mPendingQueries);
+                mPendingQueries.clear();
+                mWriteScheduled = false;
+            }
+            writeQueries(queries);
+        }
+    };
+
+    public SavedQueryWriter(IndexDatabaseHelper databaseHelper) {
+        mDatabaseHelper = databaseHelper;
+    }
+
+    /**
+     * Queue a query to be saved and return immediately.
+     */
+    public void addQuery(String query) {
+        synchronized (mPendingQueries) {
+            mPendingQueries.add(query);
+            if (mWriteScheduled) {
+                return;
+            }
+            mWriteScheduled = true;
+        }
+        getWriteHandler().post(mWriteRunnable);
+    }
+
+    private static synchronized Handler getWriteHandler() {
+        if (sWriteHandler == null) {
+            final HandlerThread thread =
+                    new HandlerThread(LOG_TAG, Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            sWriteHandler = new Handler(thread.getLooper());
+        }
+        return sWriteHandler;
+    }
+
+    private void writeQueries(List<String> queries) {
+        final int count = queries.size();
+        if (count == 0) {
+            return;
+        }
+
+        final SQLiteDatabase database;
+        try {
+            database = mDatabaseHelper.getWritableDatabase();
+        } catch (SQLiteException e) {
+            Log.e(LOG_TAG, "Cannot save Search queries as I cannot get a writable database", e);
+            return;
+        }
+
+        final long now = System.currentTimeMillis();
+        final ContentValues values = new ContentValues();
+        try {
+            database.beginTransaction();
+
+            long lastInsertedRowId = -1L;
+            for (int n = 0; n < count; n++) {
+                final String query = queries.get(n);
+
+                // First, delete all saved queries that are the same
+                database.delete(Tables.TABLE_SAVED_QUERIES,
+                        SavedQueriesColums.QUERY + " = ?", new String[] { query });
+
+                // Second, insert the saved query
+                values.clear();
+                values.put(SavedQueriesColums.QUERY, query);
+                values.put(SavedQueriesColums.TIME_STAMP, now);
+                lastInsertedRowId =
+                        database.insertOrThrow(Tables.TABLE_SAVED_QUERIES, null, values);
+            }
+
+            // Last, remove "old" saved queries
+            final long delta = lastInsertedRowId - MAX_SAVED_SEARCH_QUERY;
+            if (delta > 0) {
+                int deleted = database.delete(Tables.TABLE_SAVED_QUERIES, "rowId <= ?",
+                        new String[] { Long.toString(delta) });
+                Log.d(LOG_TAG, "Deleted '" + deleted + "' saved Search query(ies)");
+            }
+
+            database.setTransactionSuccessful();
+        } catch (Exception e) {
+            Log.d(LOG_TAG, "Cannot update saved Search queries", e);
+        } finally {
+            database.endTransaction();
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import android.util.LruCache;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A small LRU cache of search results keyed on the locale and the normalized query.
+ *
+ * When the user is typing, a query that is not cached yet can often be answered by filtering
+ * the cached results of one of its prefixes: every row matching "wifi" also matches "wi".
+ * The cache is cleared each time the Index generation changes.
+ *
+ * The cached result arrays are shared and must not be modified.
+ */
+class SearchResultCache {
+
+    private static final int MAX_ENTRIES = 16;
+
+    private static final String KEY_SEPARATOR = "\u0000";
+
+    private static final Comparator<String[]> RANK_COMPARATOR = new Comparator<String[]>() {
+        @Override
+        public int compare(String[] lhs, String[] rhs) {
+            return Integer.compare(getRank(lhs), getRank(rhs));
+        }
+    };
+
+    private final LruCache<String, String[][]> mCache =
+            new LruCache<String, String[][]>(MAX_ENTRIES);
+    private int mGeneration = -1;
+
+    private int mHits;
+    private int mRefinements;
+    private int mMisses;
+
+    /**
+     * Returns the cached results for the query, or the results refined from the cached results
+     * of one of its prefixes. Returns null if the query needs to be evaluated.
+     */
+    public synchronized String[][] get(String locale, String query, int generation) {
+        if (generation != mGeneration) {
+            mCache.evictAll();
+            mGeneration = generation;
+        }
+
+        final String normalizedQuery = InMemoryIndex.toLowerCaseAscii(query);
+        String[][] results = mCache.get(buildKey(locale, normalizedQuery));
+        if (results != null) {
+            mHits++;
+            return results;
+        }
+
+        // Only a single token query can be refined from the results of its prefixes
+        if (InMemoryIndex.isSingleToken(normalizedQuery)) {
+            for (int length = normalizedQuery.length() - 1; length > 0; length--) {
+                final String[][] prefixResults =
+                        mCache.get(buildKey(locale, normalizedQuery.substring(0, length)));
+                if (prefixResults != null) {
+                    results = refine(prefixResults, normalizedQuery);
+                    mCache.put(buildKey(locale, normalizedQuery), results);
+                    mRefinements++;
+                    return results;
+                }
+            }
+        }
+
+        mMisses++;
+        return null;
+    }
+
+    public synchronized void put(String locale, String query, int generation,
+            String[][] results) {
+        if (generation != mGeneration) {
+            // The Index has changed while the query was evaluated
+            return;
+        }
+        mCache.put(buildKey(locale, InMemoryIndex.toLowerCaseAscii(query)), results);
+    }
+
+    public synchronized void clear() {
+        mCache.evictAll();
+    }
+
+    public synchronized void dump(String prefix, PrintWriter pw) {
+        pw.print(prefix); pw.print("Result cache: size="); pw.print(mCache.size());
+        pw.print(" hits="); pw.print(mHits);
+        pw.print(" refinements="); pw.print(mRefinements);
+        pw.print(" misses="); pw.println(mMisses);
+    }
+
+    /**
+     * Keep the rows of the prefix results that are matching the longer query. Rows matching the
+     * primary columns come first and the rows only matching the secondary ones are sorted by
+     * rank, like with the FTS search.
+     */
+    private static String[][] refine(String[][] prefixResults, String query) {
+        final List<String[]> primary = new ArrayList<String[]>();
+        final List<String[]> secondary = new ArrayList<String[]>();
+        for (String[] row : prefixResults) {
+            if (matchesPrimary(row, query)) {
+                primary.add(row);
+            } else if (matchesSecondary(row, query)) {
+                secondary.add(row);
+            }
+        }
+        Collections.sort(secondary, RANK_COMPARATOR);
+        primary.addAll(secondary);
+        return primary.toArray(new String[primary.size()][]);
+    }
+
+    private static boolean matchesPrimary(String[] row, String query) {
+        final String title = row[Index.COLUMN_INDEX_TITLE];
+        return InMemoryIndex.hasTokenStartingWith(title, query)
+                || InMemoryIndex.hasTokenStartingWith(Index.normalizeString(title), query)
+                || InMemoryIndex.hasTokenStartingWith(row[Index.COLUMN_INDEX_KEYWORDS], query);
+    }
+
+    private static boolean matchesSecondary(String[] row, String query) {
+        final String summaryOn = row[Index.COLUMN_INDEX_SUMMARY_ON];
+        final String summaryOff = row[Index.COLUMN_INDEX_SUMMARY_OFF];
+        return InMemoryIndex.hasTokenStartingWith(summaryOn, query)
+                || InMemoryIndex.hasTokenStartingWith(Index.normalizeString(summaryOn), query)
+                || InMemoryIndex.hasTokenStartingWith(summaryOff, query)
+                || InMemoryIndex.hasTokenStartingWith(Index.normalizeString(summaryOff), query)
+                || InMemoryIndex.hasTokenStartingWith(row[Index.COLUMN_INDEX_ENTRIES], query);
+    }
+
+    private static int getRank(String[] row) {
+        try {
+            return Integer.parseInt(row[Index.COLUMN_INDEX_RANK]);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static String buildKey(String locale, String normalizedQuery) {
+        return locale + KEY_SEPARATOR + normalizedQuery;
+    }
+}
@@ -36,6 +36,8 @@ import android.view.View;
 import com.android.internal.util.Preconditions;
 import com.android.settings.R;
 
+import java.util.Arrays;
+
 /**
  * {@link NetworkStatsHistory} series to render inside a {@link ChartView},
  * using {@link ChartAxis} to map into screen coordinates.
@@ -69,12 +71,26 @@ public class ChartNetworkSeriesView extends View {
     private long mEndTime = Long.MIN_VALUE;
 
     private boolean mPathValid = false;
+    private boolean mSamplesValid = false;
     private boolean mEstimateVisible = false;
     private boolean mSecondary = false;
 
     private long mMax;
     private long mMaxEstimate;
 
+    /**
+     * Outline of the series downsampled to at most one point per pixel
+     * column, as horizontal positions and cumulative totals. It only depends
+     * on the stats, the visible range and the width, so that changing the
+     * vertical axis while dragging a sweep does not walk all buckets again.
+     */
+    private float[] mSampleX = new float[0];
+    private long[] mSampleTotal = new long[0];
+    private int mSampleCount;
+
+    /** End time of the last bucket included in the samples. */
+    private long mSampleEndTime;
+
     public ChartNetworkSeriesView(Context context) {
         this(context, null, 0);
     }
@@ -143,11 +159,15 @@ public class ChartNetworkSeriesView extends View {
 
     public void bindNetworkStats(NetworkStatsHistory stats) {
         mStats = stats;
+        mSamplesValid = false;
         invalidatePath();
         invalidate();
     }
 
     public void setBounds(long start, long end) {
+        if (mStart != start || mEnd != end) {
+            mSamplesValid = false;
+        }
         mStart = start;
         mEnd = end;
     }
@@ -158,39 +178,41 @@ public class ChartNetworkSeriesView extends View {
 
     public void invalidatePath() {
         mPathValid = false;
-        mMax = 0;
+        if (!mSamplesValid) {
+            mMax = 0;
+        }
         invalidate();
     }
 
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        if (w != oldw) {
+            mSamplesValid = false;
+            mPathValid = false;
+        }
+    }
+
     /**
-     * Erase any existing {@link Path} and generate series outline based on
-     * currently bound {@link NetworkStatsHistory} data.
+     * Walk the currently bound {@link NetworkStatsHistory} buckets and
+     * downsample the cumulative series outline to one point per pixel column.
+     * Since the series is cumulative, the minimum of a column is where the
+     * previous column ends and its maximum is its last point, so keeping the
+     * last point of each column is enough to render the same outline.
      */
-    private void generatePath() {
-        if (LOGD) Log.d(TAG, "generatePath()");
+    private void generateSamples() {
+        if (LOGD) Log.d(TAG, "generateSamples()");
 
+        mSampleCount = 0;
         mMax = 0;
-        mPathStroke.reset();
-        mPathFill.reset();
-        mPathEstimate.reset();
-        mPathValid = true;
+        mSamplesValid = true;
 
         // bail when not enough stats to render
         if (mStats == null || mStats.size() < 2) {
             return;
         }
 
-        final int width = getWidth();
-        final int height = getHeight();
-
-        boolean started = false;
-        float lastX = 0;
-        float lastY = height;
-        long lastTime = mHoriz.convertToValue(lastX);
-
-        // move into starting position
-        mPathStroke.moveTo(lastX, lastY);
-        mPathFill.moveTo(lastX, lastY);
+        long lastTime = mHoriz.convertToValue(0);
 
         // TODO: count fractional data from first bucket crossing start;
         // currently it only accepts first full bucket.
@@ -213,35 +235,91 @@ public class ChartNetworkSeriesView extends View {
             // skip until we find first stats on screen
             if (endX < 0) continue;
 
-            // increment by current bucket total
-            totalData += entry.rxBytes + entry.txBytes;
-
-            final float startY = lastY;
-            final float endY = mVert.convertToPoint(totalData);
-
             if (lastTime != startTime) {
                 // gap in buckets; line to start of current bucket
-                mPathStroke.lineTo(startX, startY);
-                mPathFill.lineTo(startX, startY);
+                addSample(startX, totalData);
             }
 
-            // always draw to end of current bucket
-            mPathStroke.lineTo(endX, endY);
-            mPathFill.lineTo(endX, endY);
+            // increment by current bucket total, and always draw to end of
+            // current bucket
+            totalData += entry.rxBytes + entry.txBytes;
+            addSample(endX, totalData);
 
-            lastX = endX;
-            lastY = endY;
             lastTime = endTime;
         }
 
         // when data falls short, extend to requested end time
         if (lastTime < mEndTime) {
-            lastX = mHoriz.convertToPoint(mEndTime);
+            addSample(mHoriz.convertToPoint(mEndTime), totalData);
+        }
 
+        mSampleEndTime = lastTime;
+        mMax = totalData;
+
+        if (LOGD) {
+            Log.d(TAG, "generateSamples() kept " + mSampleCount + " points of "
+                    + (end - start + 1) + " buckets");
+        }
+    }
+
+    private void addSample(float x, long total) {
+        if (mSampleCount > 0 && (int) mSampleX[mSampleCount - 1] == (int) x) {
+            // same pixel column; only keep the latest point
+            mSampleX[mSampleCount - 1] = x;
+            mSampleTotal[mSampleCount - 1] = total;
+            return;
+        }
+        if (mSampleCount == mSampleX.length) {
+            final int size = Math.max(16, mSampleCount * 2);
+            mSampleX = Arrays.copyOf(mSampleX, size);
+            mSampleTotal = Arrays.copyOf(mSampleTotal, size);
+        }
+        mSampleX[mSampleCount] = x;
+        mSampleTotal[mSampleCount] = total;
+        mSampleCount++;
+    }
+
+    /**
+     * Erase any existing {@link Path} and generate series outline based on
+     * currently bound {@link NetworkStatsHistory} data.
+     */
+    private void generatePath() {
+        if (LOGD) Log.d(TAG, "generatePath()");
+
+        if (!mSamplesValid) {
+            generateSamples();
+        }
+
+        mPathStroke.reset();
+        mPathFill.reset();
+        mPathEstimate.reset();
+        mPathValid = true;
+
+        // bail when not enough stats to render
+        if (mSampleCount == 0) {
+            return;
+        }
+
+        final int width = getWidth();
+        final int height = getHeight();
+
+        float lastX = 0;
+        float lastY = height;
+        long lastTime = mSampleEndTime;
+
+        // move into starting position
+        mPathStroke.moveTo(lastX, lastY);
+        mPathFill.moveTo(lastX, lastY);
+
+        for (int i = 0; i < mSampleCount; i++) {
+            lastX = mSampleX[i];
+            lastY = mVert.convertToPoint(mSampleTotal[i]);
             mPathStroke.lineTo(lastX, lastY);
             mPathFill.lineTo(lastX, lastY);
         }
 
+        long totalData = mMax;
+
         if (LOGD) {
             final RectF bounds = new RectF();
             mPathFill.computeBounds(bounds, true);
@@ -253,12 +331,11 @@ public class ChartNetworkSeriesView extends View {
         mPathFill.lineTo(lastX, height);
         mPathFill.lineTo(0, height);
 
-        mMax = totalData;
-
         if (ESTIMATE_ENABLED) {
             // build estimated data
             mPathEstimate.moveTo(lastX, lastY);
 
+            NetworkStatsHistory.Entry entry = null;
             final long now = System.currentTimeMillis();
             final long bucketDuration = mStats.getBucketDuration();
 
@@ -292,6 +369,9 @@ public class ChartNetworkSeriesView extends View {
     }
 
     public void setEndTime(long endTime) {
+        if (mEndTime != endTime) {
+            mSamplesValid = false;
+        }
         mEndTime = endTime;
     }
 
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.fuelgauge;
+
+import android.test.AndroidTestCase;
+
+import com.android.internal.os.BatterySipper;
+import com.android.internal.os.BatterySipper.DrainType;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+public class BatteryTrendStoreTest extends AndroidTestCase {
+
+    private static final String FILE_NAME = "battery_trends_test.bin";
+
+    // Start time of the cycle, key and value
+    private static final int RECORD_SIZE = 8 + 4 + 4;
+
+    private static final long FIRST_START_TIME = 1000000L;
+
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = new File(getContext().getCacheDir(), FILE_NAME);
+        deleteFiles();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteFiles();
+        super.tearDown();
+    }
+
+    private void deleteFiles() {
+        mFile.delete();
+        new File(mFile.getPath() + ".bak").delete();
+    }
+
+    private static List<BatterySipper> buildUsageList(double screenMah, double wifiMah) {
+        final List<BatterySipper> usageList = new ArrayList<BatterySipper>();
+        usageList.add(new BatterySipper(DrainType.SCREEN, null, screenMah));
+        usageList.add(new BatterySipper(DrainType.WIFI, null, wifiMah));
+        return usageList;
+    }
+
+    public void testRecordAndReload() {
+        new BatteryTrendStore(mFile).record(FIRST_START_TIME, 12, buildUsageList(50, 2.5));
+
+        final List<BatteryTrendStore.Cycle> cycles = new BatteryTrendStore(mFile).getCycles(
+                BatteryTrendStore.MAX_CYCLES);
+        assertEquals(1, cycles.size());
+        final BatteryTrendStore.Cycle cycle = cycles.get(0);
+        assertEquals(FIRST_START_TIME, cycle.startTime);
+        assertEquals(12, cycle.getDischarge());
+        assertEquals(50.0, cycle.getPowerMah(BatteryTrendStore.getKey(
+                new BatterySipper(DrainType.SCREEN, null, 0))));
+        assertEquals(2.5, cycle.getPowerMah(BatteryTrendStore.getKey(
+                new BatterySipper(DrainType.WIFI, null, 0))));
+        assertEquals(3 * RECORD_SIZE, mFile.length());
+    }
+
+    public void testSmallAndUnkeyedUsageIsNotRecorded() {
+        final List<BatterySipper> usageList = buildUsageList(0.5, 0);
+        usageList.add(new BatterySipper(DrainType.USER, null, 100));
+        new BatteryTrendStore(mFile).record(FIRST_START_TIME, 1, usageList);
+
+        final List<BatteryTrendStore.Cycle> cycles = new BatteryTrendStore(mFile).getCycles(
+                BatteryTrendStore.MAX_CYCLES);
+        assertEquals(1, cycles.size());
+        // Only the discharge is kept
+        assertEquals(1, cycles.get(0).getKeyCount());
+        assertEquals(RECORD_SIZE, mFile.length());
+    }
+
+    public void testPartialRecordIsIgnoredAndRealigned() throws Exception {
+        // One full record followed by the start of an interrupted append
+        final ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE + RECORD_SIZE / 2);
+        buffer.putLong(FIRST_START_TIME).putInt(BatteryTrendStore.KEY_DISCHARGE).putInt(7);
+        buffer.putLong(FIRST_START_TIME + 1);
+        final FileOutputStream out = new FileOutputStream(mFile);
+        try {
+            out.write(buffer.array());
+        } finally {
+            out.close();
+        }
+
+        final BatteryTrendStore store = new BatteryTrendStore(mFile);
+        List<BatteryTrendStore.Cycle> cycles = store.getCycles(BatteryTrendStore.MAX_CYCLES);
+        assertEquals(1, cycles.size());
+        assertEquals(7, cycles.get(0).getDischarge());
+
+        // The file is rewritten instead of appended to the partial record
+        store.record(FIRST_START_TIME + 1, 3, buildUsageList(10, 0));
+        assertEquals(0, mFile.length() % RECORD_SIZE);
+        assertEquals(3 * RECORD_SIZE, mFile.length());
+
+        cycles = new BatteryTrendStore(mFile).getCycles(BatteryTrendStore.MAX_CYCLES);
+        assertEquals(2, cycles.size());
+        assertEquals(FIRST_START_TIME, cycles.get(0).startTime);
+        assertEquals(7, cycles.get(0).getDischarge());
+        assertEquals(FIRST_START_TIME + 1, cycles.get(1).startTime);
+        assertEquals(3, cycles.get(1).getDischarge());
+        assertEquals(2, cycles.get(1).getKeyCount());
+    }
+
+    public void testCompactionDropsOldestCycles() {
+        final BatteryTrendStore store = new BatteryTrendStore(mFile);
+        final int numCycles = BatteryTrendStore.MAX_CYCLES + 1;
+        for (int i = 0; i < numCycles; i++) {
+            store.record(FIRST_START_TIME + i, i, buildUsageList(10 + i, 0));
+        }
+
+        // Two records per cycle, for the last MAX_CYCLES cycles only
+        assertEquals(BatteryTrendStore.MAX_CYCLES * 2 * RECORD_SIZE, mFile.length());
+
+        final List<BatteryTrendStore.Cycle> cycles = new BatteryTrendStore(mFile).getCycles(
+                numCycles);
+        assertEquals(BatteryTrendStore.MAX_CYCLES, cycles.size());
+        for (int i = 0; i < cycles.size(); i++) {
+            final BatteryTrendStore.Cycle cycle = cycles.get(i);
+            assertEquals(FIRST_START_TIME + i + 1, cycle.startTime);
+            assertEquals(i + 1, cycle.getDischarge());
+            assertEquals(2, cycle.getKeyCount());
+        }
+    }
+
+    public void testGetCyclesReturnsMostRecent() {
+        final BatteryTrendStore store = new BatteryTrendStore(mFile);
+        for (int i = 0; i < 3; i++) {
+            store.record(FIRST_START_TIME + i, i, buildUsageList(10, 0));
+        }
+
+        final List<BatteryTrendStore.Cycle> cycles = store.getCycles(2);
+        assertEquals(2, cycles.size());
+        assertEquals(FIRST_START_TIME + 1, cycles.get(0).startTime);
+        assertEquals(FIRST_START_TIME + 2, cycles.get(1).startTime);
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+import static android.net.NetworkStats.IFACE_ALL;
+import static android.net.NetworkStats.SET_DEFAULT;
+import static android.net.NetworkStats.SET_FOREGROUND;
+import static android.net.NetworkStats.TAG_NONE;
+import static android.net.TrafficStats.UID_REMOVED;
+import static android.net.TrafficStats.UID_TETHERING;
+
+import android.app.ActivityManager;
+import android.net.NetworkStats;
+import android.os.Process;
+import android.os.SystemClock;
+import android.os.UserHandle;
+import android.test.AndroidTestCase;
+
+import com.android.settings.DataUsageSummary.AppItem;
+
+public class SummaryForAllUidLoaderTest extends AndroidTestCase {
+
+    // A user that does not exist on the device
+    private static final int REMOVED_USER_ID = 9999;
+
+    private SummaryForAllUidLoader mLoader;
+    private int mAppUid1;
+    private int mAppUid2;
+    private int mAppUid3;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mLoader = new SummaryForAllUidLoader(getContext(), null, null);
+        final int userId = ActivityManager.getCurrentUser();
+        mAppUid1 = UserHandle.getUid(userId, Process.FIRST_APPLICATION_UID + 1);
+        mAppUid2 = UserHandle.getUid(userId, Process.FIRST_APPLICATION_UID + 2);
+        mAppUid3 = UserHandle.getUid(userId, Process.FIRST_APPLICATION_UID + 3);
+    }
+
+    private static void addValues(NetworkStats stats, int uid, int set, long rxBytes,
+            long txBytes) {
+        stats.addValues(IFACE_ALL, uid, set, TAG_NONE, rxBytes, 0, txBytes, 0, 0);
+    }
+
+    private static AppItem findItem(AppItem[] items, int key, int category) {
+        for (AppItem item : items) {
+            if (item.key == key && item.category == category) {
+                return item;
+            }
+        }
+        fail("No item for key " + key + " in category " + category);
+        return null;
+    }
+
+    public void testCollapseStats() {
+        final NetworkStats stats = new NetworkStats(SystemClock.elapsedRealtime(), 8);
+        addValues(stats, mAppUid1, SET_DEFAULT, 100, 50);
+        addValues(stats, mAppUid1, SET_FOREGROUND, 10, 0);
+        addValues(stats, mAppUid2, SET_DEFAULT, 400, 100);
+        addValues(stats, Process.SYSTEM_UID, SET_DEFAULT, 20, 10);
+        addValues(stats, Process.ROOT_UID, SET_DEFAULT, 15, 5);
+        addValues(stats, UID_REMOVED, SET_DEFAULT, 7, 0);
+        addValues(stats, UID_TETHERING, SET_DEFAULT, 3, 2);
+
+        final AppItem[] items = mLoader.collapseStats(stats, null);
+
+        // The title comes first, then the apps by total usage descending
+        assertEquals(6, items.length);
+        assertEquals(AppItem.CATEGORY_APP_TITLE, items[0].category);
+        assertEquals(mAppUid2, items[1].key);
+        assertEquals(500, items[1].total);
+        assertEquals(mAppUid1, items[2].key);
+        assertEquals(160, items[2].total);
+        assertEquals(1, items[2].uids.size());
+        // The UIDs that are not apps are collapsed into the system item
+        assertEquals(Process.SYSTEM_UID, items[3].key);
+        assertEquals(50, items[3].total);
+        assertTrue(items[3].uids.get(Process.SYSTEM_UID));
+        assertTrue(items[3].uids.get(Process.ROOT_UID));
+        assertEquals(UID_REMOVED, items[4].key);
+        assertEquals(7, items[4].total);
+        assertEquals(UID_TETHERING, items[5].key);
+        assertEquals(5, items[5].total);
+        for (int i = 1; i < items.length; i++) {
+            assertEquals(AppItem.CATEGORY_APP, items[i].category);
+        }
+    }
+
+    public void testCollapseStatsOfRemovedUser() {
+        final int removedUid = UserHandle.getUid(REMOVED_USER_ID,
+                Process.FIRST_APPLICATION_UID + 1);
+        final NetworkStats stats = new NetworkStats(SystemClock.elapsedRealtime(), 2);
+        addValues(stats, UID_REMOVED, SET_DEFAULT, 10, 0);
+        addValues(stats, removedUid, SET_DEFAULT, 20, 5);
+
+        final AppItem[] items = mLoader.collapseStats(stats, null);
+
+        final AppItem removed = findItem(items, UID_REMOVED, AppItem.CATEGORY_APP);
+        assertEquals(35, removed.total);
+        assertTrue(removed.uids.get(UID_REMOVED));
+        assertTrue(removed.uids.get(removedUid));
+    }
+
+    public void testCollapseStatsMarksRestrictedUids() {
+        final int otherUserUid = UserHandle.getUid(REMOVED_USER_ID,
+                Process.FIRST_APPLICATION_UID + 3);
+        final NetworkStats stats = new NetworkStats(SystemClock.elapsedRealtime(), 2);
+        addValues(stats, mAppUid1, SET_DEFAULT, 100, 0);
+        addValues(stats, mAppUid2, SET_DEFAULT, 50, 0);
+
+        final AppItem[] items = mLoader.collapseStats(stats,
+                new int[] { mAppUid1, mAppUid3, otherUserUid });
+
+        assertTrue(findItem(items, mAppUid1, AppItem.CATEGORY_APP).restricted);
+        assertFalse(findItem(items, mAppUid2, AppItem.CATEGORY_APP).restricted);
+        // A restricted app without usage is listed without a total
+        boolean foundRestricted = false;
+        for (AppItem item : items) {
+            assertTrue(item.key != otherUserUid);
+            if (item.key == mAppUid3) {
+                assertTrue(item.restricted);
+                assertEquals(-1, item.total);
+                foundRestricted = true;
+            }
+        }
+        assertTrue(foundRestricted);
+    }
+
+    public void testCollapseEmptyStats() {
+        assertEquals(0, mLoader.collapseStats(null, null).length);
+        assertEquals(0, mLoader.collapseStats(
+                new NetworkStats(SystemClock.elapsedRealtime(), 0), null).length);
+    }
+}
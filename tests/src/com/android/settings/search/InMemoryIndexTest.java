@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import android.test.AndroidTestCase;
+
+public class InMemoryIndexTest extends AndroidTestCase {
+
+    private static final String LOCALE = "en_US";
+
+    private InMemoryIndex mIndex;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        final InMemoryIndex.Builder builder = new InMemoryIndex.Builder(LOCALE);
+        addRow(builder, "Wi-Fi", "Wireless networks");
+        addRow(builder, "Bluetooth", "Wireless headsets");
+        addRow(builder, "Display", "Brightness, wallpaper");
+        addRow(builder, "Wallpaper", null);
+        mIndex = builder.build();
+    }
+
+    private static void addRow(InMemoryIndex.Builder builder, String title, String summary) {
+        final String[] row = new String[] { title, summary };
+        final int index = builder.addRow(row);
+        builder.addText(index, title, true);
+        builder.addText(index, summary, false);
+    }
+
+    public void testCanAnswer() {
+        assertTrue(InMemoryIndex.canAnswer("w"));
+        assertTrue(InMemoryIndex.canAnswer("Wif"));
+        assertFalse(InMemoryIndex.canAnswer("wifi"));
+        assertFalse(InMemoryIndex.canAnswer("w f"));
+        assertFalse(InMemoryIndex.canAnswer("wi-"));
+        assertFalse(InMemoryIndex.canAnswer(""));
+        assertFalse(InMemoryIndex.canAnswer(null));
+    }
+
+    public void testHasTokenStartingWith() {
+        assertTrue(InMemoryIndex.hasTokenStartingWith("Wi-Fi", "fi"));
+        assertTrue(InMemoryIndex.hasTokenStartingWith("Brightness, wallpaper", "wal"));
+        assertFalse(InMemoryIndex.hasTokenStartingWith("Brightness", "right"));
+        assertFalse(InMemoryIndex.hasTokenStartingWith("Wi", "wif"));
+        assertFalse(InMemoryIndex.hasTokenStartingWith(null, "w"));
+    }
+
+    public void testSearchReturnsPrimaryMatchesFirst() {
+        final String[][] results = mIndex.search("W");
+        assertEquals(4, results.length);
+        // "Wi-Fi" and "Wallpaper" match on their title, in rank order
+        assertEquals("Wi-Fi", results[0][0]);
+        assertEquals("Wallpaper", results[1][0]);
+        // "Bluetooth" and "Display" only match on their summary, in rank order
+        assertEquals("Bluetooth", results[2][0]);
+        assertEquals("Display", results[3][0]);
+    }
+
+    public void testSearchMatchesTokenPrefixesOnly() {
+        final String[][] results = mIndex.search("fi");
+        assertEquals(1, results.length);
+        assertEquals("Wi-Fi", results[0][0]);
+
+        assertEquals(0, mIndex.search("ire").length);
+        assertEquals(0, mIndex.search("zzz").length);
+    }
+
+    public void testSearchReturnsEachRowOnce() {
+        // "Display" has both "Brightness" and "wallpaper" in its summary, "Wallpaper" matches
+        // on both its title and the summary of another row
+        final String[][] results = mIndex.search("wal");
+        assertEquals(2, results.length);
+        assertEquals("Wallpaper", results[0][0]);
+        assertEquals("Display", results[1][0]);
+    }
+
+    public void testBuildKeepsLocaleAndMemoryUsage() {
+        assertEquals(LOCALE, mIndex.getLocale());
+        assertTrue(mIndex.getMemoryUsage() > 0);
+    }
+}
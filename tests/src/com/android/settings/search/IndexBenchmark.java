@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+import android.test.InstrumentationTestRunner;
+import android.util.Log;
+
+import java.io.File;
+import java.util.Arrays;
+
+/**
+ * Benchmark of the settings search Index.
+ *
+ * Indexes the full SearchIndexableResources set (through the Settings search provider) plus a
+ * synthetic set of raw data, and reports the cold index time, the incremental update times and
+ * the p50 / p99 query latencies for a few representative prefixes.
+ *
+ * Run with:
+ * adb shell am instrument -w -r -e class com.android.settings.search.IndexBenchmark
+ *     [-e rawDataSize 500] [-e queryIterations 200]
+ *     com.android.settings.tests/android.test.InstrumentationTestRunner
+ */
+public class IndexBenchmark extends InstrumentationTestCase {
+
+    private static final String TAG = "IndexBenchmark";
+
+    private static final String DATABASE_NAME = "search_index_benchmark.db";
+    // The snapshots written by the Index go there instead of the cache of the app
+    private static final String CACHE_DIR_NAME = "search_index_benchmark";
+    private static final String BASE_AUTHORITY = "com.android.settings";
+
+    private static final String ARG_RAW_DATA_SIZE = "rawDataSize";
+    private static final String ARG_QUERY_ITERATIONS = "queryIterations";
+
+    private static final int DEFAULT_RAW_DATA_SIZE = 500;
+    // Enough iterations for the p99 not to be the slowest sample
+    private static final int DEFAULT_QUERY_ITERATIONS = 200;
+
+    // Number of synthetic raw data sharing the same class name
+    private static final int RAW_DATA_PER_CLASS = 50;
+
+    private static final String SYNTHETIC_CLASS_NAME = "com.android.settings.SyntheticBenchmark";
+
+    private static final String[] QUERY_PREFIXES = {
+            "w", "wi", "wif", "wifi", "b", "blu", "bluetooth", "dis", "display",
+            "bat", "battery", "loc", "synthetic", "zzz"
+    };
+
+    private static final String[] WORDS = {
+            "network", "display", "sound", "battery", "storage", "location", "security",
+            "accounts", "language", "backup", "date", "accessibility", "printing", "developer"
+    };
+
+    private Context mContext;
+    private File mCacheDir;
+    private int mRawDataSize;
+    private int mQueryIterations;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        final Context targetContext = getInstrumentation().getTargetContext();
+        mCacheDir = new File(targetContext.getCacheDir(), CACHE_DIR_NAME);
+        mContext = new ContextWrapper(targetContext) {
+            @Override
+            public File getCacheDir() {
+                return mCacheDir;
+            }
+        };
+        mContext.deleteDatabase(DATABASE_NAME);
+        deleteRecursively(mCacheDir);
+
+        Bundle arguments = null;
+        if (getInstrumentation() instanceof InstrumentationTestRunner) {
+            arguments = ((InstrumentationTestRunner) getInstrumentation()).getArguments();
+        }
+        mRawDataSize = getIntArgument(arguments, ARG_RAW_DATA_SIZE, DEFAULT_RAW_DATA_SIZE);
+        mQueryIterations = getIntArgument(arguments, ARG_QUERY_ITERATIONS,
+                DEFAULT_QUERY_ITERATIONS);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mContext.deleteDatabase(DATABASE_NAME);
+        deleteRecursively(mCacheDir);
+        super.tearDown();
+    }
+
+    public void testColdIndex() throws Exception {
+        final Index index = newIndex();
+
+        addSyntheticRawData(index, 0);
+        final long coldMillis = timeUpdate(index);
+        report("cold_index_millis", coldMillis);
+
+        assertTrue("Synthetic data should be indexed", index.search("synthetic").length > 0);
+    }
+
+    public void testIncrementalUpdate() throws Exception {
+        final Index index = newIndex();
+
+        addSyntheticRawData(index, 0);
+        timeUpdate(index);
+
+        // Nothing has changed
+        addSyntheticRawData(index, 0);
+        report("unchanged_update_millis", timeUpdate(index));
+
+        // Only the first synthetic class has changed
+        addSyntheticRawData(index, 1);
+        report("incremental_update_millis", timeUpdate(index));
+
+        assertTrue("Changed data should be indexed", index.search("revision1").length > 0);
+    }
+
+    public void testQueryLatency() throws Exception {
+        final Index index = newIndex();
+
+        addSyntheticRawData(index, 0);
+        timeUpdate(index);
+
+        // Warm up, so that building the in-memory index is not measured as a query
+        for (String prefix : QUERY_PREFIXES) {
+            index.search(prefix);
+        }
+
+        final long[][] samples = new long[QUERY_PREFIXES.length][mQueryIterations];
+        for (int i = 0; i < mQueryIterations; i++) {
+            // Measure the Index itself, not the result cache
+            index.clearResultCache();
+            for (int n = 0; n < QUERY_PREFIXES.length; n++) {
+                final long start = System.nanoTime();
+                index.search(QUERY_PREFIXES[n]);
+                samples[n][i] = System.nanoTime() - start;
+            }
+        }
+
+        for (int n = 0; n < QUERY_PREFIXES.length; n++) {
+            Arrays.sort(samples[n]);
+            report("query_" + QUERY_PREFIXES[n] + "_p50_micros",
+                    getPercentile(samples[n], 50) / 1000);
+            report("query_" + QUERY_PREFIXES[n] + "_p99_micros",
+                    getPercentile(samples[n], 99) / 1000);
+        }
+    }
+
+    private Index newIndex() {
+        return new Index(mContext, BASE_AUTHORITY,
+                new IndexDatabaseHelper(mContext, DATABASE_NAME));
+    }
+
+    private long timeUpdate(Index index) throws Exception {
+        final long start = SystemClock.elapsedRealtime();
+        index.updateBlocking();
+        final long duration = SystemClock.elapsedRealtime() - start;
+        // Let the update task complete on the main thread before searching
+        getInstrumentation().waitForIdleSync();
+        return duration;
+    }
+
+    /**
+     * Add the synthetic raw data. The data of the first class name depends on the revision,
+     * so that changing the revision only changes one indexed entry.
+     */
+    private void addSyntheticRawData(Index index, int revision) {
+        for (int n = 0; n < mRawDataSize; n++) {
+            final int classIndex = n / RAW_DATA_PER_CLASS;
+            final String word = WORDS[n % WORDS.length];
+
+            final SearchIndexableRaw data = new SearchIndexableRaw(mContext);
+            data.title = "Synthetic " + word + " setting " + n;
+            data.summaryOn = "Synthetic summary for " + word;
+            data.keywords = word + ", synthetic";
+            data.screenTitle = "Synthetic screen " + classIndex;
+            data.className = SYNTHETIC_CLASS_NAME + classIndex;
+            data.packageName = mContext.getPackageName();
+            data.key = "synthetic_" + n;
+            if (classIndex == 0 && revision > 0) {
+                data.title += " revision" + revision;
+            }
+            index.addIndexableData(data);
+        }
+    }
+
+    private void report(String key, long value) {
+        Log.i(TAG, key + ": " + value);
+        final Bundle status = new Bundle();
+        status.putLong(key, value);
+        getInstrumentation().sendStatus(0, status);
+    }
+
+    private static long getPercentile(long[] sortedSamples, int percentile) {
+        if (sortedSamples.length == 0) {
+            return 0;
+        }
+        final int index = (int) Math.ceil(percentile / 100.0 * sortedSamples.length) - 1;
+        return sortedSamples[Math.max(0, Math.min(index, sortedSamples.length - 1))];
+    }
+
+    private static void deleteRecursively(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static int getIntArgument(Bundle arguments, String key, int defaultValue) {
+        if (arguments == null || arguments.getString(key) == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(arguments.getString(key));
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+}
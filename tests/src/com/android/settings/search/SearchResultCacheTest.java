@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import android.test.AndroidTestCase;
+
+public class SearchResultCacheTest extends AndroidTestCase {
+
+    private static final String LOCALE = "en_US";
+    private static final int GENERATION = 1;
+
+    // Must be larger than the number of entries kept by the cache
+    private static final int EVICTION_QUERY_COUNT = 32;
+
+    private static final String[] WIFI = buildRow(2, "Wi-Fi", null, "Network");
+    private static final String[] WIRELESS = buildRow(3, "More", "Wireless & networks", null);
+    private static final String[] WIDGETS = buildRow(1, "Home", "Widgets", null);
+    private static final String[] WALLPAPER = buildRow(0, "Wallpaper", null, null);
+
+    private SearchResultCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCache = new SearchResultCache();
+        // Results are only kept for the generation of the last lookup
+        assertNull(mCache.get(LOCALE, "x", GENERATION));
+    }
+
+    private static String[] buildRow(int rank, String title, String summary, String keywords) {
+        final String[] row = new String[Index.COLUMN_INDEX_USER_ID + 1];
+        row[Index.COLUMN_INDEX_RANK] = Integer.toString(rank);
+        row[Index.COLUMN_INDEX_TITLE] = title;
+        row[Index.COLUMN_INDEX_SUMMARY_ON] = summary;
+        row[Index.COLUMN_INDEX_KEYWORDS] = keywords;
+        return row;
+    }
+
+    public void testGetReturnsCachedResults() {
+        final String[][] results = new String[][] { WIFI };
+        mCache.put(LOCALE, "Wi", GENERATION, results);
+
+        assertSame(results, mCache.get(LOCALE, "wi", GENERATION));
+        assertNull(mCache.get("fr_FR", "wi", GENERATION));
+    }
+
+    public void testGetMissesWithoutCachedPrefix() {
+        mCache.put(LOCALE, "b", GENERATION, new String[][] { });
+
+        assertNull(mCache.get(LOCALE, "wi", GENERATION));
+    }
+
+    public void testRefineFromPrefixResults() {
+        mCache.put(LOCALE, "w", GENERATION,
+                new String[][] { WIFI, WALLPAPER, WIRELESS, WIDGETS });
+
+        final String[][] results = mCache.get(LOCALE, "wi", GENERATION);
+        assertNotNull(results);
+        // The title match comes first, then the summary matches sorted by rank
+        assertEquals(3, results.length);
+        assertSame(WIFI, results[0]);
+        assertSame(WIDGETS, results[1]);
+        assertSame(WIRELESS, results[2]);
+
+        // The refined results are cached for the longer query
+        assertSame(results, mCache.get(LOCALE, "wi", GENERATION));
+    }
+
+    public void testRefineUsesLongestCachedPrefix() {
+        mCache.put(LOCALE, "w", GENERATION, new String[][] { WIFI, WALLPAPER });
+        mCache.put(LOCALE, "wi", GENERATION, new String[][] { WIRELESS });
+
+        final String[][] results = mCache.get(LOCALE, "wir", GENERATION);
+        assertEquals(1, results.length);
+        assertSame(WIRELESS, results[0]);
+    }
+
+    public void testRefineMatchesNormalizedTitleAndKeywords() {
+        mCache.put(LOCALE, "w", GENERATION, new String[][] { WIFI, WALLPAPER });
+
+        // "Wi-Fi" is normalized to "wifi"
+        String[][] results = mCache.get(LOCALE, "wif", GENERATION);
+        assertEquals(1, results.length);
+        assertSame(WIFI, results[0]);
+
+        mCache.put(LOCALE, "n", GENERATION, new String[][] { WIFI, WALLPAPER });
+        results = mCache.get(LOCALE, "net", GENERATION);
+        assertEquals(1, results.length);
+        assertSame(WIFI, results[0]);
+    }
+
+    public void testMultipleTokenQueryIsNotRefined() {
+        mCache.put(LOCALE, "wi", GENERATION, new String[][] { WIFI, WIRELESS });
+
+        assertNull(mCache.get(LOCALE, "wi fi", GENERATION));
+    }
+
+    public void testGenerationChangeClearsCache() {
+        mCache.put(LOCALE, "wi", GENERATION, new String[][] { WIFI });
+
+        assertNull(mCache.get(LOCALE, "wi", GENERATION + 1));
+        assertNull(mCache.get(LOCALE, "wi", GENERATION));
+    }
+
+    public void testPutWithStaleGenerationIsDropped() {
+        // The Index is updated while the query for the previous generation is evaluated
+        assertNull(mCache.get(LOCALE, "wi", GENERATION + 1));
+
+        mCache.put(LOCALE, "wi", GENERATION, new String[][] { WIFI });
+        assertNull(mCache.get(LOCALE, "wi", GENERATION + 1));
+    }
+
+    public void testEvictsLeastRecentlyUsed() {
+        final String[][] kept = new String[][] { WIFI };
+        mCache.put(LOCALE, "kept", GENERATION, kept);
+        for (int n = 0; n < EVICTION_QUERY_COUNT; n++) {
+            mCache.put(LOCALE, "x" + n, GENERATION, new String[][] { });
+            // Keep using one of the queries so that it is never the least recently used
+            assertSame(kept, mCache.get(LOCALE, "kept", GENERATION));
+        }
+
+        assertNull(mCache.get(LOCALE, "x0", GENERATION));
+        assertNotNull(mCache.get(LOCALE, "x" + (EVICTION_QUERY_COUNT - 1), GENERATION));
+    }
+
+    public void testClear() {
+        mCache.put(LOCALE, "wi", GENERATION, new String[][] { WIFI });
+        mCache.clear();
+
+        assertNull(mCache.get(LOCALE, "wi", GENERATION));
+    }
+}